@@ -24,10 +24,18 @@ import edu.berkeley.cs.nlp.ocular.model.DecoderEM;
 import edu.berkeley.cs.nlp.ocular.model.em.CUDAInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.em.DefaultInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.FftInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.GemmInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.em.JOCLInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.OffsetSharingInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.PopcountInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.VectorizedInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.emission.CachingEmissionModel.CachingEmissionModelFactory;
 import edu.berkeley.cs.nlp.ocular.model.emission.CachingEmissionModelExplicitOffset.CachingEmissionModelExplicitOffsetFactory;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel.EmissionModelFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.LazyEmissionModel.LazyEmissionModelFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.PrunedEmissionModel.PrunedEmissionModelFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.QuantizedEmissionCache;
 import edu.berkeley.cs.nlp.ocular.util.StringHelper;
 import tberg.murphy.fig.Option;
 import tberg.murphy.indexer.Indexer;
@@ -103,20 +111,50 @@ public abstract class FonttrainTranscribeShared extends LineExtractionOptions {
 	@Option(gloss = "Should documents that cause errors be skipped instead of stopping the whole program?")
 	public static boolean skipFailedDocs = false;
 	
-	public static enum EmissionCacheInnerLoopType { DEFAULT, OPENCL, CUDA };
-	@Option(gloss = "Engine to use for inner loop of emission cache computation. `DEFAULT`: Uses Java on CPU, which works on any machine but is the slowest method. `OPENCL`: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. `CUDA`: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation.")
+	public static enum EmissionCacheInnerLoopType { DEFAULT, VECTORIZED, GEMM, POPCOUNT, OFFSET_SHARING, FFT, OPENCL, CUDA };
+	@Option(gloss = "Engine to use for inner loop of emission cache computation. `DEFAULT`: Uses Java on CPU, which works on any machine but is the slowest method. `VECTORIZED`: Uses Java on CPU with unrolled loops that the JVM can compile to SIMD instructions; works on any machine and is faster than `DEFAULT`. `GEMM`: Uses Java on CPU, computing the emission scores as a cache-blocked matrix multiplication; usually the fastest CPU-only method for large batches. `POPCOUNT`: Uses Java on CPU, scoring bit-packed observations by summing template log-probabilities over only the set pixels. `OFFSET_SHARING`: Like `POPCOUNT`, but scores all vertical offsets of a template in one pass over a single padded template. `FFT`: Uses Java on CPU, computing the sliding-window scores as FFT-based correlations with overlap-add blocking for the template widths and line lengths where that takes fewer operations (typically wide templates on very long lines), and the direct loop elsewhere. `OPENCL`: Faster engine that uses either the CPU or integrated GPU (depending on processor) and requires OpenCL installation. `CUDA`: Fastest method, but requires a discrete NVIDIA GPU and CUDA installation.")
 	public static EmissionCacheInnerLoopType emissionEngine = EmissionCacheInnerLoopType.DEFAULT; // Default: DEFAULT
 
 	@Option(gloss = "Size of beam for Viterbi inference. (Usually in range 10-50. Increasing beam size can improve accuracy, but will reduce speed.)")
 	public static int beamSize = 10;
 
+	@Option(gloss = "Prune each column's Viterbi beam to the states whose score is within this log-probability margin of the best, so that clear columns use small beams and only ambiguous ones use the full -beamSize. (0 disables pruning, so every beam keeps up to -beamSize states.)")
+	public static double beamMargin = 0.0;
+
+	@Option(gloss = "Smallest number of states a beam is pruned to when -beamMargin is used.")
+	public static int minBeamSize = 3;
+
+	@Option(gloss = "Number of times to decode a line again, each time with twice the beam size (and beam margin), when no state in its beam reaches the end of the line. (Otherwise such a line is left untranscribed.)")
+	public static int beamRetries = 2;
+
+	@Option(gloss = "Keep the Viterbi beams in preallocated primitive arrays instead of hash-based priority queues, which avoids allocating and hashing objects for every candidate state. (Ties between equally-scored states may be broken differently.)")
+	public static boolean primitiveBeam = false;
+
+	@Option(gloss = "Compute the Viterbi beam's coarse backward heuristic from only the most likely N successors of each character, bounding the rest by the best of their transition probabilities, instead of from all character pairs. Faster with large character sets; the heuristic stays optimistic but is looser, so the decode may change slightly. (0 uses all pairs.)")
+	public static int coarseBackwardTopK = 0;
+
+	@Option(gloss = "When decoding with multiple threads (-numDecodeThreads), decode each thread's block of lines from generic start states, then decode the first lines of each block again from the end of the previous block until the two agree, so that the result is the same as with a single thread. (Without this, each block's decode starts from scratch, which can change the result.)")
+	public static boolean speculativeDecode = false;
+
+	@Option(gloss = "Number of states whose forward transitions are kept in the code-switch transition model's per-document cache; the least recently used are evicted first. (Only has effect with multiple languages or glyph substitution. 0 disables the cache.)")
+	public static int transitionCacheSize = 10000;
+
+	@Option(gloss = "Decode each batch first with a beam of this size and a cheap transition model (monolingual, in the language with the highest prior, and without glyph substitution), then decode again with the full model and -beamSize only the lines the first pass was not confident in. Lines kept from the first pass are tagged with its language, and are scored by its model in the reported joint log probability. Not permitted with updateLM or updateGsm, since the kept lines have no language switches or glyph substitutions to count. (0 decodes once, with the full model.)")
+	public static int twoPassBeamSize = 0;
+
+	@Option(gloss = "With -twoPassBeamSize, decode a line again if the best state ending it in the first pass beat the next best by less than this log-probability margin.")
+	public static double twoPassMinScoreMargin = 2.0;
+
+	@Option(gloss = "With -twoPassBeamSize, decode a line again if its first-pass log probability per pixel column is more than this below the median of its batch's lines.")
+	public static double twoPassMaxScoreDrop = 0.1;
+
 	@Option(gloss = "GPU ID when using CUDA emission engine.")
 	public static int cudaDeviceID = 0;
 
 	@Option(gloss = "Number of threads to use for LFBGS during m-step.")
 	public static int numMstepThreads = 8;
 
-	@Option(gloss = "Number of threads to use during emission cache computation. (Only has effect when emissionEngine is set to DEFAULT.)")
+	@Option(gloss = "Number of threads to use during emission cache computation. (Only has effect when emissionEngine is set to DEFAULT, VECTORIZED, GEMM, POPCOUNT, OFFSET_SHARING, or FFT.)")
 	public static int numEmissionCacheThreads = 8;
 
 	@Option(gloss = "Number of threads to use for decoding. (More thread may increase speed, but may cause a loss of continuity across lines.)")
@@ -125,6 +163,33 @@ public abstract class FonttrainTranscribeShared extends LineExtractionOptions {
 	@Option(gloss = "Number of lines that compose a single decode batch. (Smaller batch size can reduce memory consumption.)")
 	public static int decodeBatchSize = 32;
 
+	@Option(gloss = "Build the emission cache for the next decode batch in the background while the current batch is decoded, so that at most two batches' emission caches are in memory at once. (The emission cache and decoder threads then run at the same time, so numEmissionCacheThreads plus numDecodeThreads should not exceed the number of cores.)")
+	public static boolean pipelineDecodeBatches = false;
+
+	@Option(gloss = "If greater than zero, ignore decodeBatchSize and instead pack consecutive lines into decode batches whose predicted emission cache size fits in this many gigabytes (half of it per batch with pipelineDecodeBatches). Only the emission cache is counted, not the JVM's other memory use.")
+	public static double decodeMemoryBudgetGb = 0.0;
+
+	@Option(gloss = "Store the emission cache in direct (off-heap) memory instead of on the Java heap. (Direct memory is limited by the JVM's -XX:MaxDirectMemorySize setting.)")
+	public static boolean offHeapEmissionCache = false;
+
+	@Option(gloss = "Precision of the stored emission cache: FLOAT32, FP16 (half floats), or INT16 (16-bit steps below each line's best score). The 16-bit formats halve the memory taken by the cached scores; with the argmaxes stored next to them, which are not quantized, the cache takes a third less memory in all (4 bytes per entry instead of 6). FP16's error grows with the magnitude of the score (about 0.5 near a log probability of -1000), while INT16's is at most half a step of each line's own range, so INT16 is usually the more accurate. (Not used by lazyEmissionCache.)")
+	public static QuantizedEmissionCache.Precision emissionCachePrecision = QuantizedEmissionCache.Precision.FLOAT32; // Default: FLOAT32
+
+	@Option(gloss = "If set, save each decode batch's emission cache in this directory, and on later runs over the same extracted lines memory-map the saved cache instead of rebuilding it. A saved cache is rebuilt when the font changes; while training, each batch's cache is saved only for the first font. (Not used with markovVerticalOffset or lazyEmissionCache.)")
+	public static String emissionCacheDir = null;
+
+	@Option(gloss = "Keep each decode batch's emission cache from one EM iteration to the next, and recompute only the characters whose templates changed in the M-step. Holds the kept batches' caches in memory at once, up to incrementalEmissionCacheMaxGb. (Needs the FLOAT32 emissionCachePrecision and no emissionCacheDir. Not used with markovVerticalOffset or lazyEmissionCache.)")
+	public static boolean incrementalEmissionCache = false;
+
+	@Option(gloss = "With incrementalEmissionCache, the most memory, in gigabytes, taken by the emission caches kept from one EM iteration to the next; the least recently used batches' caches are dropped to stay under it, and rebuilt in full when next needed. If zero, half of the JVM's maximum heap.")
+	public static double incrementalEmissionCacheMaxGb = 0.0;
+
+	@Option(gloss = "Compute emission scores on demand during decoding, memoizing each (column, character) entry, instead of filling the whole emission cache before decoding, so that the characters pruned by emissionPruningTopK are never scored. Saves time, not memory: the cached scores and the computed flags are allocated for every column and character up front, so it takes as much memory as the FLOAT32 cache, plus the flags. Ignores emissionEngine. (Requires emissionPruningTopK. Not supported with markovVerticalOffset.)")
+	public static boolean lazyEmissionCache = false;
+
+	@Option(gloss = "If greater than zero, score every character at every column with a cheap proxy (one width, one exposure, no vertical offset) and only allow the top K characters to start at that column; the space character is always allowed. Saves the most emission work together with lazyEmissionCache.")
+	public static int emissionPruningTopK = 0;
+
 	@Option(gloss = "Min horizontal padding between characters in pixels. (Best left at default value.)")
 	public static int paddingMinWidth = 1;
 
@@ -209,9 +274,14 @@ public abstract class FonttrainTranscribeShared extends LineExtractionOptions {
 		if (!updateGsm && outputGsmPath != null) throw new IllegalArgumentException("-outputGsmPath not permitted when -updateGsm is false.");
 		if (allowGlyphSubstitution && inputGsmPath == null && outputGsmPath == null) throw new IllegalArgumentException("If -allowGlyphSubstitution=true, either an -inputGsmPath must be given, or a GSM must be trained by giving an -outputGsmPath.");
 		if (outputGsmPath != null && outputFontPath == null) throw new IllegalArgumentException("It is not possible to retrain the GSM (-updateGsm=true) when not retraining the font (-updateFont=false).");
+		if (twoPassBeamSize > 0 && (updateLM || updateGsm)) throw new IllegalArgumentException("-twoPassBeamSize not permitted if -updateLM or -updateGsm is true.");
 
 		if (evalExtractedLinesPath != null && evalInputDocPath == null) throw new IllegalArgumentException("-evalExtractedLinesPath not permitted without -evalInputDocPath.");
 
+		if (lazyEmissionCache && emissionPruningTopK <= 0) throw new IllegalArgumentException("-lazyEmissionCache requires -emissionPruningTopK, since without pruning the decoder asks for every emission score anyway.");
+		if (incrementalEmissionCacheMaxGb < 0.0) throw new IllegalArgumentException("-incrementalEmissionCacheMaxGb must not be negative.");
+		if (incrementalEmissionCache && (emissionCachePrecision != QuantizedEmissionCache.Precision.FLOAT32 || emissionCacheDir != null)) throw new IllegalArgumentException("-incrementalEmissionCache requires -emissionCachePrecision FLOAT32 and no -emissionCacheDir.");
+
 		// Make the output directory if it doesn't exist yet
 		new File(outputPath).mkdirs();
 		
@@ -284,19 +354,36 @@ public abstract class FonttrainTranscribeShared extends LineExtractionOptions {
 	
 	protected static DecoderEM makeDecoder(Indexer<String> charIndexer) {
 		EmissionModelFactory emissionModelFactory = makeEmissionModelFactory(charIndexer);
-		return new DecoderEM(emissionModelFactory, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, allowLanguageSwitchOnPunct, markovVerticalOffset, beamSize, numDecodeThreads, numMstepThreads, decodeBatchSize);
+		return new DecoderEM(emissionModelFactory, allowGlyphSubstitution, gsmNoCharSubPrior, gsmElideAnything, allowLanguageSwitchOnPunct, markovVerticalOffset, beamSize, minBeamSize, beamMargin, beamRetries, numDecodeThreads, numMstepThreads, decodeBatchSize, pipelineDecodeBatches, decodeMemoryBudgetGb, primitiveBeam, coarseBackwardTopK, speculativeDecode, transitionCacheSize, twoPassBeamSize, twoPassMinScoreMargin, twoPassMaxScoreDrop);
 	}
 
 	protected static EmissionModelFactory makeEmissionModelFactory(Indexer<String> charIndexer) {
+		EmissionModelFactory emissionModelFactory = makeFullEmissionModelFactory(charIndexer);
+		if (emissionPruningTopK > 0) {
+			return new PrunedEmissionModelFactory(emissionModelFactory, charIndexer, emissionPruningTopK, numEmissionCacheThreads);
+		}
+		return emissionModelFactory;
+	}
+
+	protected static EmissionModelFactory makeFullEmissionModelFactory(Indexer<String> charIndexer) {
+		if (lazyEmissionCache) {
+			if (markovVerticalOffset) throw new RuntimeException("-lazyEmissionCache is not supported with -markovVerticalOffset");
+			return new LazyEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth);
+		}
 		EmissionCacheInnerLoop emissionInnerLoop = getEmissionInnerLoop();
 		return (markovVerticalOffset ? 
-			new CachingEmissionModelExplicitOffsetFactory(charIndexer, paddingMinWidth, paddingMaxWidth, emissionInnerLoop) : 
-			new CachingEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth, emissionInnerLoop));
+			new CachingEmissionModelExplicitOffsetFactory(charIndexer, paddingMinWidth, paddingMaxWidth, emissionInnerLoop, offHeapEmissionCache, emissionCachePrecision) : 
+			new CachingEmissionModelFactory(charIndexer, paddingMinWidth, paddingMaxWidth, emissionInnerLoop, offHeapEmissionCache, emissionCachePrecision, emissionCacheDir, incrementalEmissionCache, (incrementalEmissionCacheMaxGb > 0.0 ? (long) (incrementalEmissionCacheMaxGb * 1e9) : Runtime.getRuntime().maxMemory() / 2)));
 	}
 
 	protected static EmissionCacheInnerLoop getEmissionInnerLoop() {
 		switch (emissionEngine) {
 			case DEFAULT: return new DefaultInnerLoop(numEmissionCacheThreads);
+			case VECTORIZED: return new VectorizedInnerLoop(numEmissionCacheThreads);
+			case GEMM: return new GemmInnerLoop(numEmissionCacheThreads);
+			case POPCOUNT: return new PopcountInnerLoop(numEmissionCacheThreads);
+			case OFFSET_SHARING: return new OffsetSharingInnerLoop(numEmissionCacheThreads);
+			case FFT: return new FftInnerLoop(numEmissionCacheThreads);
 			case OPENCL: return new JOCLInnerLoop(numEmissionCacheThreads);
 			case CUDA: return new CUDAInnerLoop(numEmissionCacheThreads, cudaDeviceID);
 		}
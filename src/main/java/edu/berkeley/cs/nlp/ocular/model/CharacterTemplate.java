@@ -3,10 +3,13 @@ package edu.berkeley.cs.nlp.ocular.model;
 import tberg.murphy.indexer.Indexer;
 import tberg.murphy.indexer.IntArrayIndexer;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import tberg.murphy.math.m;
 import tberg.murphy.opt.DifferentiableFunction;
@@ -44,6 +47,8 @@ public class CharacterTemplate implements Serializable {
 	public static final float MSTEP_LBFGS_TOL = 1e-5f;
 	public static final int MSTEP_LBFGS_ITERS = 20;
 	
+	public static final float INTERPOLATION_WEIGHT_EPS = 1e-7f;
+	
 	private String character;
 	
 	private int templateMaxWidth;
@@ -56,6 +61,7 @@ public class CharacterTemplate implements Serializable {
 	private float[][][][] templateLogWhiteProbs;
 	private boolean[][] templateCountSparsity;
 	private boolean[][] templateLogProbsCached;
+	private transient volatile LogProbTables logProbTables = null;
 	
 	private float[][][][] templateBlackCounts;
 	private float[][][][] templateWhiteCounts;
@@ -68,12 +74,18 @@ public class CharacterTemplate implements Serializable {
 	
 	private Indexer<int[]> paramIndexer;
 
-	private float[][][][] interpolationWeights;
+	// Interpolation weights in compressed sparse row form.  For exposure e and
+	// width index w, rendered position pos interpolates the template columns
+	// interpolationColumns[e][w][k] with weights interpolationWeights[e][w][k],
+	// for k from interpolationRowStarts[e][w][pos] up to interpolationRowStarts[e][w][pos+1].
+	// These depend only on the template widths, so they are rebuilt rather than serialized.
+	private transient int[][][] interpolationRowStarts;
+	private transient int[][][] interpolationColumns;
+	private transient float[][][] interpolationWeights;
+
+	private static final AtomicLong nextVersion = new AtomicLong(0);
+	private transient volatile long version = 0;
 
-	public float[][][][] getInterpolationWeights() {
-		return interpolationWeights;
-	}
-	
 	public CharacterTemplate(String character, float templateMaxWidthFraction, float templateMinWidthFraction) {
 		this.templateMaxWidth = (int) Math.max(1, Math.floor(templateMaxWidthFraction*LINE_HEIGHT));
 		this.templateMinWidth = (int) Math.max(1, Math.floor(templateMinWidthFraction*LINE_HEIGHT));
@@ -103,27 +115,16 @@ public class CharacterTemplate implements Serializable {
 			this.templateCountSparsity = new boolean[EXP_GAINS.length][templateWidthProbs.length];
 			this.templateBlackCounts = new float[EXP_GAINS.length][templateWidthProbs.length][][];
 			this.templateWhiteCounts = new float[EXP_GAINS.length][templateWidthProbs.length][][];
-			this.interpolationWeights = new float[EXP_GAINS.length][templateWidthProbs.length][][];
 			for (int e=0; e<EXP_GAINS.length; ++e) {
 				for (int w=0; w<templateWidthProbs.length; ++w) {
 					int width = templateMinWidth+w;
-					this.interpolationWeights[e][w] = new float[width][templateMaxWidth];
 					this.templateLogBlackProbs[e][w] = new float[width][LINE_HEIGHT];
 					this.templateLogWhiteProbs[e][w] = new float[width][LINE_HEIGHT];
 					this.templateBlackCounts[e][w] = new float[width][LINE_HEIGHT];
 					this.templateWhiteCounts[e][w] = new float[width][LINE_HEIGHT];
-					float interval = ((float) templateMaxWidth) / ((float) width);
-					for (int i=0; i<width; ++i) {
-						float emissionLocation = interval*(i+0.5f);
-						for (int j=0; j<templateMaxWidth; ++j) {
-							float templatePixelLocation = j+0.5f;
-							this.interpolationWeights[e][w][i][j] = (float) Math.exp(m.gaussianLogProb((templatePixelLocation - emissionLocation)*(templatePixelLocation-emissionLocation), EXP_STD_DEVS[e]*interval));
-						}
-						a.normalizei(this.interpolationWeights[e][w][i]);
-						a.scalei(this.interpolationWeights[e][w][i], EXP_GAINS[e]);
-					}
 				}
 			}
+			buildInterpolationWeights();
 
 			this.paramIndexer = new IntArrayIndexer();
 			for (int i=0; i<this.templateWeights.length; ++i) {
@@ -154,6 +155,20 @@ public class CharacterTemplate implements Serializable {
 		}
 	}
  	
+	/**
+	 * A stamp that changes whenever the template's emission or width
+	 * parameters change, so that caches of its scores can tell whether they
+	 * are stale.  Stamps are never reused, even across templates.
+	 */
+	public long version() {
+		if (version == 0) bumpVersion();
+		return version;
+	}
+	
+	private void bumpVersion() {
+		version = nextVersion.incrementAndGet();
+	}
+	
 	public int[] allowedWidths() {
 		List<Integer> allowedWidths = new ArrayList<Integer>();
 		for (int w=templateMinWidth(); w<=templateMaxWidth(); ++w) {
@@ -218,6 +233,28 @@ public class CharacterTemplate implements Serializable {
 		return result;
 	}
 	
+	/**
+	 * logWhiteProbs for every vertical offset at once: each column has
+	 * LINE_HEIGHT+2*MAX_OFFSET rows, clamped at the top and bottom, so that
+	 * logWhiteProbs(exposure, offset, width)[i][j] == logWhiteProbsAllOffsets(exposure, width)[i][j+offset+MAX_OFFSET].
+	 */
+	public float[][] logWhiteProbsAllOffsets(int exposure, int width) {
+		return padForOffsets(logWhiteProbs(exposure, -MAX_OFFSET, width), logWhiteProbs(exposure, MAX_OFFSET, width));
+	}
+	
+	public float[][] logBlackProbsAllOffsets(int exposure, int width) {
+		return padForOffsets(logBlackProbs(exposure, -MAX_OFFSET, width), logBlackProbs(exposure, MAX_OFFSET, width));
+	}
+	
+	private static float[][] padForOffsets(float[][] lowestOffset, float[][] highestOffset) {
+		float[][] result = new float[lowestOffset.length][LINE_HEIGHT+2*MAX_OFFSET];
+		for (int i=0; i<lowestOffset.length; ++i) {
+			System.arraycopy(lowestOffset[i], 0, result[i], 0, LINE_HEIGHT);
+			System.arraycopy(highestOffset[i], LINE_HEIGHT-2*MAX_OFFSET, result[i], LINE_HEIGHT, 2*MAX_OFFSET);
+		}
+		return result;
+	}
+	
 	public float emissionLogProb(PixelType[][] observations, int startCol, int endCol, int exposure, int offset) {
 		int width = endCol - startCol;
 		float logProb = 0.0f;
@@ -353,11 +390,73 @@ public class CharacterTemplate implements Serializable {
 				for (int width=templateMinWidth; width<=templateMaxWidth; ++width) {
 					var += (mean - width) * (mean - width) * (templateWidthCounts[width-templateMinWidth] / totalCount);
 				}
-				templateWidthProbs = buildGuassianWidthProbs(mean, Math.max(widthMinVar, var), templateMinWidth, templateMaxWidth, widthStdThresh);
+				float[] newTemplateWidthProbs = buildGuassianWidthProbs(mean, Math.max(widthMinVar, var), templateMinWidth, templateMaxWidth, widthStdThresh);
+				if (!Arrays.equals(templateWidthProbs, newTemplateWidthProbs)) bumpVersion();
+				templateWidthProbs = newTemplateWidthProbs;
 			}
 		}
 	}
 
+	/**
+	 * Each rendered position is a Gaussian-weighted blend of the template
+	 * columns around it.  Weights below INTERPOLATION_WEIGHT_EPS of a row's
+	 * largest weight are too small to change a float inner product, so they
+	 * are dropped and the rest renormalized.
+	 */
+	private void buildInterpolationWeights() {
+		this.interpolationRowStarts = new int[EXP_GAINS.length][templateWidthProbs.length][];
+		this.interpolationColumns = new int[EXP_GAINS.length][templateWidthProbs.length][];
+		this.interpolationWeights = new float[EXP_GAINS.length][templateWidthProbs.length][];
+		for (int e=0; e<EXP_GAINS.length; ++e) {
+			for (int w=0; w<templateWidthProbs.length; ++w) {
+				int width = templateMinWidth+w;
+				float interval = ((float) templateMaxWidth) / ((float) width);
+				float[][] denseWeights = new float[width][templateMaxWidth];
+				int[] rowStarts = new int[width+1];
+				for (int i=0; i<width; ++i) {
+					float emissionLocation = interval*(i+0.5f);
+					for (int j=0; j<templateMaxWidth; ++j) {
+						float templatePixelLocation = j+0.5f;
+						denseWeights[i][j] = (float) Math.exp(m.gaussianLogProb((templatePixelLocation - emissionLocation)*(templatePixelLocation-emissionLocation), EXP_STD_DEVS[e]*interval));
+					}
+					float maxWeight = 0.0f;
+					for (int j=0; j<templateMaxWidth; ++j) maxWeight = Math.max(maxWeight, denseWeights[i][j]);
+					float threshold = INTERPOLATION_WEIGHT_EPS*maxWeight;
+					for (int j=0; j<templateMaxWidth; ++j) {
+						if (denseWeights[i][j] < threshold) denseWeights[i][j] = 0.0f;
+					}
+					a.normalizei(denseWeights[i]);
+					a.scalei(denseWeights[i], EXP_GAINS[e]);
+					int nonZeros = 0;
+					for (int j=0; j<templateMaxWidth; ++j) {
+						if (denseWeights[i][j] != 0.0f) nonZeros++;
+					}
+					rowStarts[i+1] = rowStarts[i] + nonZeros;
+				}
+				int[] columns = new int[rowStarts[width]];
+				float[] weights = new float[rowStarts[width]];
+				for (int i=0; i<width; ++i) {
+					int k = rowStarts[i];
+					for (int j=0; j<templateMaxWidth; ++j) {
+						if (denseWeights[i][j] != 0.0f) {
+							columns[k] = j;
+							weights[k] = denseWeights[i][j];
+							k++;
+						}
+					}
+				}
+				this.interpolationRowStarts[e][w] = rowStarts;
+				this.interpolationColumns[e][w] = columns;
+				this.interpolationWeights[e][w] = weights;
+			}
+		}
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (templateWeights != null) buildInterpolationWeights();
+	}
+
 	private static float[] buildGuassianWidthProbs(float mean, float var, int min, int max, float guassianWidthStdMultThreshold) {
 		float[] probs = new float[max-min+1];
 		for (int i=min; i<=max; ++i) {
@@ -374,8 +473,8 @@ public class CharacterTemplate implements Serializable {
 		if (!character.equals(Charset.SPACE)) {
 			for (int e=0; e<EXP_GAINS.length; ++e) {
 				Arrays.fill(templateCountSparsity[e], false);
-				for (int w=0; w<interpolationWeights[e].length; ++w) {
-					for (int pos=0; pos<interpolationWeights[e][w].length; ++pos) {
+				for (int w=0; w<templateBlackCounts[e].length; ++w) {
+					for (int pos=0; pos<templateBlackCounts[e][w].length; ++pos) {
 						Arrays.fill(templateBlackCounts[e][w][pos], 0.0f);
 						Arrays.fill(templateWhiteCounts[e][w][pos], 0.0f);
 					}
@@ -401,44 +500,103 @@ public class CharacterTemplate implements Serializable {
 	
 	private void updateEmissionParameters(float lbfgsTol, int iters) {
 		if (!character.equals(Charset.SPACE)) {
+			float[] initialParams = getParamVector();
+			long initialVersion = version();
 			Minimizer minimizer = new LBFGSMinimizer(lbfgsTol, iters);
-			double[] finalParams = minimizer.minimize(new NegExpectedLogLikelihoodFunc(), a.toDouble(getParamVector()), false, null);
+			double[] finalParams = minimizer.minimize(new NegExpectedLogLikelihoodFunc(), a.toDouble(initialParams), false, null);
 			setParamVector(a.toFloat(finalParams));
+			// the minimizer's trial points are not a change if it ends where it started
+			if (Arrays.equals(initialParams, getParamVector())) version = initialVersion;
 		}
 	}
 	
 	private void invalidateTemplateLogProbsCache() {
+		logProbTables = null;
 		for (int e=0; e<EXP_GAINS.length; ++e) {
 			Arrays.fill(templateLogProbsCached[e], false);
 		}
 	}
 	
-	private float[][] templateLogProbs(int width, int e, boolean black) {
-		if (!templateLogProbsCached[e][width-templateMinWidth()]) {
-			for (int pos=0; pos<width; ++pos) {
-				for (int j=0; j<LINE_HEIGHT; ++j) {
-					float innerProd = 0.0f;
-					for (int tpos=0; tpos<templateMaxWidth(); ++tpos) {
-						innerProd += interpolationWeights[e][width-templateMinWidth()][pos][tpos]*templateWeights[tpos][j];
+	/**
+	 * Pixel log-probabilities at every exposure and width, all filled.  The
+	 * tables are the lazy path's own arrays, which are not written again
+	 * until a parameter change has dropped the snapshot.
+	 */
+	private static final class LogProbTables {
+		final float[][][][] black;
+		final float[][][][] white;
+		
+		LogProbTables(float[][][][] black, float[][][][] white) {
+			this.black = black;
+			this.white = white;
+		}
+	}
+	
+	/**
+	 * Fill the pixel log-probability tables for every exposure and width that
+	 * the lazy path has not filled yet, and publish them as a snapshot, so
+	 * that readers no longer take the lazy path.  Call this after the
+	 * parameters change (e.g. after each M-step); any later parameter change
+	 * drops the snapshot again.  Does nothing if the current snapshot is
+	 * still valid.
+	 */
+	public void precompute() {
+		if (templateWeights == null || logProbTables != null) return;
+		synchronized (templateLogProbsCached) {
+			for (int e=0; e<EXP_GAINS.length; ++e) {
+				for (int w=0; w<templateWidthProbs.length; ++w) {
+					if (!templateLogProbsCached[e][w]) {
+						fillTemplateLogProbs(templateMinWidth() + w, e, templateLogBlackProbs[e][w], templateLogWhiteProbs[e][w]);
+						templateLogProbsCached[e][w] = true;
 					}
-					templateLogBlackProbs[e][width-templateMinWidth()][pos][j] = innerProd - (float) Math.log(1.0 + Math.exp(innerProd));
-					templateLogWhiteProbs[e][width-templateMinWidth()][pos][j] = (float) -Math.log(1.0 + Math.exp(innerProd));
 				}
 			}
-			templateLogProbsCached[e][width-templateMinWidth()] = true;
+			logProbTables = new LogProbTables(templateLogBlackProbs, templateLogWhiteProbs);
 		}
-		if (black) {
-			return templateLogBlackProbs[e][width-templateMinWidth()];
-		} else {
-			return templateLogWhiteProbs[e][width-templateMinWidth()];
+	}
+	
+	private void fillTemplateLogProbs(int width, int e, float[][] black, float[][] white) {
+		int[] rowStarts = interpolationRowStarts[e][width-templateMinWidth()];
+		int[] columns = interpolationColumns[e][width-templateMinWidth()];
+		float[] weights = interpolationWeights[e][width-templateMinWidth()];
+		for (int pos=0; pos<width; ++pos) {
+			for (int j=0; j<LINE_HEIGHT; ++j) {
+				float innerProd = 0.0f;
+				for (int k=rowStarts[pos]; k<rowStarts[pos+1]; ++k) {
+					innerProd += weights[k]*templateWeights[columns[k]][j];
+				}
+				black[pos][j] = innerProd - (float) Math.log(1.0 + Math.exp(innerProd));
+				white[pos][j] = (float) -Math.log(1.0 + Math.exp(innerProd));
+			}
+		}
+	}
+	
+	private float[][] templateLogProbs(int width, int e, boolean black) {
+		LogProbTables tables = logProbTables;
+		if (tables != null) {
+			return (black ? tables.black : tables.white)[e][width-templateMinWidth()];
+		}
+		synchronized (templateLogProbsCached) {
+			if (!templateLogProbsCached[e][width-templateMinWidth()]) {
+				fillTemplateLogProbs(width, e, templateLogBlackProbs[e][width-templateMinWidth()], templateLogWhiteProbs[e][width-templateMinWidth()]);
+				templateLogProbsCached[e][width-templateMinWidth()] = true;
+			}
+			if (black) {
+				return templateLogBlackProbs[e][width-templateMinWidth()];
+			} else {
+				return templateLogWhiteProbs[e][width-templateMinWidth()];
+			}
 		}
 	}
 
 	private void setParamVector(float[] params) {
+		boolean changed = false;
 		for (int i=0; i<params.length; ++i) {
 			int[]rowCol = paramIndexer.getObject(i);
+			if (templateWeights[rowCol[0]][rowCol[1]] != params[i]) changed = true;
 			templateWeights[rowCol[0]][rowCol[1]] = params[i];
 		}
+		if (changed) bumpVersion();
 		invalidateTemplateLogProbsCache();
 	}
 
@@ -483,11 +641,16 @@ public class CharacterTemplate implements Serializable {
 		for (int e=0; e<EXP_GAINS.length; ++e) {
 			for (int width=templateMinWidth; width<=templateMaxWidth; ++width) {
 				if (templateCountSparsity[e][width-templateMinWidth()]) {
+					int[] rowStarts = interpolationRowStarts[e][width-templateMinWidth()];
+					int[] columns = interpolationColumns[e][width-templateMinWidth()];
+					float[] weights = interpolationWeights[e][width-templateMinWidth()];
+					float[][] logBlackProbs = templateLogProbs(width, e, true);
 					for (int pos=0; pos<width; ++pos) {
 						for (int j=0; j<LINE_HEIGHT; ++j) {
-							for (int tpos=0; tpos<templateMaxWidth; ++tpos) {
-								int paramIndex = paramIndexer.getIndex(new int[] {tpos, j});
-								result[paramIndex] -=  interpolationWeights[e][width-templateMinWidth()][pos][tpos] * (templateBlackCounts[e][width-templateMinWidth()][pos][j] - (templateBlackCounts[e][width-templateMinWidth()][pos][j] + templateWhiteCounts[e][width-templateMinWidth()][pos][j]) * Math.exp(templateLogProbs(width, e, true)[pos][j]));
+							double residual = templateBlackCounts[e][width-templateMinWidth()][pos][j] - (templateBlackCounts[e][width-templateMinWidth()][pos][j] + templateWhiteCounts[e][width-templateMinWidth()][pos][j]) * Math.exp(logBlackProbs[pos][j]);
+							for (int k=rowStarts[pos]; k<rowStarts[pos+1]; ++k) {
+								int paramIndex = paramIndexer.getIndex(new int[] {columns[k], j});
+								result[paramIndex] -=  weights[k] * residual;
 							}
 						}
 					}
@@ -3,9 +3,19 @@ package edu.berkeley.cs.nlp.ocular.model;
 import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.berkeley.cs.nlp.ocular.data.Document;
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphChar;
 import edu.berkeley.cs.nlp.ocular.gsm.GlyphSubstitutionModel;
 import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.lm.CodeSwitchLanguageModel;
@@ -14,9 +24,13 @@ import edu.berkeley.cs.nlp.ocular.model.em.BeamingSemiMarkovDP;
 import edu.berkeley.cs.nlp.ocular.model.em.DenseBigramTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel.EmissionModelFactory;
+import edu.berkeley.cs.nlp.ocular.model.emission.LazyEmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.emission.LineSubsetEmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.emission.PrunedEmissionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModelMarkovOffset;
 import edu.berkeley.cs.nlp.ocular.model.transition.CodeSwitchTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.CompiledTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
 import edu.berkeley.cs.nlp.ocular.util.Tuple2;
@@ -37,13 +51,27 @@ public class DecoderEM {
 	private boolean markovVerticalOffset;
 	
 	private int beamSize;
+	private int minBeamSize;
+	private double beamMargin;
+	private int beamRetries;
 	private int numDecodeThreads;
 	private int numMstepThreads;
 	private int decodeBatchSize;
+	private boolean pipelineDecodeBatches;
+	private double decodeMemoryBudgetGb;
+	private boolean primitiveBeam;
+	private int coarseBackwardTopK;
+	private boolean speculativeDecode;
+	private int transitionCacheSize;
+	private int twoPassBeamSize;
+	private double twoPassMinScoreMargin;
+	private double twoPassMaxScoreDrop;
 	
 	public DecoderEM(EmissionModelFactory emissionModelFactory, boolean allowGlyphSubstitution, double noCharSubPrior, boolean elideAnything,
 			boolean allowLanguageSwitchOnPunct, boolean markovVerticalOffset,
-			int beamSize, int numDecodeThreads, int numMstepThreads, int decodeBatchSize) {
+			int beamSize, int minBeamSize, double beamMargin, int beamRetries, int numDecodeThreads, int numMstepThreads, int decodeBatchSize, boolean pipelineDecodeBatches, double decodeMemoryBudgetGb,
+			boolean primitiveBeam, int coarseBackwardTopK, boolean speculativeDecode, int transitionCacheSize,
+			int twoPassBeamSize, double twoPassMinScoreMargin, double twoPassMaxScoreDrop) {
 		this.emissionModelFactory = emissionModelFactory;
 		this.allowGlyphSubstitution = allowGlyphSubstitution;
 		this.noCharSubPrior = noCharSubPrior;
@@ -51,9 +79,21 @@ public class DecoderEM {
 		this.allowLanguageSwitchOnPunct = allowLanguageSwitchOnPunct;
 		this.markovVerticalOffset = markovVerticalOffset;
 		this.beamSize = beamSize;
+		this.minBeamSize = minBeamSize;
+		this.beamMargin = beamMargin;
+		this.beamRetries = beamRetries;
 		this.numDecodeThreads = numDecodeThreads;
 		this.numMstepThreads = numMstepThreads;
 		this.decodeBatchSize = decodeBatchSize;
+		this.pipelineDecodeBatches = pipelineDecodeBatches;
+		this.decodeMemoryBudgetGb = decodeMemoryBudgetGb;
+		this.primitiveBeam = primitiveBeam;
+		this.coarseBackwardTopK = coarseBackwardTopK;
+		this.speculativeDecode = speculativeDecode;
+		this.transitionCacheSize = transitionCacheSize;
+		this.twoPassBeamSize = twoPassBeamSize;
+		this.twoPassMinScoreMargin = twoPassMinScoreMargin;
+		this.twoPassMaxScoreDrop = twoPassMaxScoreDrop;
 	}
 
 	public Tuple2<DecodeState[][], Double> computeEStep(
@@ -62,75 +102,326 @@ public class DecoderEM {
 			DenseBigramTransitionModel backwardTransitionModel) {
 		
 		final PixelType[][][] pixels = doc.loadLineImages();
+		precomputeTemplates(templates);
 		
 		DecodeState[][] allDecodeStates = new DecodeState[pixels.length][0];
 
 		long totalDecodeNanoTime = 0;
-		long totalEmitNanoTime = 0;
+		long totalEmitWaitNanoTime = 0;
+		final long[] totalEmitNanoTime = new long[1];
+		long overallNanoTime = System.nanoTime();
 		double totalJointLogProb = 0.0;
-		int numBatches = (int) Math.ceil(pixels.length / (double) decodeBatchSize);
-		for (int b = 0; b < numBatches; ++b) {
-			System.gc();
-			System.gc();
-			System.gc();
-
-			System.out.println("Batch: " + b);
-
-			int startLine = b * decodeBatchSize;
-			int endLine = Math.min((b + 1) * decodeBatchSize, pixels.length);
-			PixelType[][][] batchPixels = new PixelType[endLine - startLine][][];
-			for (int line = startLine; line < endLine; ++line) {
-				batchPixels[line - startLine] = pixels[line];
-			}
+		final long[] predictedLineBytes = new long[pixels.length];
+		for (int line = 0; line < pixels.length; ++line) {
+			predictedLineBytes[line] = emissionModelFactory.predictLineCacheMemoryBytes(templates, pixels[line].length);
+		}
+		final int[] batchStartLines = makeBatches(predictedLineBytes);
+		int numBatches = batchStartLines.length - 1;
+		// One transition model for the whole document, so that the states and transitions it compiles are shared by every batch.
+		System.out.println("Constructing forwardTransitionModel");
+		SparseTransitionModel forwardTransitionModel = constructTransitionModel(lm, gsm);
+		SparseTransitionModel firstPassTransitionModel = (twoPassBeamSize > 0) ? constructFirstPassTransitionModel(lm, forwardTransitionModel) : null;
+		final int firstPassLanguage = (firstPassTransitionModel != null && firstPassTransitionModel != forwardTransitionModel) ? highestPriorLanguage(lm) : -1;
+		ExecutorService emissionExecutor = pipelineDecodeBatches ? Executors.newSingleThreadExecutor() : null;
+		try {
+			// At most two emission caches are live at once: the one being decoded and the one being built for the next batch.
+			Future<EmissionModel> nextEmissionModel = null;
+			for (int b = 0; b < numBatches; ++b) {
+				System.out.println("Batch: " + b);
 
-			System.out.println("Initializing EmissionModel    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			final EmissionModel batchEmissionModel = emissionModelFactory.make(templates, batchPixels);
-			System.out.println("Rebuilding cache    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			//long emissionCacheNanoTime = System.nanoTime();
-			long nanoTime = System.nanoTime();
-			batchEmissionModel.rebuildCache();
-			totalEmitNanoTime += (System.nanoTime() - nanoTime);
-			System.out.println("Done rebuilding cache    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
-			//overallEmissionCacheNanoTime += (System.nanoTime() - emissionCacheNanoTime);
-
-			nanoTime = System.nanoTime();
-			System.out.println("Constructing forwardTransitionModel");
-			SparseTransitionModel forwardTransitionModel = constructTransitionModel(lm, gsm);
-			BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(batchEmissionModel, forwardTransitionModel, backwardTransitionModel);
-			System.out.println("Ready to run decoder");
-			Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeStatesAndWidthsAndJointLogProb = dp.decode(beamSize, numDecodeThreads);
-			System.out.println("Done running decoder");
-			totalDecodeNanoTime += (System.nanoTime() - nanoTime);
-			final TransitionState[][] batchDecodeStates = decodeStatesAndWidthsAndJointLogProb._1._1;
-			final int[][] batchDecodeWidths = decodeStatesAndWidthsAndJointLogProb._1._2;
-			totalJointLogProb += decodeStatesAndWidthsAndJointLogProb._2;
-			for (int batchLine = 0; batchLine < batchEmissionModel.numSequences(); ++batchLine) {
-				int line = startLine + batchLine;
-				TransitionState[] decodeStates = batchDecodeStates[batchLine];
-				int[] decodeWidths = batchDecodeWidths[batchLine];
-				allDecodeStates[line] = new DecodeState[decodeStates.length];
-				int stateStartCol = 0;
-				for (int di=0; di<decodeStates.length; ++di) {
-					int charAndPadWidth = decodeWidths[di];
-					int padWidth = batchEmissionModel.getPadWidth(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
-					int exposure = batchEmissionModel.getExposure(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
-					int verticalOffset = batchEmissionModel.getOffset(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
-					allDecodeStates[line][di] = new DecodeState(decodeStates[di], charAndPadWidth, padWidth, exposure, verticalOffset);
-					stateStartCol += charAndPadWidth;
+				int startLine = batchStartLines[b];
+				long nanoTime = System.nanoTime();
+				final EmissionModel batchEmissionModel;
+				if (nextEmissionModel != null) {
+					batchEmissionModel = getEmissionModel(nextEmissionModel);
+					nextEmissionModel = null;
+				} else {
+					batchEmissionModel = makeBatchEmissionModel(templates, pixels, batchStartLines, predictedLineBytes, b, totalEmitNanoTime);
+				}
+				totalEmitWaitNanoTime += (System.nanoTime() - nanoTime);
+				if (emissionExecutor != null && b+1 < numBatches) {
+					final int nextBatch = b+1;
+					nextEmissionModel = emissionExecutor.submit(new Callable<EmissionModel>() {
+						public EmissionModel call() {
+							return makeBatchEmissionModel(templates, pixels, batchStartLines, predictedLineBytes, nextBatch, totalEmitNanoTime);
+						}
+					});
 				}
-			}
 
-			if (updateFontParameterCounts) {
-				System.out.println("Ready to run increment counts");
-				incrementCounts(batchEmissionModel, batchDecodeStates, batchDecodeWidths);
+				nanoTime = System.nanoTime();
+				Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeStatesAndWidthsAndJointLogProb;
+				if (firstPassTransitionModel != null) {
+					decodeStatesAndWidthsAndJointLogProb = decodeTwoPass(batchEmissionModel, firstPassTransitionModel, firstPassLanguage, forwardTransitionModel, backwardTransitionModel);
+				}
+				else {
+					BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(batchEmissionModel, forwardTransitionModel, backwardTransitionModel, primitiveBeam, coarseBackwardTopK);
+					System.out.println("Ready to run decoder");
+					decodeStatesAndWidthsAndJointLogProb = dp.decode(beamSize, minBeamSize, beamMargin, beamRetries, numDecodeThreads, speculativeDecode);
+					System.out.println("Done running decoder");
+				}
+				totalDecodeNanoTime += (System.nanoTime() - nanoTime);
+				final TransitionState[][] batchDecodeStates = decodeStatesAndWidthsAndJointLogProb._1._1;
+				final int[][] batchDecodeWidths = decodeStatesAndWidthsAndJointLogProb._1._2;
+				printEmissionModelStatistics(batchEmissionModel, batchDecodeStates, batchDecodeWidths);
+				totalJointLogProb += decodeStatesAndWidthsAndJointLogProb._2;
+				for (int batchLine = 0; batchLine < batchEmissionModel.numSequences(); ++batchLine) {
+					int line = startLine + batchLine;
+					TransitionState[] decodeStates = batchDecodeStates[batchLine];
+					int[] decodeWidths = batchDecodeWidths[batchLine];
+					allDecodeStates[line] = new DecodeState[decodeStates.length];
+					int stateStartCol = 0;
+					for (int di=0; di<decodeStates.length; ++di) {
+						int charAndPadWidth = decodeWidths[di];
+						int padWidth = batchEmissionModel.getPadWidth(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
+						int exposure = batchEmissionModel.getExposure(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
+						int verticalOffset = batchEmissionModel.getOffset(batchLine, stateStartCol, decodeStates[di], charAndPadWidth);
+						allDecodeStates[line][di] = new DecodeState(decodeStates[di], charAndPadWidth, padWidth, exposure, verticalOffset);
+						stateStartCol += charAndPadWidth;
+					}
+				}
+
+				if (updateFontParameterCounts) {
+					// Only touches the templates' counts, so it is safe alongside the next batch's emission cache, which only reads their parameters.
+					System.out.println("Ready to run increment counts");
+					incrementCounts(batchEmissionModel, batchDecodeStates, batchDecodeWidths);
+				}
+				// No decode holds transition state ids between batches, so this is where the interned states can be dropped.
+				if (forwardTransitionModel instanceof CodeSwitchTransitionModel) ((CodeSwitchTransitionModel) forwardTransitionModel).trimInternedStates(CodeSwitchTransitionModel.MAX_INTERNED_STATES);
 			}
 		}
-		System.out.println("Emission cache: " + (totalEmitNanoTime / 1000000) + "ms");
-		System.out.println("Decode: " + (totalDecodeNanoTime / 1000000) + "ms");
+		finally {
+			if (emissionExecutor != null) emissionExecutor.shutdownNow();
+		}
+		System.out.println("Emission cache: " + (totalEmitNanoTime[0] / 1000000) + "ms" + (pipelineDecodeBatches ? " (waited " + (totalEmitWaitNanoTime / 1000000) + "ms for it)" : ""));
+		System.out.println("Decode: " + (totalDecodeNanoTime / 1000000) + "ms" + (forwardTransitionModel instanceof CompiledTransitionModel ? " (" + ((CompiledTransitionModel) forwardTransitionModel).numStates() + " transition states compiled)" : ""));
+		if (forwardTransitionModel instanceof CodeSwitchTransitionModel) ((CodeSwitchTransitionModel) forwardTransitionModel).printCacheStatistics();
+		System.out.println("E-step total: " + ((System.nanoTime() - overallNanoTime) / 1000000) + "ms");
 		double avgLogProb = totalJointLogProb / numBatches;
 		return Tuple2(allDecodeStates, avgLogProb);
 	}
 
+	/**
+	 * Split the lines into consecutive batches: decodeBatchSize lines each,
+	 * or, if decodeMemoryBudgetGb is set, as many lines as fit the budget by
+	 * their predicted emission cache sizes (half the budget per batch when
+	 * pipelining, since two batches' caches are then live).  A line that
+	 * alone exceeds the budget gets a batch of its own.
+	 * 
+	 * @return The start line of each batch, followed by the number of lines.
+	 */
+	private int[] makeBatches(long[] predictedLineBytes) {
+		int numLines = predictedLineBytes.length;
+		List<Integer> batchStartLines = new ArrayList<Integer>();
+		if (decodeMemoryBudgetGb <= 0.0) {
+			for (int line = 0; line < numLines; line += decodeBatchSize)
+				batchStartLines.add(line);
+		}
+		else {
+			long batchBudgetBytes = (long) (decodeMemoryBudgetGb * 1e9 / (pipelineDecodeBatches ? 2 : 1));
+			long batchBytes = 0;
+			for (int line = 0; line < numLines; ++line) {
+				if (line == 0 || batchBytes + predictedLineBytes[line] > batchBudgetBytes) {
+					batchStartLines.add(line);
+					batchBytes = 0;
+				}
+				if (predictedLineBytes[line] > batchBudgetBytes)
+					System.out.printf("Warning: line %d alone is predicted to need %.3fgb of emission cache, over the per-batch budget of %.3fgb\n", line, predictedLineBytes[line] / 1e9, batchBudgetBytes / 1e9);
+				batchBytes += predictedLineBytes[line];
+			}
+			System.out.printf("Packed %d lines into %d decode batches of at most %.3fgb predicted emission cache each\n", numLines, batchStartLines.size(), batchBudgetBytes / 1e9);
+		}
+		int[] result = new int[batchStartLines.size() + 1];
+		for (int b = 0; b < batchStartLines.size(); ++b)
+			result[b] = batchStartLines.get(b);
+		result[batchStartLines.size()] = numLines;
+		return result;
+	}
+
+	private EmissionModel makeBatchEmissionModel(CharacterTemplate[] templates, PixelType[][][] pixels, int[] batchStartLines, long[] predictedLineBytes, int b, long[] totalEmitNanoTime) {
+		int startLine = batchStartLines[b];
+		int endLine = batchStartLines[b + 1];
+		PixelType[][][] batchPixels = new PixelType[endLine - startLine][][];
+		long predictedBytes = 0;
+		for (int line = startLine; line < endLine; ++line) {
+			batchPixels[line - startLine] = pixels[line];
+			predictedBytes += predictedLineBytes[line];
+		}
+
+		System.out.println("Initializing EmissionModel for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+		EmissionModel batchEmissionModel = emissionModelFactory.make(templates, batchPixels);
+		System.out.println("Rebuilding cache for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+		long nanoTime = System.nanoTime();
+		batchEmissionModel.rebuildCache();
+		synchronized (totalEmitNanoTime) {
+			totalEmitNanoTime[0] += (System.nanoTime() - nanoTime);
+		}
+		System.out.println("Done rebuilding cache for batch " + b + "    " + (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime())));
+		System.out.printf("Emission cache for batch %d (lines %d-%d): predicted %.3fgb, actual %.3fgb\n", b, startLine, endLine - 1, predictedBytes / 1e9, batchEmissionModel.cacheMemoryBytes() / 1e9);
+		return batchEmissionModel;
+	}
+
+	private static EmissionModel getEmissionModel(Future<EmissionModel> emissionModel) {
+		try {
+			return emissionModel.get();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decode the batch with twoPassBeamSize and the first-pass transition
+	 * model, then decode again, with beamSize and the full transition model,
+	 * only the lines the first pass was not confident in.  A line is confident
+	 * if the best state ending it beat the next best by at least
+	 * twoPassMinScoreMargin, and its log probability per column is no more
+	 * than twoPassMaxScoreDrop below the batch's median.  Each run of
+	 * consecutive unconfident lines is decoded on its own, from the full
+	 * model's start states, using the batch's emission cache.  If the first
+	 * pass is monolingual (firstPassLanguage >= 0), the states of the lines
+	 * kept from it are tagged with its language.
+	 * 
+	 * @return The decode, and its log probability: the sum of the first pass's
+	 * confident lines and the second pass's runs.  The kept lines are scored by
+	 * the first-pass model, so this is not the full model's joint log
+	 * probability of the decode, and can't be compared with a one-pass
+	 * decode's.
+	 */
+	private Tuple2<Tuple2<TransitionState[][], int[][]>, Double> decodeTwoPass(EmissionModel emissionModel, SparseTransitionModel firstPassTransitionModel, int firstPassLanguage, SparseTransitionModel forwardTransitionModel, DenseBigramTransitionModel backwardTransitionModel) {
+		int numLines = emissionModel.numSequences();
+		BeamingSemiMarkovDP firstPass = new BeamingSemiMarkovDP(emissionModel, firstPassTransitionModel, backwardTransitionModel, primitiveBeam, coarseBackwardTopK);
+		System.out.println("Ready to run first-pass decoder");
+		Tuple2<Tuple2<TransitionState[][], int[][]>, Double> firstPassDecode = firstPass.decode(twoPassBeamSize, minBeamSize, beamMargin, beamRetries, numDecodeThreads, speculativeDecode);
+		System.out.println("Done running first-pass decoder");
+		TransitionState[][] decodeStates = firstPassDecode._1._1;
+		int[][] decodeWidths = firstPassDecode._1._2;
+		double[] lineLogProbs = firstPass.lineLogProbs();
+		double[] scoreMargins = firstPass.lineScoreMargins();
+
+		double[] columnLogProbs = new double[numLines];
+		for (int line = 0; line < numLines; ++line)
+			columnLogProbs[line] = lineLogProbs[line] / Math.max(1, emissionModel.sequenceLength(line));
+		double[] sortedColumnLogProbs = columnLogProbs.clone();
+		Arrays.sort(sortedColumnLogProbs);
+		double medianColumnLogProb = (numLines > 0) ? sortedColumnLogProbs[numLines / 2] : 0.0;
+		boolean[] redecode = new boolean[numLines];
+		int numRedecoded = 0;
+		for (int line = 0; line < numLines; ++line) {
+			redecode[line] = scoreMargins[line] < twoPassMinScoreMargin || columnLogProbs[line] < medianColumnLogProb - twoPassMaxScoreDrop;
+			if (redecode[line]) ++numRedecoded;
+			System.out.printf("Line %d: first-pass log prob per column %.3f (median %.3f), margin %.3f%s\n", line, columnLogProbs[line], medianColumnLogProb, scoreMargins[line], (redecode[line] ? ", decoding again" : ""));
+		}
+
+		double jointLogProb = 0.0;
+		int line = 0;
+		while (line < numLines) {
+			if (!redecode[line]) {
+				jointLogProb += lineLogProbs[line];
+				if (firstPassLanguage >= 0) {
+					for (int i = 0; i < decodeStates[line].length; ++i)
+						decodeStates[line][i] = new LanguageTaggedState(decodeStates[line][i], firstPassLanguage);
+				}
+				++line;
+				continue;
+			}
+			int endLine = line;
+			while (endLine < numLines && redecode[endLine]) ++endLine;
+			int[] runLines = new int[endLine - line];
+			for (int i = 0; i < runLines.length; ++i)
+				runLines[i] = line + i;
+			BeamingSemiMarkovDP secondPass = new BeamingSemiMarkovDP(new LineSubsetEmissionModel(emissionModel, runLines), forwardTransitionModel, backwardTransitionModel, primitiveBeam, coarseBackwardTopK);
+			System.out.println("Ready to run decoder on lines " + line + "-" + (endLine - 1));
+			Tuple2<Tuple2<TransitionState[][], int[][]>, Double> runDecode = secondPass.decode(beamSize, minBeamSize, beamMargin, beamRetries, Math.min(numDecodeThreads, runLines.length), speculativeDecode);
+			System.out.println("Done running decoder");
+			for (int i = 0; i < runLines.length; ++i) {
+				decodeStates[runLines[i]] = runDecode._1._1[i];
+				decodeWidths[runLines[i]] = runDecode._1._2[i];
+			}
+			jointLogProb += runDecode._2;
+			line = endLine;
+		}
+		System.out.println("Two-pass decode: decoded " + numRedecoded + " of " + numLines + " lines again with the full model (the log probability counts the other lines under the first-pass model)");
+		return Tuple2(Tuple2(decodeStates, decodeWidths), jointLogProb);
+	}
+
+	/**
+	 * The cheap transition model for the first of two decoding passes: when
+	 * the full model is a CodeSwitchTransitionModel, a monolingual model of
+	 * the language with the highest prior, without glyph substitution;
+	 * otherwise the full model itself.
+	 */
+	private SparseTransitionModel constructFirstPassTransitionModel(CodeSwitchLanguageModel codeSwitchLM, SparseTransitionModel forwardTransitionModel) {
+		if (!(forwardTransitionModel instanceof CodeSwitchTransitionModel)) {
+			System.out.println("Using the same transition model for the first decoding pass");
+			return forwardTransitionModel;
+		}
+		int bestLanguage = highestPriorLanguage(codeSwitchLM);
+		System.out.println("Using CharacterNgramTransitionModel for " + codeSwitchLM.getLanguageIndexer().getObject(bestLanguage) + " for the first decoding pass");
+		return new CharacterNgramTransitionModel(codeSwitchLM.get(bestLanguage));
+	}
+
+	private static int highestPriorLanguage(CodeSwitchLanguageModel codeSwitchLM) {
+		int bestLanguage = 0;
+		for (int language = 1; language < codeSwitchLM.getLanguageIndexer().size(); ++language) {
+			if (codeSwitchLM.languagePrior(language) > codeSwitchLM.languagePrior(bestLanguage)) bestLanguage = language;
+		}
+		return bestLanguage;
+	}
+
+	/**
+	 * A state decoded by the monolingual first pass, which has no language of
+	 * its own, reporting the first pass's language.
+	 */
+	private static class LanguageTaggedState implements TransitionState {
+		private final TransitionState ts;
+		private final int language;
+
+		public LanguageTaggedState(TransitionState ts, int language) {
+			this.ts = ts;
+			this.language = language;
+		}
+
+		public int getLanguageIndex() {
+			return language;
+		}
+
+		public int getLmCharIndex() {
+			return ts.getLmCharIndex();
+		}
+
+		public GlyphChar getGlyphChar() {
+			return ts.getGlyphChar();
+		}
+
+		public TransitionStateType getType() {
+			return ts.getType();
+		}
+
+		public int getOffset() {
+			return ts.getOffset();
+		}
+
+		public int getExposure() {
+			return ts.getExposure();
+		}
+
+		public Collection<Tuple2<TransitionState, Double>> forwardTransitions() {
+			return ts.forwardTransitions();
+		}
+
+		public Collection<Tuple2<TransitionState, Double>> nextLineStartStates() {
+			return ts.nextLineStartStates();
+		}
+
+		public double endLogProb() {
+			return ts.endLogProb();
+		}
+	}
+
 	private SparseTransitionModel constructTransitionModel(CodeSwitchLanguageModel codeSwitchLM, GlyphSubstitutionModel codeSwitchGSM) {
 		SparseTransitionModel transitionModel;
 		
@@ -143,7 +434,7 @@ public class DecoderEM {
 					throw new RuntimeException("Markov vertical offset transition model not currently supported for multiple languages.");
 			}
 			else { 
-				transitionModel = new CodeSwitchTransitionModel(codeSwitchLM, allowLanguageSwitchOnPunct, codeSwitchGSM, allowGlyphSubstitution, noCharSubPrior, elideAnything);
+				transitionModel = new CodeSwitchTransitionModel(codeSwitchLM, allowLanguageSwitchOnPunct, codeSwitchGSM, allowGlyphSubstitution, noCharSubPrior, elideAnything, transitionCacheSize);
 				System.out.println("Using CodeSwitchLanguageModel, GlyphSubstitutionModel, and CodeSwitchTransitionModel");
 			}
 		}
@@ -161,6 +452,33 @@ public class DecoderEM {
 		return transitionModel;
 	}
 	
+	private static void printEmissionModelStatistics(EmissionModel emissionModel, TransitionState[][] decodeStates, int[][] decodeWidths) {
+		if (emissionModel instanceof PrunedEmissionModel) {
+			((PrunedEmissionModel) emissionModel).printPruningStatistics(decodeStates, decodeWidths);
+			printEmissionModelStatistics(((PrunedEmissionModel) emissionModel).getDelegate(), decodeStates, decodeWidths);
+		} else if (emissionModel instanceof LazyEmissionModel) {
+			((LazyEmissionModel) emissionModel).printCacheStatistics();
+		}
+	}
+	
+	/**
+	 * Fill every template's log-probability tables up front, in parallel, so
+	 * that the emission and count threads only ever read them.
+	 */
+	private void precomputeTemplates(final CharacterTemplate[] templates) {
+		long nanoTime = System.nanoTime();
+		BetterThreader.Function<Integer, Object> func = new BetterThreader.Function<Integer, Object>() {
+			public void call(Integer c, Object ignore) {
+				if (templates[c] != null) templates[c].precompute();
+			}
+		};
+		BetterThreader<Integer, Object> threader = new BetterThreader<Integer, Object>(func, numMstepThreads);
+		for (int c = 0; c < templates.length; ++c)
+			threader.addFunctionArgument(c);
+		threader.run();
+		System.out.println("Precompute templates: " + ((System.nanoTime() - nanoTime) / 1000000) + "ms");
+	}
+	
 	private void incrementCounts(final EmissionModel emissionModel, final TransitionState[][] batchDecodeStates, final int[][] batchDecodeWidths) {
 		long nanoTime = System.nanoTime();
 		BetterThreader.Function<Integer, Object> func = new BetterThreader.Function<Integer, Object>() {
@@ -14,16 +14,18 @@ import tberg.murphy.threading.BetterThreader;
 import tberg.murphy.util.GeneralPriorityQueue;
 import tberg.murphy.arrays.a;
 import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.CompiledTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
 import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import edu.berkeley.cs.nlp.ocular.util.WorkScheduler;
 
 /**
  * @author Taylor Berg-Kirkpatrick (tberg@eecs.berkeley.edu)
  */
 public class BeamingSemiMarkovDP {
 	
-	private static class BeamState {
+	static class BeamState {
 		private final TransitionState transState;
 		public double score = Double.NEGATIVE_INFINITY;
 		public Tuple2<Integer,TransitionState> backPointer = null;
@@ -42,104 +44,391 @@ public class BeamingSemiMarkovDP {
 		}
 	}
 	
+	// Speculative start state scores are taken to be off by a constant if their differences from the actual ones agree to within this
+	private static final double SPECULATIVE_SCORE_TOLERANCE = 1e-6;
+	
 	private GeneralPriorityQueue<BeamState>[][] alphas;
 	double[][][] betas;
 	private SparseTransitionModel forwardTransitionModel;
+	// forwardTransitionModel, if its transitions can be expanded as primitive arrays
+	private CompiledTransitionModel compiledTransitionModel;
 	private DenseBigramTransitionModel backwardTransitionModel;
+	// With coarseBackwardTopK > 0, the coarse backward pass only follows each character's top k successors
+	private int coarseBackwardTopK;
 	private EmissionModel emissionModel;
+	
+	// With primitiveBeam, the beams for all lines live in one PrimitiveBeam, line d's
+	// column t being primitiveAlphas column columnOffsets[d]+t.  A backpointer into
+	// column 0 of a line is a slot in that line's lineStartStates.
+	private boolean primitiveBeam;
+	private PrimitiveBeam primitiveAlphas;
+	private int[] columnOffsets;
+	private BeamState[][] lineStartStates;
+	// A line whose beam had to be widened gets a PrimitiveBeam of its own, its column t being column t
+	private PrimitiveBeam[] widenedBeams;
+	
+	// Adaptive beam (see decode), and the beam sizes each line ended up with
+	private int minBeamSize;
+	private double beamMargin;
+	private int beamRetries;
+	double[] meanBeamSizes;
+	private int[] maxBeamSizes;
+	int[] lineBeamSizes;
+	
+	// The decoded path's score at the end of each line, whether the line's path started from the end of the previous line's, and how far the best state ending the line is ahead of the next best
+	private double[] lineEndScores;
+	private boolean[] lineContinuesPath;
+	private double[] lineScoreMargins;
+	// What to add to a line's beam scores to put them on the serial decode's scale: nonzero only for lines whose speculative beams were kept
+	private double[] lineScoreOffsets;
 
-	@SuppressWarnings("unchecked")
 	public BeamingSemiMarkovDP(EmissionModel emissionModel, SparseTransitionModel forwardTransitionModel, DenseBigramTransitionModel backwardTransitionModel) {
+		this(emissionModel, forwardTransitionModel, backwardTransitionModel, false);
+	}
+
+	/**
+	 * With primitiveBeam, keep the beams in a PrimitiveBeam instead of priority queues.
+	 */
+	public BeamingSemiMarkovDP(EmissionModel emissionModel, SparseTransitionModel forwardTransitionModel, DenseBigramTransitionModel backwardTransitionModel, boolean primitiveBeam) {
+		this(emissionModel, forwardTransitionModel, backwardTransitionModel, primitiveBeam, 0);
+	}
+
+	/**
+	 * With coarseBackwardTopK > 0, compute the coarse backward scores from only
+	 * the coarseBackwardTopK most likely successors of each character (see
+	 * doSparseCoarseBackwardPassLogSpace).
+	 */
+	@SuppressWarnings("unchecked")
+	public BeamingSemiMarkovDP(EmissionModel emissionModel, SparseTransitionModel forwardTransitionModel, DenseBigramTransitionModel backwardTransitionModel, boolean primitiveBeam, int coarseBackwardTopK) {
 		this.emissionModel = emissionModel;
 		this.forwardTransitionModel = forwardTransitionModel;
+		this.compiledTransitionModel = (forwardTransitionModel instanceof CompiledTransitionModel) ? (CompiledTransitionModel) forwardTransitionModel : null;
 		this.backwardTransitionModel = backwardTransitionModel;
-		this.alphas = new GeneralPriorityQueue[emissionModel.numSequences()][];
-		for (int d=0; d<emissionModel.numSequences(); ++d) {
-			this.alphas[d] = new GeneralPriorityQueue[emissionModel.sequenceLength(d)+1];
-			for (int t=0; t<emissionModel.sequenceLength(d)+1; ++t) {
-				this.alphas[d][t] = new GeneralPriorityQueue<BeamState>();
+		this.coarseBackwardTopK = coarseBackwardTopK;
+		this.primitiveBeam = primitiveBeam;
+		if (primitiveBeam) {
+			this.columnOffsets = new int[emissionModel.numSequences()+1];
+			for (int d=0; d<emissionModel.numSequences(); ++d) {
+				this.columnOffsets[d+1] = columnOffsets[d] + emissionModel.sequenceLength(d)+1;
+			}
+			this.lineStartStates = new BeamState[emissionModel.numSequences()][];
+			this.widenedBeams = new PrimitiveBeam[emissionModel.numSequences()];
+		} else {
+			this.alphas = new GeneralPriorityQueue[emissionModel.numSequences()][];
+			for (int d=0; d<emissionModel.numSequences(); ++d) {
+				this.alphas[d] = new GeneralPriorityQueue[emissionModel.sequenceLength(d)+1];
+				for (int t=0; t<emissionModel.sequenceLength(d)+1; ++t) {
+					this.alphas[d][t] = new GeneralPriorityQueue<BeamState>();
+				}
 			}
 		}
 		this.betas = new double[emissionModel.numSequences()][][];
 		for (int d=0; d<emissionModel.numSequences(); ++d) {
 			this.betas[d] = new double[emissionModel.sequenceLength(d)+1][emissionModel.numChars()];
 		}
+		this.meanBeamSizes = new double[emissionModel.numSequences()];
+		this.maxBeamSizes = new int[emissionModel.numSequences()];
+		this.lineBeamSizes = new int[emissionModel.numSequences()];
+		this.lineEndScores = new double[emissionModel.numSequences()];
+		this.lineContinuesPath = new boolean[emissionModel.numSequences()];
+		this.lineScoreMargins = new double[emissionModel.numSequences()];
+		this.lineScoreOffsets = new double[emissionModel.numSequences()];
 	}
 
 	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int numThreads) {
+		return decode(beamSize, numThreads, false);
+	}
+
+	/**
+	 * With speculative, decode with multiple threads using decodeSpeculative,
+	 * which gives the same result as a single-threaded decode.  Otherwise each
+	 * thread's block of lines is decoded from the generic start states.
+	 */
+	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int numThreads, boolean speculative) {
+		return decode(beamSize, beamSize, 0.0, 0, numThreads, speculative);
+	}
+
+	/**
+	 * Decode with an adaptive beam.  With beamMargin > 0, each column's beam
+	 * is pruned, before it is extended, to the states whose score plus coarse
+	 * backward score is within beamMargin of the best, keeping at least
+	 * minBeamSize states; beams never hold more than beamSize.  When no state
+	 * reaches the end of a line, the line is decoded again with twice the
+	 * beamSize and beamMargin, up to beamRetries times, instead of being lost.
+	 */
+	public Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode(final int beamSize, int minBeamSize, double beamMargin, int beamRetries, int numThreads, boolean speculative) {
 		System.out.print("Decoding");
 		
-		if (numThreads == 1) return decodeSingleThread(beamSize);
-		else return decodeMultipleThreads(beamSize, numThreads);
+		this.minBeamSize = Math.max(1, Math.min(minBeamSize, beamSize));
+		this.beamMargin = beamMargin;
+		this.beamRetries = beamRetries;
+		if (primitiveBeam) {
+			int numColumns = columnOffsets[emissionModel.numSequences()];
+			if (primitiveAlphas == null) primitiveAlphas = new PrimitiveBeam(beamSize, numColumns);
+			else primitiveAlphas.clear(beamSize, numColumns);
+			Arrays.fill(widenedBeams, null);
+		}
+		Arrays.fill(lineScoreOffsets, 0.0);
+		Tuple2<Tuple2<TransitionState[][],int[][]>,Double> result;
+		if (numThreads == 1) result = decodeSingleThread(beamSize);
+		else if (speculative) result = decodeSpeculative(beamSize, numThreads);
+		else result = decodeMultipleThreads(beamSize, numThreads);
+		if (beamMargin > 0.0) printBeamStatistics(beamSize);
+		return result;
+	}
+	
+	private void printBeamStatistics(int beamSize) {
+		double totalMeanBeamSize = 0.0;
+		int numWidened = 0;
+		for (int d=0; d<emissionModel.numSequences(); ++d) {
+			boolean widened = (lineBeamSizes[d] > beamSize);
+			System.out.println(String.format("Line %d beam: mean %.1f, max %d%s", d, meanBeamSizes[d], maxBeamSizes[d], (widened ? " (widened to " + lineBeamSizes[d] + ")" : "")));
+			totalMeanBeamSize += meanBeamSizes[d];
+			if (widened) ++numWidened;
+		}
+		System.out.println(String.format("Beam sizes: mean %.1f over %d lines, %d lines widened", totalMeanBeamSize / Math.max(1, emissionModel.numSequences()), emissionModel.numSequences(), numWidened));
 	}
 
 	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeSingleThread(int beamSize) {
 		Collection<BeamState> startStates = null;
 		double logJointProb = Double.NEGATIVE_INFINITY;
 		for (int d = 0; d < emissionModel.numSequences(); ++d) {
-			Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPassLogSpace(d, beamSize, startStates);
+			Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPass(d, beamSize, startStates);
 			logJointProb = logJointProbAndNextStartStates._1;
 			startStates = logJointProbAndNextStartStates._2;
 		}
-		
+		return Tuple2(followDocumentBackpointers(), logJointProb);
+	}
+	
+	/**
+	 * Follow the backpointers from the end of the last line back to the start
+	 * of the first, each line ending in the state that the next one started from.
+	 */
+	private Tuple2<TransitionState[][],int[][]> followDocumentBackpointers() {
 		TransitionState[][] decodeStates = new TransitionState[emissionModel.numSequences()][];
 		int[][] decodeWidths = new int[emissionModel.numSequences()][];
 		TransitionState finalState = null;
 		for (int d = emissionModel.numSequences()-1; d >= 0; --d) {
-			Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = followBackpointers(d, finalState);
+			Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = primitiveBeam ? followPrimitiveBackpointers(d, finalState) : followBackpointers(d, finalState);
 			decodeStates[d] = statesAndWidthsAndNextFinalState._1._1;
 			decodeWidths[d] = statesAndWidthsAndNextFinalState._1._2;
 			finalState = statesAndWidthsAndNextFinalState._2;
 		}
-		return Tuple2(Tuple2(decodeStates, decodeWidths), logJointProb);
+		return Tuple2(decodeStates, decodeWidths);
 	}
 	
 	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeMultipleThreads(final int beamSize, int numThreads) {
 		final TransitionState[][] decodeStates = new TransitionState[emissionModel.numSequences()][];
 		final int[][] decodeWidths = new int[emissionModel.numSequences()][];
-		final int blockSize = (int) Math.ceil(((double) emissionModel.numSequences()) / ((double)numThreads));
+		final int[] blockStarts = balancedBlocks(numThreads);
 		final double[] logJointProb = new double[] {0.0};
+		WorkScheduler scheduler = new WorkScheduler(numThreads);
 		{
-			BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer b, Object ignore) {
+			final BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer b, Object ignore) {
 				double blockLogJointProb = Double.NEGATIVE_INFINITY;
 				Collection<BeamState> startStates = null;
-				for (int d=b*blockSize; d<(b+1)*blockSize; ++d) {
-					if (d < emissionModel.numSequences()) {
-						Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPassLogSpace(d, beamSize, startStates);
-						blockLogJointProb = logJointProbAndNextStartStates._1;
-						startStates = logJointProbAndNextStartStates._2;
-					}
+				for (int d=blockStarts[b]; d<blockStarts[b+1]; ++d) {
+					Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPass(d, beamSize, startStates);
+					blockLogJointProb = logJointProbAndNextStartStates._1;
+					startStates = logJointProbAndNextStartStates._2;
 				}
 				TransitionState finalState = null;
-				for (int d=(b+1)*blockSize-1; d>=b*blockSize; --d) {
-					if (d < emissionModel.numSequences()) {
-						Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = followBackpointers(d, finalState);
-						decodeStates[d] = statesAndWidthsAndNextFinalState._1._1;
-						decodeWidths[d] = statesAndWidthsAndNextFinalState._1._2;
-						finalState = statesAndWidthsAndNextFinalState._2;
-					}
+				for (int d=blockStarts[b+1]-1; d>=blockStarts[b]; --d) {
+					Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> statesAndWidthsAndNextFinalState = primitiveBeam ? followPrimitiveBackpointers(d, finalState) : followBackpointers(d, finalState);
+					decodeStates[d] = statesAndWidthsAndNextFinalState._1._1;
+					decodeWidths[d] = statesAndWidthsAndNextFinalState._1._2;
+					finalState = statesAndWidthsAndNextFinalState._2;
 				}
 				synchronized (logJointProb) {
-					logJointProb[0] += blockLogJointProb;
+					if (blockStarts[b] < blockStarts[b+1]) logJointProb[0] += blockLogJointProb;
 				}
 			}};
-			BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
-			for (int b=0; b<numThreads; ++b) threader.addFunctionArgument(b);
-			threader.run();
+			WorkScheduler.TaskGroup blocks = scheduler.newTaskGroup();
+			for (int b=0; b<blockStarts.length-1; ++b) {
+				final int block = b;
+				long blockLength = 0;
+				for (int d=blockStarts[b]; d<blockStarts[b+1]; ++d) blockLength += emissionModel.sequenceLength(d);
+				blocks.add(blockLength, new Runnable() {
+					public void run() {
+						func.call(block, null);
+					}
+				});
+			}
+			blocks.run();
 		}
+		scheduler.shutdown();
 		
 		System.out.println();
+		scheduler.printUtilization("Decode threads");
 		return Tuple2(Tuple2(decodeStates, decodeWidths), logJointProb[0]);
 	}
 	
-	private Tuple2<Double,Collection<BeamState>> doForwardPassLogSpace(int d, int beamSize, Collection<BeamState> startStates) {
+	/**
+	 * Decode the blocks of lines in parallel, each from the generic start
+	 * states, and then join them in order.  Each block after the first has its
+	 * first lines decoded again, from the true start states that end the
+	 * previous block, until a line gives the same start states for the next
+	 * line as it did speculatively, with scores that differ by a constant.
+	 * Since the beams only compare scores with each other, the rest of the
+	 * block's speculative beams are then the serial decode's, up to that
+	 * constant (and floating-point rounding), and are kept.
+	 */
+	@SuppressWarnings("unchecked")
+	private Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decodeSpeculative(final int beamSize, int numThreads) {
+		int numSequences = emissionModel.numSequences();
+		final int[] blockStarts = balancedBlocks(numThreads);
+		// For each line: the best score of ending it, and the start states of the next line
+		final double[] lineLogJointProbs = new double[numSequences];
+		final Collection<BeamState>[] nextStartStates = new Collection[numSequences];
+		WorkScheduler scheduler = new WorkScheduler(numThreads);
+		{
+			WorkScheduler.TaskGroup blocks = scheduler.newTaskGroup();
+			for (int b=0; b<blockStarts.length-1; ++b) {
+				final int block = b;
+				long blockLength = 0;
+				for (int d=blockStarts[b]; d<blockStarts[b+1]; ++d) blockLength += emissionModel.sequenceLength(d);
+				blocks.add(blockLength, new Runnable() {
+					public void run() {
+						Collection<BeamState> startStates = null;
+						for (int d=blockStarts[block]; d<blockStarts[block+1]; ++d) {
+							Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPass(d, beamSize, startStates);
+							lineLogJointProbs[d] = logJointProbAndNextStartStates._1;
+							nextStartStates[d] = logJointProbAndNextStartStates._2;
+							startStates = logJointProbAndNextStartStates._2;
+						}
+					}
+				});
+			}
+			blocks.run();
+		}
+		scheduler.shutdown();
+		
+		int numRedecoded = 0;
+		Collection<BeamState> startStates = null;
+		for (int b=0; b<blockStarts.length-1; ++b) {
+			int lastLine = blockStarts[b+1]-1;
+			if (blockStarts[b] > lastLine) continue;
+			if (b == 0) {
+				startStates = nextStartStates[lastLine];
+				continue;
+			}
+			double offset = Double.NaN;
+			int d = blockStarts[b];
+			while (d <= lastLine && Double.isNaN(offset)) {
+				Tuple2<Double,Collection<BeamState>> logJointProbAndNextStartStates = doForwardPass(d, beamSize, startStates);
+				offset = scoreOffset(nextStartStates[d], logJointProbAndNextStartStates._2);
+				lineLogJointProbs[d] = logJointProbAndNextStartStates._1;
+				nextStartStates[d] = logJointProbAndNextStartStates._2;
+				startStates = logJointProbAndNextStartStates._2;
+				++numRedecoded;
+				++d;
+			}
+			if (d <= lastLine) {
+				// the kept lines' beams are still on the speculative scale, so their end scores are shifted when the backpointers are followed
+				for (int kept=d; kept<=lastLine; ++kept) lineScoreOffsets[kept] = offset;
+				lineLogJointProbs[lastLine] += offset;
+				startStates = offsetScores(nextStartStates[lastLine], offset);
+			}
+		}
+		
+		System.out.println();
+		scheduler.printUtilization("Decode threads");
+		System.out.println("Speculative decode: joined " + (blockStarts.length-1) + " blocks, decoding " + numRedecoded + " of " + numSequences + " lines again");
+		return Tuple2(followDocumentBackpointers(), (numSequences > 0 ? lineLogJointProbs[numSequences-1] : Double.NEGATIVE_INFINITY));
+	}
+	
+	/**
+	 * The constant difference between the scores of actual and speculative
+	 * start states, or NaN if they are not the same states, their scores
+	 * differ by more than rounding, or any of them was reached from a
+	 * different end state of the previous line (as a tie can make happen),
+	 * since the kept lines' backpointers lead to the speculative ones.
+	 */
+	static double scoreOffset(Collection<BeamState> speculative, Collection<BeamState> actual) {
+		if (speculative.size() != actual.size()) return Double.NaN;
+		Map<TransitionState,BeamState> speculativeStates = new HashMap<TransitionState,BeamState>();
+		for (BeamState beamState : speculative) speculativeStates.put(beamState.transState, beamState);
+		double offset = Double.NaN;
+		for (BeamState beamState : actual) {
+			BeamState speculativeState = speculativeStates.get(beamState.transState);
+			if (speculativeState == null) return Double.NaN;
+			TransitionState speculativeEndTs = speculativeState.backPointer._2;
+			TransitionState actualEndTs = beamState.backPointer._2;
+			if (speculativeEndTs == null ? actualEndTs != null : !speculativeEndTs.equals(actualEndTs)) return Double.NaN;
+			double difference = beamState.score - speculativeState.score;
+			if (Double.isNaN(offset)) offset = difference;
+			else if (!(Math.abs(difference - offset) <= SPECULATIVE_SCORE_TOLERANCE)) return Double.NaN;
+		}
+		return Double.isNaN(offset) ? 0.0 : offset;
+	}
+	
+	private static Collection<BeamState> offsetScores(Collection<BeamState> beamStates, double offset) {
+		Collection<BeamState> result = new ArrayList<BeamState>(beamStates.size());
+		for (BeamState beamState : beamStates) {
+			BeamState offsetBeamState = new BeamState(beamState.transState);
+			offsetBeamState.score = beamState.score + offset;
+			offsetBeamState.backPointer = beamState.backPointer;
+			result.add(offsetBeamState);
+		}
+		return result;
+	}
+	
+	/**
+	 * Split the lines into numBlocks contiguous blocks (each decoded in order
+	 * on one thread, so that lines within a block keep their continuity)
+	 * with roughly equal total sequence length, rather than equal numbers of
+	 * lines.
+	 * 
+	 * @return The first line of each block, followed by the number of lines.
+	 */
+	private int[] balancedBlocks(int numBlocks) {
+		int numSequences = emissionModel.numSequences();
+		long totalLength = 0;
+		for (int d=0; d<numSequences; ++d) totalLength += emissionModel.sequenceLength(d);
+		int[] blockStarts = new int[numBlocks+1];
+		long length = 0;
+		int b = 1;
+		for (int d=0; d<numSequences && b<numBlocks; ++d) {
+			length += emissionModel.sequenceLength(d);
+			// close the block once it reaches its share, keeping at least one line for each remaining block
+			while (b < numBlocks && (length*numBlocks >= totalLength*b || numSequences-(d+1) <= numBlocks-b-1)) {
+				blockStarts[b++] = d+1;
+			}
+		}
+		while (b <= numBlocks) blockStarts[b++] = numSequences;
+		return blockStarts;
+	}
+	
+	private Tuple2<Double,Collection<BeamState>> doForwardPass(int d, int beamSize, Collection<BeamState> startStates) {
 		System.out.print(".");
+		if (primitiveBeam) widenedBeams[d] = null;
+		double margin = beamMargin;
+		Tuple2<Double,Collection<BeamState>> result = doForwardPassWithBeam(d, beamSize, margin, startStates);
+		for (int retry=0; retry<beamRetries && result._1 == Double.NEGATIVE_INFINITY; ++retry) {
+			beamSize *= 2;
+			margin *= 2;
+			System.out.println("Line "+d+": no state reached the end of the line, widening the beam to "+beamSize);
+			if (primitiveBeam) widenedBeams[d] = new PrimitiveBeam(beamSize, emissionModel.sequenceLength(d)+1);
+			result = doForwardPassWithBeam(d, beamSize, margin, startStates);
+		}
+		lineBeamSizes[d] = beamSize;
+		return result;
+	}
+	
+	private Tuple2<Double,Collection<BeamState>> doForwardPassWithBeam(int d, int beamSize, double margin, Collection<BeamState> startStates) {
+		if (primitiveBeam) return doPrimitiveForwardPassLogSpace(d, margin, startStates);
+		else return doForwardPassLogSpace(d, beamSize, margin, startStates);
+	}
+	
+	private Tuple2<Double,Collection<BeamState>> doForwardPassLogSpace(int d, int beamSize, double margin, Collection<BeamState> startStates) {
 		
 //		System.out.printf("Backward pass: %d%n", d);
-		doDenseCoarseBackwardPassLogSpace(d, betas[d]);
+		doCoarseBackwardPass(d, betas[d]);
 		
 //		System.out.printf("Forward pass: %d%n", d);
 		for (GeneralPriorityQueue<BeamState> queue : alphas[d]) queue.clear();
+		long totalBeamSize = 0;
+		int maxBeamSize = 0;
 		for (int t=0; t<emissionModel.sequenceLength(d)+1; ++t) {
 			if (t == 0) {
 				if (startStates == null || startStates.isEmpty()) {
@@ -163,58 +452,188 @@ public class BeamingSemiMarkovDP {
 					}
 				}
 			} else {
+				if (margin > 0.0) pruneToMargin(alphas[d][t], margin);
+				totalBeamSize += alphas[d][t].size();
+				maxBeamSize = Math.max(maxBeamSize, alphas[d][t].size());
 				for (BeamState beamState : alphas[d][t].getObjects()) {
-					Collection<Tuple2<TransitionState,Double>> allowedTrans = beamState.transState.forwardTransitions();
-					for (Tuple2<TransitionState,Double> trans : allowedTrans) {
-						TransitionState nextTs = trans._1;
-						double transLogProb = trans._2;
-						for (int w : emissionModel.allowedWidths(nextTs)) {
-							if (t + w < emissionModel.sequenceLength(d)+1) {
-								int nextT = t + w;
-								double emissionLogProb = emissionModel.logProb(d, t, nextTs, nextT-t);
-								double score = beamState.score + transLogProb + emissionLogProb;
-								if (score != Double.NEGATIVE_INFINITY) {
-									addToBeam(alphas[d][nextT], nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], Tuple2(t, beamState.transState), beamSize);
-								}
-							}
+					Tuple2<Integer,TransitionState> backPointer = Tuple2(t, beamState.transState);
+					if (compiledTransitionModel != null) {
+						CompiledTransitionModel.Transitions allowedTrans = compiledTransitionModel.compiledForwardTransitions(beamState.transState);
+						for (int i=0; i<allowedTrans.size(); ++i) {
+							extendBeam(d, t, beamState.score, compiledTransitionModel.getState(allowedTrans.nextStateIds[i]), allowedTrans.logProbs[i], backPointer, beamSize);
+						}
+					} else {
+						for (Tuple2<TransitionState,Double> trans : beamState.transState.forwardTransitions()) {
+							extendBeam(d, t, beamState.score, trans._1, trans._2, backPointer, beamSize);
 						}
 					}
 				}
 			}
 		}
 		
+		recordBeamSizes(d, totalBeamSize, maxBeamSize);
+		
 		double bestFinalScore = Double.NEGATIVE_INFINITY;
 		Map<TransitionState,BeamState> wrappedStartStatesMap = new HashMap<TransitionState,BeamState>();
 		for (BeamState endBeamState : alphas[d][emissionModel.sequenceLength(d)].getObjects()) {
-			double endScore = endBeamState.score + endBeamState.transState.endLogProb();
-			if (endScore != Double.NEGATIVE_INFINITY) {
-				if (endScore > bestFinalScore) {
-					bestFinalScore = endScore;
+			bestFinalScore = Math.max(bestFinalScore, addNextLineStartStates(wrappedStartStatesMap, endBeamState.transState, endBeamState.score));
+		}
+		return Tuple2(bestFinalScore, wrapStartStates(wrappedStartStatesMap));
+	}
+	
+	/**
+	 * Drop the states (worst first) whose priority is more than margin worse
+	 * than the best, keeping at least minBeamSize.
+	 */
+	private void pruneToMargin(GeneralPriorityQueue<BeamState> queue, double margin) {
+		if (queue.size() <= minBeamSize) return;
+		// priorities are negated scores
+		double bestPriority = Double.POSITIVE_INFINITY;
+		for (BeamState beamState : queue.getObjects()) {
+			bestPriority = Math.min(bestPriority, queue.getPriority(beamState));
+		}
+		while (queue.size() > minBeamSize && queue.getPriority() > bestPriority + margin) {
+			queue.removeFirst();
+		}
+	}
+	
+	private void recordBeamSizes(int d, long totalBeamSize, int maxBeamSize) {
+		meanBeamSizes[d] = (double) totalBeamSize / Math.max(1, emissionModel.sequenceLength(d));
+		maxBeamSizes[d] = maxBeamSize;
+	}
+	
+	private void extendBeam(int d, int t, double beamScore, TransitionState nextTs, double transLogProb, Tuple2<Integer,TransitionState> backPointer, int beamSize) {
+		for (int w : emissionModel.allowedWidths(nextTs)) {
+			if (t + w < emissionModel.sequenceLength(d)+1) {
+				int nextT = t + w;
+				double emissionLogProb = emissionModel.logProb(d, t, nextTs, nextT-t);
+				double score = beamScore + transLogProb + emissionLogProb;
+				if (score != Double.NEGATIVE_INFINITY) {
+					addToBeam(alphas[d][nextT], nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], backPointer, beamSize);
 				}
-				for (Tuple2<TransitionState,Double> startTransitionPair : endBeamState.transState.nextLineStartStates()) {
-					double score = endScore + startTransitionPair._2;
-					if (score != Double.NEGATIVE_INFINITY) {
-						BeamState startBeamState = wrappedStartStatesMap.get(startTransitionPair._1);
-						if (startBeamState == null) {
-							startBeamState = new BeamState(startTransitionPair._1);
-							startBeamState.score = Double.NEGATIVE_INFINITY;
-							startBeamState.backPointer = new Tuple2<Integer, TransitionState>(-1, null);
-							wrappedStartStatesMap.put(startTransitionPair._1, startBeamState);
-						}
-						if (score > startBeamState.score) {
-							startBeamState.score = score;
-							startBeamState.backPointer = Tuple2(-1, endBeamState.transState);
+			}
+		}
+	}
+	
+	/**
+	 * The same forward pass as doForwardPassLogSpace, on primitiveAlphas.
+	 */
+	private Tuple2<Double,Collection<BeamState>> doPrimitiveForwardPassLogSpace(int d, double margin, Collection<BeamState> startStates) {
+		doCoarseBackwardPass(d, betas[d]);
+		
+		PrimitiveBeam beam = lineBeam(d);
+		int offset = lineColumnOffset(d);
+		int sequenceLength = emissionModel.sequenceLength(d);
+		beam.clearColumns(offset, offset + sequenceLength+1);
+		if (startStates == null || startStates.isEmpty()) {
+			startStates = addNullBackpointers(forwardTransitionModel.startStates());
+		}
+		BeamState[] starts = startStates.toArray(new BeamState[startStates.size()]);
+		lineStartStates[d] = starts;
+		for (int s=0; s<starts.length; ++s) {
+			TransitionState nextTs = starts[s].transState;
+			double startLogProb = starts[s].score;
+			if (startLogProb != Double.NEGATIVE_INFINITY) {
+				for (int w : emissionModel.allowedWidths(nextTs)) {
+					if (w < sequenceLength+1) {
+						double score = startLogProb + emissionModel.logProb(d, 0, nextTs, w);
+						if (score != Double.NEGATIVE_INFINITY) {
+							beam.add(offset + w, nextTs, score, betas[d][w][nextTs.getGlyphChar().templateCharIndex], 0, s);
 						}
 					}
 				}
 			}
 		}
+		long totalBeamSize = 0;
+		int maxBeamSize = 0;
+		for (int t=1; t<sequenceLength+1; ++t) {
+			if (margin > 0.0) beam.prune(offset + t, margin, minBeamSize);
+			totalBeamSize += beam.size(offset + t);
+			maxBeamSize = Math.max(maxBeamSize, beam.size(offset + t));
+			for (int k=0; k<beam.size(offset + t); ++k) {
+				TransitionState ts = beam.state(offset + t, k);
+				double beamScore = beam.score(offset + t, k);
+				if (compiledTransitionModel != null) {
+					CompiledTransitionModel.Transitions allowedTrans = compiledTransitionModel.compiledForwardTransitions(ts);
+					for (int i=0; i<allowedTrans.size(); ++i) {
+						extendPrimitiveBeam(d, t, k, beamScore, compiledTransitionModel.getState(allowedTrans.nextStateIds[i]), allowedTrans.logProbs[i]);
+					}
+				} else {
+					for (Tuple2<TransitionState,Double> trans : ts.forwardTransitions()) {
+						extendPrimitiveBeam(d, t, k, beamScore, trans._1, trans._2);
+					}
+				}
+			}
+		}
+		
+		recordBeamSizes(d, totalBeamSize, maxBeamSize);
+		
+		double bestFinalScore = Double.NEGATIVE_INFINITY;
+		Map<TransitionState,BeamState> wrappedStartStatesMap = new HashMap<TransitionState,BeamState>();
+		for (int k=0; k<beam.size(offset + sequenceLength); ++k) {
+			bestFinalScore = Math.max(bestFinalScore, addNextLineStartStates(wrappedStartStatesMap, beam.state(offset + sequenceLength, k), beam.score(offset + sequenceLength, k)));
+		}
+		return Tuple2(bestFinalScore, wrapStartStates(wrappedStartStatesMap));
+	}
+	
+	private PrimitiveBeam lineBeam(int d) {
+		return (widenedBeams[d] != null) ? widenedBeams[d] : primitiveAlphas;
+	}
+	
+	private int lineColumnOffset(int d) {
+		return (widenedBeams[d] != null) ? 0 : columnOffsets[d];
+	}
+	
+	private void extendPrimitiveBeam(int d, int t, int slot, double beamScore, TransitionState nextTs, double transLogProb) {
+		PrimitiveBeam beam = lineBeam(d);
+		int offset = lineColumnOffset(d);
+		int sequenceLength = emissionModel.sequenceLength(d);
+		for (int w : emissionModel.allowedWidths(nextTs)) {
+			if (t + w < sequenceLength+1) {
+				int nextT = t + w;
+				double score = beamScore + transLogProb + emissionModel.logProb(d, t, nextTs, w);
+				if (score != Double.NEGATIVE_INFINITY) {
+					beam.add(offset + nextT, nextTs, score, betas[d][nextT][nextTs.getGlyphChar().templateCharIndex], t, slot);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Offer the next line's start states reachable from a state that ends
+	 * this line, keeping the best score for each.
+	 * 
+	 * @return The score of ending the line in the given state.
+	 */
+	private static double addNextLineStartStates(Map<TransitionState,BeamState> wrappedStartStatesMap, TransitionState endTs, double endBeamScore) {
+		double endScore = endBeamScore + endTs.endLogProb();
+		if (endScore != Double.NEGATIVE_INFINITY) {
+			for (Tuple2<TransitionState,Double> startTransitionPair : endTs.nextLineStartStates()) {
+				double score = endScore + startTransitionPair._2;
+				if (score != Double.NEGATIVE_INFINITY) {
+					BeamState startBeamState = wrappedStartStatesMap.get(startTransitionPair._1);
+					if (startBeamState == null) {
+						startBeamState = new BeamState(startTransitionPair._1);
+						startBeamState.score = Double.NEGATIVE_INFINITY;
+						startBeamState.backPointer = new Tuple2<Integer, TransitionState>(-1, null);
+						wrappedStartStatesMap.put(startTransitionPair._1, startBeamState);
+					}
+					if (score > startBeamState.score) {
+						startBeamState.score = score;
+						startBeamState.backPointer = Tuple2(-1, endTs);
+					}
+				}
+			}
+		}
+		return endScore;
+	}
+	
+	private static Collection<BeamState> wrapStartStates(Map<TransitionState,BeamState> wrappedStartStatesMap) {
 		Collection<BeamState> wrappedStartStates = new ArrayList<BeamState>();
 		for (Map.Entry<TransitionState, BeamState> entry : wrappedStartStatesMap.entrySet()) {
 			wrappedStartStates.add(entry.getValue());
 		}
-		
-		return Tuple2(bestFinalScore, wrappedStartStates);
+		return wrappedStartStates;
 	}
 	
 	private static void addToBeam(GeneralPriorityQueue<BeamState> queue, TransitionState nextTs, double score, double forwardScore, Tuple2<Integer,TransitionState> backPointer, int beamSize) {
@@ -255,9 +674,14 @@ public class BeamingSemiMarkovDP {
 		
 		try {
 		TransitionState bestFinalTs = null;
+		Collection<BeamState> possibleBeamStates = alphas[d][emissionModel.sequenceLength(d)].getObjects();
+		double[] endScores = new double[possibleBeamStates.size()];
+		int i = 0;
+		for (BeamState beamState : possibleBeamStates) {
+			endScores[i++] = beamState.score + beamState.transState.endLogProb();
+		}
 		if (finalTs == null) {
 			double bestFinalScore = Double.NEGATIVE_INFINITY;
-			Collection<BeamState> possibleBeamStates = alphas[d][emissionModel.sequenceLength(d)].getObjects();
 			if (possibleBeamStates.isEmpty()) throw new EmptyBeamException("No possible final states found for this line. Consider increasing -beamSize.");
 			for (BeamState beamState : possibleBeamStates) {
 				double score = beamState.score + beamState.transState.endLogProb();
@@ -270,6 +694,7 @@ public class BeamingSemiMarkovDP {
 		} else {
 			bestFinalTs = finalTs;
 		}
+		recordLineEnd(d, alphas[d][emissionModel.sequenceLength(d)].getObject(new BeamState(bestFinalTs)).score + bestFinalTs.endLogProb(), endScores);
 
 		int currentT = emissionModel.sequenceLength(d);
 		TransitionState currentTs = bestFinalTs;
@@ -294,7 +719,9 @@ public class BeamingSemiMarkovDP {
 		catch (EmptyBeamException e) {
 			System.out.println("ERRROR: Line "+d+": "+e.getMessage());
 			nextFinalTs = null;
+			recordLineEnd(d, Double.NEGATIVE_INFINITY, new double[0]);
 		}
+		lineContinuesPath[d] = (nextFinalTs != null);
 
 		Collections.reverse(transStateDecodeList);
 		Collections.reverse(widthsDecodeList);
@@ -302,6 +729,111 @@ public class BeamingSemiMarkovDP {
 		return Tuple2(Tuple2(transStateDecodeList.toArray(new TransitionState[0]), widthsDecode), nextFinalTs);
 	}
 	
+	/**
+	 * The same as followBackpointers, on primitiveAlphas.
+	 */
+	private Tuple2<Tuple2<TransitionState[],int[]>,TransitionState> followPrimitiveBackpointers(int d, TransitionState finalTs) {
+		List<TransitionState> transStateDecodeList = new ArrayList<TransitionState>();
+		List<Integer> widthsDecodeList = new ArrayList<Integer>();
+		TransitionState nextFinalTs = null;
+		
+		try {
+			PrimitiveBeam beam = lineBeam(d);
+			int offset = lineColumnOffset(d);
+			int currentT = emissionModel.sequenceLength(d);
+			int currentSlot = -1;
+			double[] endScores = new double[beam.size(offset + currentT)];
+			for (int k=0; k<endScores.length; ++k) {
+				endScores[k] = beam.score(offset + currentT, k) + beam.state(offset + currentT, k).endLogProb();
+			}
+			if (finalTs == null) {
+				if (beam.size(offset + currentT) == 0) throw new EmptyBeamException("No possible final states found for this line. Consider increasing -beamSize.");
+				double bestFinalScore = Double.NEGATIVE_INFINITY;
+				for (int k=0; k<beam.size(offset + currentT); ++k) {
+					double score = beam.score(offset + currentT, k) + beam.state(offset + currentT, k).endLogProb();
+					if (score > bestFinalScore) {
+						bestFinalScore = score;
+						currentSlot = k;
+					}
+				}
+				if (currentSlot < 0) throw new EmptyBeamException("No final-state possibilities with non-zero probabilities for this line. Consider increasing -beamSize.");
+			} else {
+				currentSlot = beam.find(offset + currentT, finalTs);
+				if (currentSlot < 0) throw new EmptyBeamException("No current-state possiblities with non-zero probabilities when following backpointers. Consider increasing -beamSize.");
+			}
+			recordLineEnd(d, endScores[currentSlot], endScores);
+			
+			while (true) {
+				int backT = beam.backColumn(offset + currentT, currentSlot);
+				int backSlot = beam.backSlot(offset + currentT, currentSlot);
+				transStateDecodeList.add(beam.state(offset + currentT, currentSlot));
+				widthsDecodeList.add(currentT - backT);
+				currentT = backT;
+				currentSlot = backSlot;
+				if (currentT == 0) {
+					nextFinalTs = lineStartStates[d][currentSlot].backPointer._2;
+					break;
+				}
+			}
+		}
+		catch (EmptyBeamException e) {
+			System.out.println("ERRROR: Line "+d+": "+e.getMessage());
+			nextFinalTs = null;
+			recordLineEnd(d, Double.NEGATIVE_INFINITY, new double[0]);
+		}
+		lineContinuesPath[d] = (nextFinalTs != null);
+		
+		Collections.reverse(transStateDecodeList);
+		Collections.reverse(widthsDecodeList);
+		int[] widthsDecode = a.toIntArray(widthsDecodeList);
+		return Tuple2(Tuple2(transStateDecodeList.toArray(new TransitionState[0]), widthsDecode), nextFinalTs);
+	}
+	
+	private void recordLineEnd(int d, double pathEndScore, double[] endScores) {
+		double best = Double.NEGATIVE_INFINITY;
+		double secondBest = Double.NEGATIVE_INFINITY;
+		for (double score : endScores) {
+			if (score > best) {
+				secondBest = best;
+				best = score;
+			} else if (score > secondBest) {
+				secondBest = score;
+			}
+		}
+		lineEndScores[d] = pathEndScore + lineScoreOffsets[d];
+		lineScoreMargins[d] = (best == Double.NEGATIVE_INFINITY) ? 0.0 : best - secondBest;
+	}
+	
+	/**
+	 * The log probability of each line of the last decode: the score the
+	 * decoded path gained over the line, including the transition from the
+	 * end of the previous line.  A line whose path starts from the generic
+	 * start states includes their log probability instead.  A line with no
+	 * decode has negative infinity.
+	 */
+	public double[] lineLogProbs() {
+		double[] lineLogProbs = new double[emissionModel.numSequences()];
+		for (int d=0; d<emissionModel.numSequences(); ++d) {
+			lineLogProbs[d] = lineEndScores[d];
+			if (d > 0 && lineContinuesPath[d] && lineEndScores[d-1] != Double.NEGATIVE_INFINITY) lineLogProbs[d] -= lineEndScores[d-1];
+		}
+		return lineLogProbs;
+	}
+	
+	/**
+	 * For each line of the last decode, how much better the best state ending
+	 * the line scored than the next best one in its beam: infinite if there
+	 * was no other, and 0 if the line has no decode.
+	 */
+	public double[] lineScoreMargins() {
+		return lineScoreMargins.clone();
+	}
+	
+	private void doCoarseBackwardPass(int d, double[][] betas) {
+		if (coarseBackwardTopK > 0) doSparseCoarseBackwardPassLogSpace(d, betas, backwardTransitionModel.topSuccessors(coarseBackwardTopK));
+		else doDenseCoarseBackwardPassLogSpace(d, betas);
+	}
+	
 	private void doDenseCoarseBackwardPassLogSpace(int d, double[][] betas) {
 		int numChars = emissionModel.numChars();
 		for (int t=emissionModel.sequenceLength(d); t>=0; --t) {
@@ -330,4 +862,48 @@ public class BeamingSemiMarkovDP {
 		}
 	}
 	
+	/**
+	 * The coarse backward pass over each character's top k successors only.
+	 * The successors that were dropped are covered by a single bound: the best
+	 * of their transition log probabilities plus the best score of any next
+	 * character.  So the result is never below the dense pass's, and the
+	 * heuristic stays at least as optimistic, only less tight.
+	 */
+	private void doSparseCoarseBackwardPassLogSpace(int d, double[][] betas, DenseBigramTransitionModel.TopSuccessors topSuccessors) {
+		int numChars = emissionModel.numChars();
+		int k = topSuccessors.k;
+		int[] successors = topSuccessors.successors;
+		double[] logProbs = topSuccessors.logProbs;
+		double[] residualLogProbs = topSuccessors.residualLogProbs;
+		double[] betasWithoutTrans = new double[numChars];
+		for (int t=emissionModel.sequenceLength(d); t>=0; --t) {
+			double[] betasCol = betas[t];
+			if (t==emissionModel.sequenceLength(d)) {
+				for (int c=0; c<numChars; ++c) {
+					betasCol[c] = backwardTransitionModel.endLogProb(c);
+				}
+			} else {
+				double maxBetaWithoutTrans = Double.NEGATIVE_INFINITY;
+				for (int nextC=0; nextC<numChars; ++nextC) {
+					double betaWithoutTrans = Double.NEGATIVE_INFINITY;
+					for (int w : emissionModel.allowedWidths(nextC)) {
+						if (t + w <= emissionModel.sequenceLength(d)) {
+							betaWithoutTrans = Math.max(betaWithoutTrans, emissionModel.logProb(d, t, nextC, w) + betas[t+w][nextC]);
+						}
+					}
+					betasWithoutTrans[nextC] = betaWithoutTrans;
+					maxBetaWithoutTrans = Math.max(maxBetaWithoutTrans, betaWithoutTrans);
+				}
+				for (int c=0; c<numChars; ++c) {
+					double beta = residualLogProbs[c] + maxBetaWithoutTrans;
+					for (int i=c*k, end=i+k; i<end; ++i) {
+						double score = logProbs[i] + betasWithoutTrans[successors[i]];
+						if (score > beta) beta = score;
+					}
+					betasCol[c] = beta;
+				}
+			}
+		}
+	}
+	
 }
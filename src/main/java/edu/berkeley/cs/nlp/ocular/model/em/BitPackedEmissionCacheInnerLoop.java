@@ -0,0 +1,12 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+/**
+ * An inner loop that can score bit-packed observations directly (one WHITE
+ * and one BLACK mask per column), so the caller never has to expand them
+ * into dense float arrays.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public interface BitPackedEmissionCacheInnerLoop extends EmissionCacheInnerLoop {
+	public void compute(final float[] scores, final long[] whiteMasks, final long[] blackMasks, final int sequenceLength);
+}
@@ -1,5 +1,8 @@
 package edu.berkeley.cs.nlp.ocular.model.em;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
 import edu.berkeley.cs.nlp.ocular.lm.LanguageModel;
 import tberg.murphy.arrays.a;
@@ -13,6 +16,7 @@ public class DenseBigramTransitionModel {
 	private double[] starts;
 	private double[][] forwardTrans;
 	private double[][] backwardTrans;
+	private TopSuccessors topSuccessors;
 	
 	public DenseBigramTransitionModel(LanguageModel lm) {
 		int numC = lm.getCharacterIndexer().size();
@@ -56,4 +60,55 @@ public class DenseBigramTransitionModel {
 	public double[] backwardTransitions(int c) {
 		return backwardTrans[c];
 	}
+	
+	/**
+	 * The k most likely successors of each character, in flat arrays: those of
+	 * character c are successors[c*k] through successors[c*k+k-1], most likely
+	 * first, with log probabilities in logProbs.  residualLogProbs[c] is the
+	 * highest log probability of any of c's other successors.
+	 */
+	public static class TopSuccessors {
+		public final int k;
+		public final int[] successors;
+		public final double[] logProbs;
+		public final double[] residualLogProbs;
+		
+		public TopSuccessors(int k, int[] successors, double[] logProbs, double[] residualLogProbs) {
+			this.k = k;
+			this.successors = successors;
+			this.logProbs = logProbs;
+			this.residualLogProbs = residualLogProbs;
+		}
+	}
+	
+	/**
+	 * The top k successors of each character (all of them if k is at least the
+	 * number of characters), built on first use.
+	 */
+	public synchronized TopSuccessors topSuccessors(int k) {
+		int numC = forwardTrans.length;
+		k = Math.min(k, numC);
+		if (topSuccessors != null && topSuccessors.k == k) return topSuccessors;
+		
+		int[] successors = new int[numC*k];
+		double[] logProbs = new double[numC*k];
+		double[] residualLogProbs = new double[numC];
+		Integer[] order = new Integer[numC];
+		for (int prevC=0; prevC<numC; ++prevC) {
+			final double[] trans = forwardTrans[prevC];
+			for (int c=0; c<numC; ++c) order[c] = c;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer c1, Integer c2) {
+					return Double.compare(trans[c2], trans[c1]);
+				}
+			});
+			for (int i=0; i<k; ++i) {
+				successors[prevC*k + i] = order[i];
+				logProbs[prevC*k + i] = trans[order[i]];
+			}
+			residualLogProbs[prevC] = (k < numC ? trans[order[k]] : Double.NEGATIVE_INFINITY);
+		}
+		topSuccessors = new TopSuccessors(k, successors, logProbs, residualLogProbs);
+		return topSuccessors;
+	}
 }
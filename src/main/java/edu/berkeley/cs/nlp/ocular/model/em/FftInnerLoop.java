@@ -0,0 +1,263 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.util.Fft;
+
+/**
+ * Computes the sliding-window scores as FFT-based correlations, for lines
+ * long enough that the direct loop's O(T*tw*LINE_HEIGHT) work per template
+ * dominates.
+ *
+ * A template's score at column t is a sum over its 2*LINE_HEIGHT rows
+ * (white and black) of the correlation of that template row with the
+ * matching observation row, so in the frequency domain the rows can be
+ * summed before a single inverse transform per template.  The line is cut
+ * into blocks of FFT size minus (tw-1) columns; each block's full
+ * correlation is added into the scores (overlap-add), which fits the
+ * accumulate-into-scores contract of compute.  The spectra of the
+ * observation rows are shared by every template of a width, the template
+ * spectra are computed once at startup, and two templates share each
+ * inverse transform (one in the real part, one in the imaginary part).
+ *
+ * The FFT only pays off when the line is long and the template wide, so
+ * for each (template width, line length) a simple operation count decides
+ * between the FFT and the direct loop.  Template spectra take about
+ * (fftSize/2+1)/tw times the memory of the templates, so they are only
+ * built for widths where the FFT wins at the longest line.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class FftInnerLoop implements EmissionCacheInnerLoop {
+
+	private static final int NUM_ROWS = 2*CharacterTemplate.LINE_HEIGHT;
+
+	/**
+	 * A complex multiply-add in the FFT path costs more than a float
+	 * multiply-add in the direct loop; 1.5 matches timings of the two on a
+	 * single thread.
+	 */
+	private static final double FFT_COST_FACTOR = 1.5;
+
+	int numThreads;
+	boolean alwaysFft;
+	float[][] whiteTemplates;
+	float[][] blackTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	Fft[] ffts; // null for widths that always use the direct loop
+	float[][] templateSpectra; // [tw-minTemplateWidth][((i*NUM_ROWS + row)*numBins + k)*2 + {re,im}]
+
+	public FftInnerLoop(int numThreads) {
+		this(numThreads, false);
+	}
+
+	/**
+	 * @param alwaysFft	Use the FFT for every width and line length, instead of only where it is estimated to be cheaper.
+	 */
+	public FftInnerLoop(int numThreads, boolean alwaysFft) {
+		this.numThreads = numThreads;
+		this.alwaysFft = alwaysFft;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		this.whiteTemplates = whiteTemplates;
+		this.blackTemplates = blackTemplates;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+
+		this.ffts = new Fft[(maxTemplateWidth-minTemplateWidth)+1];
+		this.templateSpectra = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		List<Integer> fftWidths = new ArrayList<Integer>();
+		long spectraBytes = 0;
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			int fftSize = fftSize(tw);
+			if (numIndices == 0 || !useFft(tw, numIndices, maxSequenceLength, fftSize)) continue;
+			Fft fft = new Fft(fftSize);
+			ffts[tw-minTemplateWidth] = fft;
+			templateSpectra[tw-minTemplateWidth] = computeTemplateSpectra(fft, whiteTemplates[tw-minTemplateWidth], blackTemplates[tw-minTemplateWidth], tw, numIndices);
+			spectraBytes += 4L*templateSpectra[tw-minTemplateWidth].length;
+			fftWidths.add(tw);
+		}
+		System.out.printf("FFT emission engine: FFT for template widths %s (%.3fgb of template spectra), direct loop otherwise\n", fftWidths, spectraBytes / 1e9);
+	}
+
+	public void shutdown() {
+		this.ffts = null;
+		this.templateSpectra = null;
+	}
+
+	/**
+	 * Long enough that at least three quarters of each block's outputs are new.
+	 */
+	static int fftSize(int tw) {
+		return Fft.nextPowerOfTwo(4*tw);
+	}
+
+	boolean useFft(int tw, int numIndices, int sequenceLength, int fftSize) {
+		if (sequenceLength < tw) return false;
+		if (alwaysFft) return true;
+		return fftCost(tw, numIndices, sequenceLength, fftSize) < directCost(tw, numIndices, sequenceLength);
+	}
+
+	/**
+	 * Estimated multiply-adds for the direct loop.
+	 */
+	static double directCost(int tw, int numIndices, int sequenceLength) {
+		return (double) (sequenceLength-tw+1) * numIndices * NUM_ROWS * tw;
+	}
+
+	/**
+	 * Estimated cost of the FFT, in direct-loop multiply-adds: per block, the
+	 * forward transforms of the observation rows, then per template the
+	 * complex multiply-adds over the rows and half an inverse transform.
+	 */
+	static double fftCost(int tw, int numIndices, int sequenceLength, int fftSize) {
+		int blockLength = fftSize - tw + 1;
+		int numBlocks = (sequenceLength + blockLength - 1) / blockLength;
+		double transformCost = 2.5 * fftSize * Fft.log2(fftSize);
+		int numBins = fftSize/2 + 1;
+		return FFT_COST_FACTOR * numBlocks * (NUM_ROWS*transformCost + numIndices*(4.0*NUM_ROWS*numBins + transformCost/2));
+	}
+
+	/**
+	 * Spectra of the reversed, zero-padded template rows, so that multiplying
+	 * by an observation row's spectrum gives the correlation.  Only bins
+	 * 0..fftSize/2 are kept since the rows are real.
+	 */
+	private static float[] computeTemplateSpectra(Fft fft, float[] whiteTemplatesForWidth, float[] blackTemplatesForWidth, int tw, int numIndices) {
+		int numBins = fft.size/2 + 1;
+		float[] spectra = new float[numIndices*NUM_ROWS*numBins*2];
+		double[] re = new double[fft.size];
+		double[] im = new double[fft.size];
+		for (int i=0; i<numIndices; ++i) {
+			for (int row=0; row<NUM_ROWS; ++row) {
+				float[] templatesForColor = (row < CharacterTemplate.LINE_HEIGHT) ? whiteTemplatesForWidth : blackTemplatesForWidth;
+				int j = row % CharacterTemplate.LINE_HEIGHT;
+				for (int n=0; n<fft.size; ++n) {
+					re[n] = (n < tw) ? templatesForColor[i*tw*CharacterTemplate.LINE_HEIGHT + (tw-1-n)*CharacterTemplate.LINE_HEIGHT + j] : 0.0;
+					im[n] = 0.0;
+				}
+				fft.forward(re, im);
+				int base = (i*NUM_ROWS + row)*numBins*2;
+				for (int k=0; k<numBins; ++k) {
+					spectra[base + 2*k] = (float) re[k];
+					spectra[base + 2*k + 1] = (float) im[k];
+				}
+			}
+		}
+		return spectra;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			Fft fft = ffts[tw-minTemplateWidth];
+			if (fft != null && useFft(tw, numIndices, sequenceLength, fft.size)) {
+				computeFft(scores, whiteObservations, blackObservations, sequenceLength, tw, fft);
+			} else {
+				computeDirect(scores, whiteObservations, blackObservations, sequenceLength, tw);
+			}
+		}
+	}
+
+	private void computeDirect(float[] scores, float[] whiteObservations, float[] blackObservations, int sequenceLength, int tw) {
+		float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
+		float[] blackTemplatesForWidth = blackTemplates[tw-minTemplateWidth];
+		int numIndices = templateNumIndices[tw-minTemplateWidth];
+		int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+		int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+		for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+			int observationOffset = t*CharacterTemplate.LINE_HEIGHT;
+			for (int i=0; i<numIndices; ++i) {
+				int templateOffset = i*windowSize;
+				float score = 0.0f;
+				for (int j=0; j<windowSize; ++j) {
+					score += whiteObservations[observationOffset+j] * whiteTemplatesForWidth[templateOffset+j] + blackObservations[observationOffset+j] * blackTemplatesForWidth[templateOffset+j];
+				}
+				scores[scoresOffset + t*numIndices + i] += score;
+			}
+		}
+	}
+
+	private void computeFft(float[] scores, float[] whiteObservations, float[] blackObservations, int sequenceLength, int tw, Fft fft) {
+		int fftSize = fft.size;
+		int numBins = fftSize/2 + 1;
+		int blockLength = fftSize - tw + 1;
+		int numIndices = templateNumIndices[tw-minTemplateWidth];
+		int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+		float[] spectra = templateSpectra[tw-minTemplateWidth];
+		double[] observationSpectra = new double[NUM_ROWS*numBins*2];
+		double[] re = new double[fftSize];
+		double[] im = new double[fftSize];
+		for (int blockStart=0; blockStart<sequenceLength; blockStart+=blockLength) {
+			int blockEnd = Math.min(blockStart+blockLength, sequenceLength);
+			for (int row=0; row<NUM_ROWS; ++row) {
+				float[] observations = (row < CharacterTemplate.LINE_HEIGHT) ? whiteObservations : blackObservations;
+				int j = row % CharacterTemplate.LINE_HEIGHT;
+				for (int n=0; n<fftSize; ++n) {
+					re[n] = (blockStart+n < blockEnd) ? observations[(blockStart+n)*CharacterTemplate.LINE_HEIGHT + j] : 0.0;
+					im[n] = 0.0;
+				}
+				fft.forward(re, im);
+				int base = row*numBins*2;
+				for (int k=0; k<numBins; ++k) {
+					observationSpectra[base + 2*k] = re[k];
+					observationSpectra[base + 2*k + 1] = im[k];
+				}
+			}
+
+			// correlation output n of this block is the score at column blockStart-(tw-1)+n
+			int firstN = Math.max(0, (tw-1)-blockStart);
+			int lastN = Math.min(fftSize-1, (sequenceLength-tw) - blockStart + (tw-1));
+			for (int i=0; i<numIndices; i+=2) {
+				boolean hasPair = i+1 < numIndices;
+				for (int k=0; k<numBins; ++k) {
+					double aRe = 0.0, aIm = 0.0, bRe = 0.0, bIm = 0.0;
+					for (int row=0; row<NUM_ROWS; ++row) {
+						int xIndex = (row*numBins + k)*2;
+						double xRe = observationSpectra[xIndex];
+						double xIm = observationSpectra[xIndex+1];
+						int hIndex = ((i*NUM_ROWS + row)*numBins + k)*2;
+						aRe += spectra[hIndex]*xRe - spectra[hIndex+1]*xIm;
+						aIm += spectra[hIndex]*xIm + spectra[hIndex+1]*xRe;
+						if (hasPair) {
+							hIndex += NUM_ROWS*numBins*2;
+							bRe += spectra[hIndex]*xRe - spectra[hIndex+1]*xIm;
+							bIm += spectra[hIndex]*xIm + spectra[hIndex+1]*xRe;
+						}
+					}
+					// Z = A + iB, extended to the full spectrum by the conjugate symmetry of A and B
+					re[k] = aRe - bIm;
+					im[k] = aIm + bRe;
+					if (k > 0 && k < fftSize/2) {
+						re[fftSize-k] = aRe + bIm;
+						im[fftSize-k] = bRe - aIm;
+					}
+				}
+				fft.inverse(re, im);
+				for (int n=firstN; n<=lastN; ++n) {
+					int t = blockStart - (tw-1) + n;
+					scores[scoresOffset + t*numIndices + i] += (float) (re[n] / fftSize);
+					if (hasPair) scores[scoresOffset + t*numIndices + i+1] += (float) (im[n] / fftSize);
+				}
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
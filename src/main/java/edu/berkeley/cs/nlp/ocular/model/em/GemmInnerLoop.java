@@ -0,0 +1,155 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * Computes the emission scores for each template width as a single matrix
+ * product: (sequence positions x window) times (window x templates).
+ *
+ * The sliding observation windows are packed (im2col) into a row-major
+ * matrix whose rows are the white window followed by the black window, and
+ * the white and black templates are fused the same way at startup, so one
+ * multiply over K = 2*tw*LINE_HEIGHT replaces the separate white and black
+ * passes of DefaultInnerLoop.  The multiply is blocked so that a panel of
+ * templates stays in cache while it is swept over a block of windows, and
+ * the innermost kernel keeps a TILE x TILE block of scores in registers.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class GemmInnerLoop implements EmissionCacheInnerLoop {
+
+	public static final int BLOCK_POSITIONS = 64;
+	public static final int BLOCK_TEMPLATES = 32;
+	public static final int BLOCK_DEPTH = 256;
+	private static final int TILE = 4;
+
+	int numThreads;
+	float[][] fusedTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	ThreadLocal<float[]> windowBuffers;
+
+	public GemmInnerLoop(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+
+		this.fusedTemplates = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			float[] fused = new float[numIndices*2*windowSize];
+			for (int i=0; i<numIndices; ++i) {
+				System.arraycopy(whiteTemplates[tw-minTemplateWidth], i*windowSize, fused, i*2*windowSize, windowSize);
+				System.arraycopy(blackTemplates[tw-minTemplateWidth], i*windowSize, fused, i*2*windowSize+windowSize, windowSize);
+			}
+			fusedTemplates[tw-minTemplateWidth] = fused;
+		}
+
+		final int windowBufferSize = Math.max(0, maxSequenceLength-minTemplateWidth+1) * 2*maxTemplateWidth*CharacterTemplate.LINE_HEIGHT;
+		this.windowBuffers = new ThreadLocal<float[]>() {
+			protected float[] initialValue() {
+				return new float[windowBufferSize];
+			}
+		};
+	}
+
+	public void shutdown() {
+		this.fusedTemplates = null;
+		this.windowBuffers = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		float[] windows = windowBuffers.get();
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numPositions = (sequenceLength-tw)+1;
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			if (numPositions <= 0 || numIndices == 0) continue;
+			int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+			packWindows(windows, whiteObservations, blackObservations, numPositions, windowSize);
+			multiply(scores, templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength, windows, fusedTemplates[tw-minTemplateWidth], numPositions, numIndices, 2*windowSize);
+		}
+	}
+
+	private static void packWindows(float[] windows, float[] whiteObservations, float[] blackObservations, int numPositions, int windowSize) {
+		for (int t=0; t<numPositions; ++t) {
+			System.arraycopy(whiteObservations, t*CharacterTemplate.LINE_HEIGHT, windows, t*2*windowSize, windowSize);
+			System.arraycopy(blackObservations, t*CharacterTemplate.LINE_HEIGHT, windows, t*2*windowSize+windowSize, windowSize);
+		}
+	}
+
+	/**
+	 * scores[scoresOffset + t*numIndices + i] += windows[t,:] . templates[i,:]
+	 */
+	private static void multiply(float[] scores, int scoresOffset, float[] windows, float[] templates, int numPositions, int numIndices, int depth) {
+		for (int k0=0; k0<depth; k0+=BLOCK_DEPTH) {
+			int kEnd = Math.min(k0+BLOCK_DEPTH, depth);
+			for (int i0=0; i0<numIndices; i0+=BLOCK_TEMPLATES) {
+				int iEnd = Math.min(i0+BLOCK_TEMPLATES, numIndices);
+				for (int t0=0; t0<numPositions; t0+=BLOCK_POSITIONS) {
+					int tEnd = Math.min(t0+BLOCK_POSITIONS, numPositions);
+					for (int t=t0; t<tEnd; t+=TILE) {
+						for (int i=i0; i<iEnd; i+=TILE) {
+							if (t+TILE <= tEnd && i+TILE <= iEnd) {
+								tileKernel(scores, scoresOffset, windows, templates, numIndices, depth, t, i, k0, kEnd);
+							} else {
+								edgeKernel(scores, scoresOffset, windows, templates, numIndices, depth, t, Math.min(t+TILE, tEnd), i, Math.min(i+TILE, iEnd), k0, kEnd);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void tileKernel(float[] scores, int scoresOffset, float[] windows, float[] templates, int numIndices, int depth, int t, int i, int k0, int kEnd) {
+		int w0 = t*depth, w1 = w0+depth, w2 = w1+depth, w3 = w2+depth;
+		int b0 = i*depth, b1 = b0+depth, b2 = b1+depth, b3 = b2+depth;
+		float c00 = 0.0f, c01 = 0.0f, c02 = 0.0f, c03 = 0.0f;
+		float c10 = 0.0f, c11 = 0.0f, c12 = 0.0f, c13 = 0.0f;
+		float c20 = 0.0f, c21 = 0.0f, c22 = 0.0f, c23 = 0.0f;
+		float c30 = 0.0f, c31 = 0.0f, c32 = 0.0f, c33 = 0.0f;
+		for (int k=k0; k<kEnd; ++k) {
+			float a0 = windows[w0+k], a1 = windows[w1+k], a2 = windows[w2+k], a3 = windows[w3+k];
+			float t0 = templates[b0+k], t1 = templates[b1+k], t2 = templates[b2+k], t3 = templates[b3+k];
+			c00 += a0*t0; c01 += a0*t1; c02 += a0*t2; c03 += a0*t3;
+			c10 += a1*t0; c11 += a1*t1; c12 += a1*t2; c13 += a1*t3;
+			c20 += a2*t0; c21 += a2*t1; c22 += a2*t2; c23 += a2*t3;
+			c30 += a3*t0; c31 += a3*t1; c32 += a3*t2; c33 += a3*t3;
+		}
+		int s0 = scoresOffset + t*numIndices + i;
+		int s1 = s0+numIndices, s2 = s1+numIndices, s3 = s2+numIndices;
+		scores[s0] += c00; scores[s0+1] += c01; scores[s0+2] += c02; scores[s0+3] += c03;
+		scores[s1] += c10; scores[s1+1] += c11; scores[s1+2] += c12; scores[s1+3] += c13;
+		scores[s2] += c20; scores[s2+1] += c21; scores[s2+2] += c22; scores[s2+3] += c23;
+		scores[s3] += c30; scores[s3+1] += c31; scores[s3+2] += c32; scores[s3+3] += c33;
+	}
+
+	private static void edgeKernel(float[] scores, int scoresOffset, float[] windows, float[] templates, int numIndices, int depth, int tStart, int tEnd, int iStart, int iEnd, int k0, int kEnd) {
+		for (int t=tStart; t<tEnd; ++t) {
+			for (int i=iStart; i<iEnd; ++i) {
+				float score = 0.0f;
+				for (int k=k0; k<kEnd; ++k) {
+					score += windows[t*depth+k] * templates[i*depth+k];
+				}
+				scores[scoresOffset + t*numIndices + i] += score;
+			}
+		}
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
@@ -0,0 +1,18 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+/**
+ * An inner loop that derives the scores for every vertical offset from a
+ * single template per (character, width, exposure).
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public interface OffsetSharingEmissionCacheInnerLoop extends EmissionCacheInnerLoop {
+	/**
+	 * Like startup, but each template column has LINE_HEIGHT+2*MAX_OFFSET
+	 * rows (see CharacterTemplate.logWhiteProbsAllOffsets), and there is one
+	 * template for every 2*MAX_OFFSET+1 score indices.  templateNumIndices
+	 * and templateIndicesOffsets still count every offset, with the offset
+	 * varying fastest, so the layout of the scores is unchanged.
+	 */
+	public void startupSharedOffsets(float[][] paddedWhiteTemplates, float[][] paddedBlackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices);
+}
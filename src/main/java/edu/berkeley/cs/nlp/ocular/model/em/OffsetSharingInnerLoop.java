@@ -0,0 +1,160 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * Scores all vertical offsets of a template together.  A template shifted
+ * by offset o is just rows [o+MAX_OFFSET, o+MAX_OFFSET+LINE_HEIGHT) of the
+ * padded template (see CharacterTemplate.logWhiteProbsAllOffsets), so only
+ * one template per (character, width, exposure) is needed, and each set
+ * observation pixel adds a contiguous run of 2*MAX_OFFSET+1 template values
+ * into one accumulator per offset.
+ *
+ * Like PopcountInnerLoop, it works on bit-packed observations and only
+ * touches non-obscured pixels.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class OffsetSharingInnerLoop implements OffsetSharingEmissionCacheInnerLoop, BitPackedEmissionCacheInnerLoop {
+
+	public static final int NUM_OFFSETS = 2*CharacterTemplate.MAX_OFFSET+1;
+	public static final int PADDED_HEIGHT = CharacterTemplate.LINE_HEIGHT+2*CharacterTemplate.MAX_OFFSET;
+
+	int numThreads;
+	float[][] fusedTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	ThreadLocal<int[]> activeIndexBuffers;
+
+	public OffsetSharingInnerLoop(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Takes one template per offset, as the other inner loops do, and
+	 * rebuilds the padded templates from the lowest and highest offsets the
+	 * same way CharacterTemplate.logWhiteProbsAllOffsets does.
+	 */
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		float[][] paddedWhiteTemplates = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		float[][] paddedBlackTemplates = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int numTemplates = templateNumIndices[tw-minTemplateWidth] / NUM_OFFSETS;
+			paddedWhiteTemplates[tw-minTemplateWidth] = padForOffsets(whiteTemplates[tw-minTemplateWidth], numTemplates, tw);
+			paddedBlackTemplates[tw-minTemplateWidth] = padForOffsets(blackTemplates[tw-minTemplateWidth], numTemplates, tw);
+		}
+		startupSharedOffsets(paddedWhiteTemplates, paddedBlackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
+	}
+
+	private static float[] padForOffsets(float[] templates, int numTemplates, int tw) {
+		int lineHeight = CharacterTemplate.LINE_HEIGHT;
+		int windowSize = tw*lineHeight;
+		float[] padded = new float[numTemplates*tw*PADDED_HEIGHT];
+		for (int b=0; b<numTemplates; ++b) {
+			int lowestOffset = b*NUM_OFFSETS*windowSize;
+			int highestOffset = (b*NUM_OFFSETS + NUM_OFFSETS-1)*windowSize;
+			for (int k=0; k<tw; ++k) {
+				System.arraycopy(templates, lowestOffset + k*lineHeight, padded, (b*tw + k)*PADDED_HEIGHT, lineHeight);
+				System.arraycopy(templates, highestOffset + k*lineHeight + lineHeight-2*CharacterTemplate.MAX_OFFSET, padded, (b*tw + k)*PADDED_HEIGHT + lineHeight, 2*CharacterTemplate.MAX_OFFSET);
+			}
+		}
+		return padded;
+	}
+
+	public void startupSharedOffsets(float[][] paddedWhiteTemplates, float[][] paddedBlackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+
+		this.fusedTemplates = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int windowSize = tw*PADDED_HEIGHT;
+			int numTemplates = templateNumIndices[tw-minTemplateWidth] / NUM_OFFSETS;
+			float[] fused = new float[numTemplates*2*windowSize];
+			for (int b=0; b<numTemplates; ++b) {
+				System.arraycopy(paddedWhiteTemplates[tw-minTemplateWidth], b*windowSize, fused, b*2*windowSize, windowSize);
+				System.arraycopy(paddedBlackTemplates[tw-minTemplateWidth], b*windowSize, fused, b*2*windowSize+windowSize, windowSize);
+			}
+			fusedTemplates[tw-minTemplateWidth] = fused;
+		}
+
+		final int activeIndexBufferSize = 2*maxTemplateWidth*CharacterTemplate.LINE_HEIGHT;
+		this.activeIndexBuffers = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[activeIndexBufferSize];
+			}
+		};
+	}
+
+	public void shutdown() {
+		this.fusedTemplates = null;
+		this.activeIndexBuffers = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, PopcountInnerLoop.pack(whiteObservations, sequenceLength), PopcountInnerLoop.pack(blackObservations, sequenceLength), sequenceLength);
+	}
+
+	public void compute(final float[] scores, final long[] whiteMasks, final long[] blackMasks, final int sequenceLength) {
+		int[] activeIndices = activeIndexBuffers.get();
+		float[] offsetScores = new float[NUM_OFFSETS];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			float[] templates = fusedTemplates[tw-minTemplateWidth];
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			int numTemplates = numIndices / NUM_OFFSETS;
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int windowSize = tw*PADDED_HEIGHT;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int numActive = gatherActiveIndices(activeIndices, whiteMasks, blackMasks, t, tw, windowSize);
+				int scoresRowOffset = scoresOffset + t*numIndices;
+				for (int b=0; b<numTemplates; ++b) {
+					int templateOffset = b*2*windowSize;
+					for (int o=0; o<NUM_OFFSETS; ++o) offsetScores[o] = 0.0f;
+					for (int k=0; k<numActive; ++k) {
+						int index = templateOffset + activeIndices[k];
+						for (int o=0; o<NUM_OFFSETS; ++o) {
+							offsetScores[o] += templates[index+o];
+						}
+					}
+					for (int o=0; o<NUM_OFFSETS; ++o) {
+						scores[scoresRowOffset + b*NUM_OFFSETS + o] += offsetScores[o];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Like PopcountInnerLoop.gatherActiveIndices, but indexing into padded
+	 * template columns at offset -MAX_OFFSET; adding o to an index moves it
+	 * to offset o-MAX_OFFSET.
+	 */
+	private static int gatherActiveIndices(int[] activeIndices, long[] whiteMasks, long[] blackMasks, int t, int tw, int windowSize) {
+		int numActive = 0;
+		for (int k=0; k<tw; ++k) {
+			long white = whiteMasks[t+k];
+			while (white != 0L) {
+				activeIndices[numActive++] = k*PADDED_HEIGHT + Long.numberOfTrailingZeros(white);
+				white &= white - 1L;
+			}
+			long black = blackMasks[t+k];
+			while (black != 0L) {
+				activeIndices[numActive++] = windowSize + k*PADDED_HEIGHT + Long.numberOfTrailingZeros(black);
+				black &= black - 1L;
+			}
+		}
+		return numActive;
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
@@ -0,0 +1,126 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * Scores bit-packed observations by summing template log-probs over set
+ * bits only.  For each observation window the set bits of the WHITE and
+ * BLACK masks are gathered once into a list of indices into the fused
+ * (white then black) template, and every template of that width is then
+ * scored with a sparse sum over that list.  This skips the multiply-by-zero
+ * work of the dense loops: a window costs one add per non-obscured pixel
+ * instead of two multiply-adds per pixel.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class PopcountInnerLoop implements BitPackedEmissionCacheInnerLoop {
+
+	int numThreads;
+	float[][] fusedTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+	ThreadLocal<int[]> activeIndexBuffers;
+
+	public PopcountInnerLoop(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+
+		this.fusedTemplates = new float[(maxTemplateWidth-minTemplateWidth)+1][];
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			float[] fused = new float[numIndices*2*windowSize];
+			for (int i=0; i<numIndices; ++i) {
+				System.arraycopy(whiteTemplates[tw-minTemplateWidth], i*windowSize, fused, i*2*windowSize, windowSize);
+				System.arraycopy(blackTemplates[tw-minTemplateWidth], i*windowSize, fused, i*2*windowSize+windowSize, windowSize);
+			}
+			fusedTemplates[tw-minTemplateWidth] = fused;
+		}
+
+		final int activeIndexBufferSize = 2*maxTemplateWidth*CharacterTemplate.LINE_HEIGHT;
+		this.activeIndexBuffers = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[activeIndexBufferSize];
+			}
+		};
+	}
+
+	public void shutdown() {
+		this.fusedTemplates = null;
+		this.activeIndexBuffers = null;
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		compute(scores, pack(whiteObservations, sequenceLength), pack(blackObservations, sequenceLength), sequenceLength);
+	}
+
+	public void compute(final float[] scores, final long[] whiteMasks, final long[] blackMasks, final int sequenceLength) {
+		int[] activeIndices = activeIndexBuffers.get();
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			float[] templates = fusedTemplates[tw-minTemplateWidth];
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int numActive = gatherActiveIndices(activeIndices, whiteMasks, blackMasks, t, tw, windowSize);
+				int scoresRowOffset = scoresOffset + t*numIndices;
+				for (int i=0; i<numIndices; ++i) {
+					int templateOffset = i*2*windowSize;
+					float score = 0.0f;
+					for (int k=0; k<numActive; ++k) {
+						score += templates[templateOffset + activeIndices[k]];
+					}
+					scores[scoresRowOffset+i] += score;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fill activeIndices with the fused-template index of every set bit in
+	 * the window of width tw starting at column t; returns how many were set.
+	 */
+	public static int gatherActiveIndices(int[] activeIndices, long[] whiteMasks, long[] blackMasks, int t, int tw, int windowSize) {
+		int numActive = 0;
+		for (int k=0; k<tw; ++k) {
+			long white = whiteMasks[t+k];
+			while (white != 0L) {
+				activeIndices[numActive++] = k*CharacterTemplate.LINE_HEIGHT + Long.numberOfTrailingZeros(white);
+				white &= white - 1L;
+			}
+			long black = blackMasks[t+k];
+			while (black != 0L) {
+				activeIndices[numActive++] = windowSize + k*CharacterTemplate.LINE_HEIGHT + Long.numberOfTrailingZeros(black);
+				black &= black - 1L;
+			}
+		}
+		return numActive;
+	}
+
+	static long[] pack(float[] observations, int sequenceLength) {
+		long[] masks = new long[sequenceLength];
+		for (int t=0; t<sequenceLength; ++t) {
+			for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+				if (observations[t*CharacterTemplate.LINE_HEIGHT + j] != 0.0f) masks[t] |= 1L << j;
+			}
+		}
+		return masks;
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
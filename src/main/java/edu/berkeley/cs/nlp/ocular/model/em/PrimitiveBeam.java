@@ -0,0 +1,234 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+
+/**
+ * Fixed-capacity beams for a set of columns, kept in flat primitive arrays
+ * so that adding to a beam allocates nothing.  Column c's beam occupies
+ * slots c*beamSize through c*beamSize+beamSize-1; slots 0 through size(c)-1
+ * of a column are always the ones in use, and a state keeps its slot until
+ * it is evicted, so a backpointer is just the (column, slot) of the
+ * previous state.
+ *
+ * Each column's slots are ordered by a binary min-heap on the score plus
+ * the forward (coarse backward pass) score, so that the worst state is at
+ * the root and can be replaced in log time.  Beams are expected to be
+ * small, so states are found within a column by a linear scan of their
+ * hash codes rather than a hash map.
+ *
+ * The arrays are allocated once and reused across columns, lines and
+ * decodes; clear() only resets the column sizes.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class PrimitiveBeam {
+
+	private int beamSize;
+	private int numColumns;
+
+	private int[] sizes;
+	private TransitionState[] states;
+	private int[] hashCodes;
+	private double[] scores;
+	private double[] priorities;
+	private int[] backColumns;
+	private int[] backSlots;
+	private int[] heap;
+	private int[] heapPositions;
+
+	public PrimitiveBeam(int beamSize, int numColumns) {
+		clear(beamSize, numColumns);
+	}
+
+	/**
+	 * Empty every column, growing the arrays only if they are too small for
+	 * the new beam size and number of columns.
+	 */
+	public void clear(int beamSize, int numColumns) {
+		if (beamSize < 1) throw new RuntimeException("beamSize must be positive, was " + beamSize);
+		long capacity = (long) beamSize * numColumns;
+		if (capacity > Integer.MAX_VALUE) throw new RuntimeException("Beam of size " + beamSize + " over " + numColumns + " columns is too large");
+		if (states == null || states.length < capacity) {
+			states = new TransitionState[(int) capacity];
+			hashCodes = new int[(int) capacity];
+			scores = new double[(int) capacity];
+			priorities = new double[(int) capacity];
+			backColumns = new int[(int) capacity];
+			backSlots = new int[(int) capacity];
+			heap = new int[(int) capacity];
+			heapPositions = new int[(int) capacity];
+		} else {
+			// drop references to old states so they can be collected
+			Arrays.fill(states, null);
+		}
+		if (sizes == null || sizes.length < numColumns) sizes = new int[numColumns];
+		else Arrays.fill(sizes, 0, numColumns, 0);
+		this.beamSize = beamSize;
+		this.numColumns = numColumns;
+	}
+
+	/**
+	 * Empty columns from through to-1, so that a line can be decoded again.
+	 */
+	public void clearColumns(int from, int to) {
+		Arrays.fill(sizes, from, to, 0);
+	}
+
+	public int numColumns() {
+		return numColumns;
+	}
+
+	public int size(int column) {
+		return sizes[column];
+	}
+
+	public TransitionState state(int column, int slot) {
+		return states[column*beamSize + slot];
+	}
+
+	public double score(int column, int slot) {
+		return scores[column*beamSize + slot];
+	}
+
+	public int backColumn(int column, int slot) {
+		return backColumns[column*beamSize + slot];
+	}
+
+	public int backSlot(int column, int slot) {
+		return backSlots[column*beamSize + slot];
+	}
+
+	/**
+	 * The slot of the given state in the column, or -1.
+	 */
+	public int find(int column, TransitionState ts) {
+		return find(column, ts, ts.hashCode());
+	}
+
+	/**
+	 * Offer a state to a column's beam.  As with the priority queue beam, a
+	 * state is only considered if its score plus forward score beats the
+	 * worst state already in the beam; a state that is already in the beam
+	 * keeps its best score and that score's backpointer.
+	 */
+	public void add(int column, TransitionState ts, double score, double forwardScore, int backColumn, int backSlot) {
+		double priority = score + forwardScore;
+		int base = column*beamSize;
+		int size = sizes[column];
+		if (size > 0 && !(priority > priorities[base + heap[base]])) return;
+		int hashCode = ts.hashCode();
+		int slot = find(column, ts, hashCode);
+		if (slot >= 0) {
+			int i = base + slot;
+			if (priority > priorities[i]) {
+				priorities[i] = priority;
+				siftDown(base, size, heapPositions[i]);
+			}
+		} else {
+			if (size < beamSize) {
+				slot = size;
+				sizes[column] = ++size;
+				heap[base + size-1] = slot;
+				heapPositions[base + slot] = size-1;
+			} else {
+				// replace the worst state, which the new one beats
+				slot = heap[base];
+			}
+			int i = base + slot;
+			states[i] = ts;
+			hashCodes[i] = hashCode;
+			scores[i] = Double.NEGATIVE_INFINITY;
+			priorities[i] = priority;
+			siftUp(base, heapPositions[i]);
+			siftDown(base, size, heapPositions[i]);
+		}
+		int i = base + slot;
+		if (scores[i] < score) {
+			scores[i] = score;
+			backColumns[i] = backColumn;
+			backSlots[i] = backSlot;
+		}
+	}
+
+	/**
+	 * Drop the states of a column (worst first) whose score plus forward score
+	 * is more than margin below the best, keeping at least minSize.  The
+	 * remaining states may move to other slots, so a column must not be pruned
+	 * once later columns point back into it.
+	 */
+	public void prune(int column, double margin, int minSize) {
+		int base = column*beamSize;
+		int size = sizes[column];
+		if (size <= minSize) return;
+		double bestPriority = Double.NEGATIVE_INFINITY;
+		for (int slot=0; slot<size; ++slot) {
+			bestPriority = Math.max(bestPriority, priorities[base + slot]);
+		}
+		while (size > minSize && priorities[base + heap[base]] < bestPriority - margin) {
+			int slot = heap[base];
+			// take the worst state off the heap
+			--size;
+			heap[base] = heap[base + size];
+			heapPositions[base + heap[base]] = 0;
+			if (size > 0) siftDown(base, size, 0);
+			// and fill its slot with the state in the last slot
+			if (slot != size) {
+				int from = base + size;
+				int to = base + slot;
+				states[to] = states[from];
+				hashCodes[to] = hashCodes[from];
+				scores[to] = scores[from];
+				priorities[to] = priorities[from];
+				backColumns[to] = backColumns[from];
+				backSlots[to] = backSlots[from];
+				heapPositions[to] = heapPositions[from];
+				heap[base + heapPositions[to]] = slot;
+			}
+			states[base + size] = null;
+		}
+		sizes[column] = size;
+	}
+
+	private int find(int column, TransitionState ts, int hashCode) {
+		int base = column*beamSize;
+		for (int slot=0; slot<sizes[column]; ++slot) {
+			if (hashCodes[base + slot] == hashCode && states[base + slot].equals(ts)) return slot;
+		}
+		return -1;
+	}
+
+	private void siftUp(int base, int h) {
+		int slot = heap[base + h];
+		double priority = priorities[base + slot];
+		while (h > 0) {
+			int parent = (h-1) / 2;
+			int parentSlot = heap[base + parent];
+			if (!(priority < priorities[base + parentSlot])) break;
+			heap[base + h] = parentSlot;
+			heapPositions[base + parentSlot] = h;
+			h = parent;
+		}
+		heap[base + h] = slot;
+		heapPositions[base + slot] = h;
+	}
+
+	private void siftDown(int base, int size, int h) {
+		int slot = heap[base + h];
+		double priority = priorities[base + slot];
+		while (true) {
+			int child = 2*h + 1;
+			if (child >= size) break;
+			if (child+1 < size && priorities[base + heap[base + child+1]] < priorities[base + heap[base + child]]) child++;
+			int childSlot = heap[base + child];
+			if (!(priorities[base + childSlot] < priority)) break;
+			heap[base + h] = childSlot;
+			heapPositions[base + childSlot] = h;
+			h = child;
+		}
+		heap[base + h] = slot;
+		heapPositions[base + slot] = h;
+	}
+
+}
@@ -0,0 +1,114 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import tberg.murphy.gpu.CudaUtil;
+
+/**
+ * Same scores as DefaultInnerLoop (up to float summation order), but with
+ * the white and black passes fused and the dot products unrolled across
+ * blocks of templates so that the JIT can vectorize them.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class VectorizedInnerLoop implements EmissionCacheInnerLoop {
+
+	public static final int TEMPLATE_BLOCK = 4;
+
+	int numThreads;
+	float[][] whiteTemplates;
+	float[][] blackTemplates;
+	int[] templateNumIndices;
+	int[] templateIndicesOffsets;
+	int maxTemplateWidth;
+	int minTemplateWidth;
+
+	public VectorizedInnerLoop(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void startup(float[][] whiteTemplates, float[][] blackTemplates, int[] templateNumIndices, int[] templateIndicesOffsets, int minTemplateWidth, int maxTemplateWidth, int maxSequenceLength, int totalTemplateNumIndices) {
+		this.whiteTemplates = whiteTemplates;
+		this.blackTemplates = blackTemplates;
+		this.templateNumIndices = templateNumIndices;
+		this.templateIndicesOffsets = templateIndicesOffsets;
+		this.maxTemplateWidth = maxTemplateWidth;
+		this.minTemplateWidth = minTemplateWidth;
+	}
+
+	public void shutdown() {
+	}
+
+	public void compute(final float[] scores, final float[] whiteObservations, final float[] blackObservations, final int sequenceLength) {
+		for (int tw=minTemplateWidth; tw<=maxTemplateWidth; ++tw) {
+			float[] whiteTemplatesForWidth = whiteTemplates[tw-minTemplateWidth];
+			float[] blackTemplatesForWidth = blackTemplates[tw-minTemplateWidth];
+			int numIndices = templateNumIndices[tw-minTemplateWidth];
+			int scoresOffset = templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength;
+			int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+			for (int t=0; t<(sequenceLength-tw)+1; ++t) {
+				int observationOffset = t*CharacterTemplate.LINE_HEIGHT;
+				int scoresRowOffset = scoresOffset + CudaUtil.flatten(sequenceLength, numIndices, t, 0);
+				int i = 0;
+				for (; i+TEMPLATE_BLOCK<=numIndices; i+=TEMPLATE_BLOCK) {
+					blockDotProducts(scores, scoresRowOffset+i, whiteObservations, blackObservations, observationOffset, whiteTemplatesForWidth, blackTemplatesForWidth, i*windowSize, windowSize);
+				}
+				for (; i<numIndices; ++i) {
+					scores[scoresRowOffset+i] += dotProduct(whiteObservations, blackObservations, observationOffset, whiteTemplatesForWidth, blackTemplatesForWidth, i*windowSize, windowSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scores TEMPLATE_BLOCK consecutive templates against one observation window.
+	 */
+	private static void blockDotProducts(float[] scores, int scoresOffset, float[] whiteObservations, float[] blackObservations, int observationOffset, float[] whiteTemplates, float[] blackTemplates, int templateOffset, int windowSize) {
+		int t0 = templateOffset;
+		int t1 = t0 + windowSize;
+		int t2 = t1 + windowSize;
+		int t3 = t2 + windowSize;
+		float score0 = 0.0f;
+		float score1 = 0.0f;
+		float score2 = 0.0f;
+		float score3 = 0.0f;
+		for (int j=0; j<windowSize; ++j) {
+			float white = whiteObservations[observationOffset+j];
+			float black = blackObservations[observationOffset+j];
+			score0 += white * whiteTemplates[t0+j] + black * blackTemplates[t0+j];
+			score1 += white * whiteTemplates[t1+j] + black * blackTemplates[t1+j];
+			score2 += white * whiteTemplates[t2+j] + black * blackTemplates[t2+j];
+			score3 += white * whiteTemplates[t3+j] + black * blackTemplates[t3+j];
+		}
+		scores[scoresOffset] += score0;
+		scores[scoresOffset+1] += score1;
+		scores[scoresOffset+2] += score2;
+		scores[scoresOffset+3] += score3;
+	}
+
+	private static float dotProduct(float[] whiteObservations, float[] blackObservations, int observationOffset, float[] whiteTemplates, float[] blackTemplates, int templateOffset, int windowSize) {
+		float score0 = 0.0f;
+		float score1 = 0.0f;
+		float score2 = 0.0f;
+		float score3 = 0.0f;
+		int j = 0;
+		for (; j+4<=windowSize; j+=4) {
+			score0 += whiteObservations[observationOffset+j] * whiteTemplates[templateOffset+j] + blackObservations[observationOffset+j] * blackTemplates[templateOffset+j];
+			score1 += whiteObservations[observationOffset+j+1] * whiteTemplates[templateOffset+j+1] + blackObservations[observationOffset+j+1] * blackTemplates[templateOffset+j+1];
+			score2 += whiteObservations[observationOffset+j+2] * whiteTemplates[templateOffset+j+2] + blackObservations[observationOffset+j+2] * blackTemplates[templateOffset+j+2];
+			score3 += whiteObservations[observationOffset+j+3] * whiteTemplates[templateOffset+j+3] + blackObservations[observationOffset+j+3] * blackTemplates[templateOffset+j+3];
+		}
+		for (; j<windowSize; ++j) {
+			score0 += whiteObservations[observationOffset+j] * whiteTemplates[templateOffset+j] + blackObservations[observationOffset+j] * blackTemplates[templateOffset+j];
+		}
+		return (score0 + score1) + (score2 + score3);
+	}
+
+	public int numOuterThreads() {
+		return numThreads;
+	}
+
+	public int numPopulateThreads() {
+		return 1;
+	}
+
+}
@@ -0,0 +1,97 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * A line of observations stored as one WHITE and one BLACK bit mask per
+ * column (bit j of column t is set iff pixel j of column t has that type;
+ * OBSCURED pixels are set in neither).  This takes two longs per column
+ * instead of 2*LINE_HEIGHT floats.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class BitPackedObservations {
+
+	static {
+		if (CharacterTemplate.LINE_HEIGHT > Long.SIZE) throw new RuntimeException("LINE_HEIGHT ("+CharacterTemplate.LINE_HEIGHT+") does not fit in a single long mask");
+	}
+
+	public final long[] whiteMasks;
+	public final long[] blackMasks;
+
+	public BitPackedObservations(PixelType[][] line) {
+		this.whiteMasks = new long[line.length];
+		this.blackMasks = new long[line.length];
+		for (int t=0; t<line.length; ++t) {
+			for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+				if (line[t][j] == PixelType.WHITE) whiteMasks[t] |= 1L << j;
+				else if (line[t][j] == PixelType.BLACK) blackMasks[t] |= 1L << j;
+			}
+		}
+	}
+
+	public int sequenceLength() {
+		return whiteMasks.length;
+	}
+
+	/**
+	 * Expand to the dense 0/1 [t*LINE_HEIGHT + j] layout expected by the
+	 * float-based inner loops.
+	 */
+	public static void expand(long[] masks, float[] dense) {
+		for (int t=0; t<masks.length; ++t) {
+			long mask = masks[t];
+			for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+				dense[t*CharacterTemplate.LINE_HEIGHT + j] = ((mask >>> j) & 1L) != 0 ? 1.0f : 0.0f;
+			}
+		}
+	}
+
+	/**
+	 * Sum of the given per-row log-probs over the set bits of the mask.
+	 */
+	public static float sumOverSetBits(long mask, float[] logProbs) {
+		return sumOverSetBits(mask, logProbs, 0);
+	}
+
+	/**
+	 * Same, with the per-row log-probs starting at logProbs[offset].
+	 */
+	public static float sumOverSetBits(long mask, float[] logProbs, int offset) {
+		float sum = 0.0f;
+		while (mask != 0L) {
+			sum += logProbs[offset + Long.numberOfTrailingZeros(mask)];
+			mask &= mask - 1L;
+		}
+		return sum;
+	}
+
+	public float columnLogProb(int t, float[] logWhiteProbs, float[] logBlackProbs) {
+		return sumOverSetBits(whiteMasks[t], logWhiteProbs) + sumOverSetBits(blackMasks[t], logBlackProbs);
+	}
+
+	/**
+	 * Cumulative log-probs of the columns under the single-column template
+	 * of the given (space) character, per exposure: result[e][t] is the sum
+	 * over columns [0, t), so a span [s, s+n) scores result[e][s+n] -
+	 * result[e][s].  Kept in double so long lines don't lose precision in the
+	 * subtraction.
+	 */
+	public double[][] prefixColumnLogProbs(CharacterTemplate template) {
+		double[][] result = new double[CharacterTemplate.EXP_GAINS.length][sequenceLength()+1];
+		for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+			float[] logWhiteProbs = template.logWhiteProbs(e, 0, 1)[0];
+			float[] logBlackProbs = template.logBlackProbs(e, 0, 1)[0];
+			for (int t=0; t<sequenceLength(); ++t) {
+				result[e][t+1] = result[e][t] + columnLogProb(t, logWhiteProbs, logBlackProbs);
+			}
+		}
+		return result;
+	}
+
+	public long memoryBytes() {
+		return 2L*(EmissionCacheBuffers.ARRAY_HEADER_BYTES + 8L*whiteMasks.length);
+	}
+
+}
@@ -1,14 +1,23 @@
 package edu.berkeley.cs.nlp.ocular.model.emission;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
 import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.em.BitPackedEmissionCacheInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.OffsetSharingEmissionCacheInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.WorkScheduler;
 import tberg.murphy.gpu.CudaUtil;
 import tberg.murphy.indexer.Indexer;
 import tberg.murphy.threading.BetterThreader;
@@ -18,25 +27,66 @@ import tberg.murphy.threading.BetterThreader;
  */
 public class CachingEmissionModel implements EmissionModel {
 	
+	private static final int POPULATE_CHUNK_COLUMNS = 64;
+
 	private EmissionCacheInnerLoop innerLoop;
 	private int numChars;
 	private CharacterTemplate[] templates;
 	private PixelType[][][] observations;
-	private float[][] whiteObservations;
-	private float[][] blackObservations;
+	private BitPackedObservations[] packedObservations;
 	private int[][] templateAllowedWidths;
 	private int[] templateMinWidths;
 	private int[] templateMaxWidths;
 	private int[] padAndTemplateMinWidths;
 	private int[] padAndTemplateMaxWidths;
 	private int[][] padAndTemplateAllowedWidths;
-	private float[][][][] cachedLogProbs;
+	private int[] cacheCharOffsets;
+	private int cacheColumnStride;
+	private FloatBuffer[] cachedLogProbs;
+	private short[][] cachedArgmaxes;
+	private boolean offHeapCache;
+	private QuantizedEmissionCache.Precision precision;
+	private QuantizedEmissionCache quantizedLogProbs;
+	private String cacheDir;
+	private boolean incrementalRefresh;
+	private long[] cachedTemplateVersions;
 	private int spaceIndex;
 	private int padMinWidth;
 	private int padMaxWidth;
 	
 	public CachingEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, false);
+	}
+	
+	public CachingEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, QuantizedEmissionCache.Precision.FLOAT32);
+	}
+	
+	public CachingEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, null);
+	}
+	
+	/**
+	 * If cacheDir is not null, the emission cache is saved there, and a cache
+	 * saved by an earlier run over the same lines is mapped instead of being
+	 * rebuilt (unless the font has changed since).
+	 */
+	public CachingEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision, String cacheDir) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, cacheDir, false);
+	}
+	
+	/**
+	 * If incrementalRefresh is true, rebuilding a cache that has already
+	 * been built only recomputes the characters whose templates have a new
+	 * version() since the last build.
+	 */
+	public CachingEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision, String cacheDir, boolean incrementalRefresh) {
+		if (incrementalRefresh && (precision != QuantizedEmissionCache.Precision.FLOAT32 || cacheDir != null)) throw new RuntimeException("Incremental emission cache refresh needs a FLOAT32 emission cache that is not saved to disk");
 		this.innerLoop = innerLoop;
+		this.offHeapCache = offHeapCache;
+		this.precision = precision;
+		this.cacheDir = cacheDir;
+		this.incrementalRefresh = incrementalRefresh;
 		
 		this.numChars = charIndexer.size();
 		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
@@ -44,30 +94,14 @@ public class CachingEmissionModel implements EmissionModel {
 		this.observations = observations;
 		this.padMinWidth = padMinWidth;
 		this.padMaxWidth = padMaxWidth;
+		EmissionCacheBuffers.checkArgmaxPadWidth(padMaxWidth);
 		
 		for (int c=0; c<numChars; ++c) 
 			if (templates[c] == null) throw new RuntimeException("template for template["+c+"] ("+charIndexer.getObject(c)+") is null!"); 
 
-		this.whiteObservations = new float[observations.length][];
-		this.blackObservations = new float[observations.length][];
+		this.packedObservations = new BitPackedObservations[observations.length];
 		for (int d=0; d<observations.length; ++d) {
-			this.whiteObservations[d] = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
-			this.blackObservations[d] = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-					PixelType observation = observations[d][t][j];
-					if (observation == PixelType.BLACK) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 1.0f;
-					} else if (observation == PixelType.WHITE) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 1.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-					} else {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-					} 
-				}
-			}
+			this.packedObservations[d] = new BitPackedObservations(observations[d]);
 		}
 	}
 	
@@ -92,74 +126,31 @@ public class CachingEmissionModel implements EmissionModel {
 	}
 	
 	public float logProb(int d, int t, int c, int w) {
-		return cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]];
+		return cachedLogProb(d, cacheIndex(t, c, w));
+	}
+	
+	private int cacheIndex(int t, int c, int w) {
+		return t*cacheColumnStride + cacheCharOffsets[c] + (w-padAndTemplateMinWidths[c]);
 	}
 	
 	public float logProb(int d, int t, TransitionState ts, int w) {
 		return logProb(d, t, ts.getGlyphChar().templateCharIndex, w);
 	}
 	
+	private float cachedLogProb(int d, int cacheIndex) {
+		return (quantizedLogProbs == null) ? cachedLogProbs[d].get(cacheIndex) : quantizedLogProbs.get(d, cacheIndex);
+	}
+	
 	public int getExposure(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestExposure = -1;
-		for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-					int tw = w-pw;
-					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-						if (score > bestScore) {
-							bestScore = score;
-							bestExposure = e;
-						}
-					}
-				}
-			}
-		}
-		return bestExposure;
+		return EmissionCacheBuffers.argmaxExposure(cachedArgmaxes[d][cacheIndex(t, ts.getGlyphChar().templateCharIndex, w)]);
 	}
 	
 	public int getOffset(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestOffset = Integer.MIN_VALUE;
-		for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-					int tw = w-pw;
-					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-						if (score > bestScore) {
-							bestScore = score;
-							bestOffset = offset;
-						}
-					}
-				}
-			}
-		}
-		return bestOffset;
+		return EmissionCacheBuffers.argmaxOffset(cachedArgmaxes[d][cacheIndex(t, ts.getGlyphChar().templateCharIndex, w)]);
 	}
 	
 	public int getPadWidth(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestPadWidth = -1;
-		for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-					int tw = w-pw;
-					if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-						double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-						if (score > bestScore) {
-							bestScore = score;
-							bestPadWidth = pw;
-						}
-					}
-				}
-			}
-		}
-		return bestPadWidth;
+		return EmissionCacheBuffers.argmaxPadWidth(cachedArgmaxes[d][cacheIndex(t, ts.getGlyphChar().templateCharIndex, w)]);
 	}
 	
 	public float padWidthLogProb(int pw) {
@@ -169,6 +160,8 @@ public class CachingEmissionModel implements EmissionModel {
 	public void rebuildCache() {
 		long nanoTime = System.nanoTime();
 		
+		int[] previousPadAndTemplateMinWidths = padAndTemplateMinWidths;
+		int[] previousPadAndTemplateMaxWidths = padAndTemplateMaxWidths;
 		templateAllowedWidths = new int[numChars][];
 		templateMinWidths = new int[numChars];
 		templateMaxWidths = new int[numChars];
@@ -198,36 +191,51 @@ public class CachingEmissionModel implements EmissionModel {
 			}
 		}
 
-		final float[][][] logColumnProbsWhitespace = new float[observations.length][][];
+		final long[] templateVersions = new long[numChars];
+		for (int c=0; c<numChars; ++c) templateVersions[c] = templates[c].version();
+		// every character's padding is scored with the space template, so a new space template makes everything stale
+		final boolean refresh = incrementalRefresh && cachedTemplateVersions != null && cachedTemplateVersions[spaceIndex] == templateVersions[spaceIndex]
+				&& Arrays.equals(previousPadAndTemplateMinWidths, padAndTemplateMinWidths) && Arrays.equals(previousPadAndTemplateMaxWidths, padAndTemplateMaxWidths);
+		final boolean[] stale = new boolean[numChars];
+		int numStale = 0;
+		for (int c=0; c<numChars; ++c) {
+			stale[c] = !refresh || cachedTemplateVersions[c] != templateVersions[c];
+			if (stale[c]) numStale++;
+		}
+		if (numStale == 0) {
+			System.out.println("Emission cache is up to date: no template has changed");
+			return;
+		}
+
+		final double[][][] whitespacePrefixLogProbs = new double[observations.length][][];
 		for (int d=0; d<observations.length; ++d) {
-			logColumnProbsWhitespace[d] = new float[sequenceLength(d)][CharacterTemplate.EXP_GAINS.length];
-			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-				float[] logWhiteProbsWhitespace = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
-				float[] logBlackProbsWhitespace = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
-				for (int t=0; t<sequenceLength(d); ++t) {
-					float logProb = 0.0f;
-					for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-						logProb += logWhiteProbsWhitespace[j] * whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)];
-					}
-					for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-						logProb += logBlackProbsWhitespace[j] * blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)];
-					}
-					logColumnProbsWhitespace[d][t][e] = logProb;
-				}
-			}
+			whitespacePrefixLogProbs[d] = packedObservations[d].prefixColumnLogProbs(templates[spaceIndex]);
 		}
 		
-		cachedLogProbs = new float[numSequences()][][][];
-		for (int d=0; d<numSequences(); ++d) {
-			cachedLogProbs[d] = new float[sequenceLength(d)][][];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				cachedLogProbs[d][t] = new float[numChars][];
-				for (int c=0; c<numChars; ++c) {
-					cachedLogProbs[d][t][c] = new float[padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1];
-					Arrays.fill(cachedLogProbs[d][t][c], Float.NEGATIVE_INFINITY);
-				}
+		cacheCharOffsets = new int[numChars];
+		cacheColumnStride = 0;
+		for (int c=0; c<numChars; ++c) {
+			cacheCharOffsets[c] = cacheColumnStride;
+			cacheColumnStride += padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		}
+		final EmissionCacheFile cacheFile = (cacheDir == null) ? null : openCacheFile();
+		boolean saveCacheFile = false;
+		if (!refresh) {
+			cachedLogProbs = new FloatBuffer[numSequences()];
+			cachedArgmaxes = new short[numSequences()][];
+			quantizedLogProbs = (precision == QuantizedEmissionCache.Precision.FLOAT32) ? null : new QuantizedEmissionCache(precision, numSequences(), offHeapCache);
+			if (cacheFile != null && cacheFile.isValid()) {
+				mapCacheFile(cacheFile);
+				System.out.println("Map emission cache from " + cacheFile.getPath() + ": " + (System.nanoTime() - nanoTime)/1000000 + "ms");
+				printCacheSize();
+				return;
+			}
+			for (int d=0; d<numSequences(); ++d) {
+				cachedArgmaxes[d] = new short[sequenceLength(d)*cacheColumnStride];
 			}
+			saveCacheFile = (cacheFile != null) && cacheFile.claimForWriting();
 		}
+		final EmissionCacheFile writeFile = saveCacheFile ? cacheFile : null;
 		
 		int maxTemplateWidthTmp = Integer.MIN_VALUE;
 		int minTemplateWidthTmp = Integer.MAX_VALUE;
@@ -246,14 +254,22 @@ public class CachingEmissionModel implements EmissionModel {
 			blackTemplatesList[tw-minTemplateWidth] = new ArrayList<float[]>();
 		}
 		final int[] templateNumIndices = new int[numTemplateWidths];
+		final boolean shareOffsets = innerLoop instanceof OffsetSharingEmissionCacheInnerLoop;
 		for (int c=0; c<numChars; ++c) {
+			if (!stale[c]) continue;
 			for (int tw : templateAllowedWidths[c]) {
 				for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+					if (shareOffsets) {
+						whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(templates[c].logWhiteProbsAllOffsets(e, tw)));
+						blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(templates[c].logBlackProbsAllOffsets(e, tw)));
+					}
 					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-						float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
-						float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
-						whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logWhiteProbsTemplate));
-						blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logBlackProbsTemplate));
+						if (!shareOffsets) {
+							float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
+							float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
+							whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logWhiteProbsTemplate));
+							blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logBlackProbsTemplate));
+						}
 						templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplate.MAX_OFFSET] = templateNumIndices[tw-minTemplateWidth];
 						templateNumIndices[tw-minTemplateWidth]++;
 					}
@@ -277,49 +293,146 @@ public class CachingEmissionModel implements EmissionModel {
 		int maxSequenceLength = Integer.MIN_VALUE;
 		for (int d=0; d<numSequences(); ++d) maxSequenceLength = Math.max(maxSequenceLength, sequenceLength(d));
 		
-		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
-		float[][] scores = new float[innerLoop.numOuterThreads()][maxSequenceLength*totalTemplateNumIndices];
-		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer d, float[] scores){
-			Arrays.fill(scores, 0.0f);
-			innerLoop.compute(scores, whiteObservations[d], blackObservations[d], sequenceLength(d));
-			populate(d, scores, minTemplateWidth, logColumnProbsWhitespace, templateIndices, templateNumIndices, templateIndicesOffsets, innerLoop.numPopulateThreads());
-		}};
-		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, innerLoop.numOuterThreads());
-		for (int d=0; d<numSequences(); ++d) threader.addFunctionArgument(d);
-		for (int t=0; t<innerLoop.numOuterThreads(); ++t) threader.setThreadArgument(t, scores[t]);
-		threader.run();
-		innerLoop.shutdown();
+		if (shareOffsets) {
+			((OffsetSharingEmissionCacheInnerLoop) innerLoop).startupSharedOffsets(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
+		} else {
+			innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
+		}
+		// One scores buffer per outer thread; the line group runs at most that many lines at once, so taking a buffer never waits.
+		final BlockingQueue<float[]> scoresBuffers = new ArrayBlockingQueue<float[]>(innerLoop.numOuterThreads());
+		for (int i=0; i<innerLoop.numOuterThreads(); ++i) scoresBuffers.add(new float[maxSequenceLength*totalTemplateNumIndices]);
+		final WorkScheduler scheduler = new WorkScheduler(Math.max(innerLoop.numOuterThreads(), innerLoop.numPopulateThreads()));
+		WorkScheduler.TaskGroup lines = scheduler.newTaskGroup();
+		// Lines beyond that are held back rather than queued, so that no thread sits waiting for a buffer while populate chunks are queued.
+		lines.setMaxRunning(innerLoop.numOuterThreads());
+		for (int d=0; d<numSequences(); ++d) {
+			final int line = d;
+			lines.add(sequenceLength(d), new Runnable() {
+				public void run() {
+					float[] scores = takeScoresBuffer(scoresBuffers);
+					try {
+						Arrays.fill(scores, 0.0f);
+						computeScores(scores, line);
+						// A line that will be quantized is populated in a temporary heap buffer.
+						if (cachedLogProbs[line] == null) cachedLogProbs[line] = EmissionCacheBuffers.allocate(sequenceLength(line)*cacheColumnStride, offHeapCache && quantizedLogProbs == null);
+						populate(line, scores, minTemplateWidth, whitespacePrefixLogProbs, templateIndices, templateNumIndices, templateIndicesOffsets, stale, refresh, scheduler);
+						if (writeFile != null) writeFile.writeLine(line, cachedLogProbs[line], cachedArgmaxes[line]);
+						if (quantizedLogProbs != null) {
+							quantizedLogProbs.store(line, cachedLogProbs[line]);
+							cachedLogProbs[line] = null;
+						}
+					}
+					finally {
+						scoresBuffers.add(scores);
+					}
+				}
+			});
+		}
+		boolean written = false;
+		try {
+			if (writeFile != null) writeFile.startWriting();
+			lines.run();
+			scheduler.shutdown();
+			innerLoop.shutdown();
+			if (writeFile != null) writeFile.finishWriting();
+			written = true;
+		}
+		finally {
+			if (writeFile != null && !written) writeFile.abortWriting();
+		}
+		cachedTemplateVersions = templateVersions;
 		
-		System.out.println("Rebuild emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
-		System.out.printf("Estimated emission cache size: %.3fgb\n", estimateMemoryUsage());
+		System.out.println("Rebuild emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms" + (writeFile == null ? "" : " (saved to " + writeFile.getPath() + ")") + (refresh ? " (refreshed "+numStale+" of "+numChars+" characters)" : ""));
+		printCacheSize();
+		scheduler.printUtilization("Emission cache threads");
+	}
+	
+	private void printCacheSize() {
+		System.out.printf("Estimated emission cache size: %.3fgb (%.3fgb off-heap, %s)\n", cacheMemoryBytes() / 1e9, (EmissionCacheBuffers.offHeapBytes(cachedLogProbs) + (quantizedLogProbs == null ? 0 : quantizedLogProbs.offHeapBytes())) / 1e9, precision);
 	}
 	
-	private void populate(final int d, final float[] scores, final int minTemplateWidth, final float[][][] logColumnProbsWhitespace, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, int numThreads) {
-		BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
+	/**
+	 * The on-disk cache for these lines; the templates hash in its header
+	 * tells whether it is stale.
+	 */
+	private EmissionCacheFile openCacheFile() {
+		int[] lineSizes = new int[numSequences()];
+		for (int d=0; d<numSequences(); ++d) lineSizes[d] = sequenceLength(d)*cacheColumnStride;
+		return new EmissionCacheFile(cacheDir, EmissionCacheFile.hashLines(observations, padMinWidth, padMaxWidth, innerLoop.getClass().getName()), EmissionCacheFile.hashTemplates(templates), lineSizes);
+	}
+	
+	private void mapCacheFile(EmissionCacheFile cacheFile) {
+		FloatBuffer[] mappedLogProbs = cacheFile.map(cachedArgmaxes);
+		for (int d=0; d<numSequences(); ++d) {
+			if (quantizedLogProbs != null) quantizedLogProbs.store(d, mappedLogProbs[d]);
+			else cachedLogProbs[d] = mappedLogProbs[d];
+		}
+	}
+	
+	private static float[] takeScoresBuffer(BlockingQueue<float[]> scoresBuffers) {
+		try {
+			return scoresBuffers.take();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Observations are kept bit-packed; inner loops that cannot score the
+	 * masks directly get a dense copy of just this line.
+	 */
+	private void computeScores(float[] scores, int d) {
+		BitPackedObservations packed = packedObservations[d];
+		if (innerLoop instanceof BitPackedEmissionCacheInnerLoop) {
+			((BitPackedEmissionCacheInnerLoop) innerLoop).compute(scores, packed.whiteMasks, packed.blackMasks, sequenceLength(d));
+		} else {
+			float[] whiteObservations = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
+			float[] blackObservations = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
+			BitPackedObservations.expand(packed.whiteMasks, whiteObservations);
+			BitPackedObservations.expand(packed.blackMasks, blackObservations);
+			innerLoop.compute(scores, whiteObservations, blackObservations, sequenceLength(d));
+		}
+	}
+	
+	/**
+	 * Fill in the entries of line d for the stale characters, first
+	 * resetting them if they hold scores from an earlier build.
+	 */
+	private void populate(final int d, final float[] scores, final int minTemplateWidth, final double[][][] whitespacePrefixLogProbs, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, final boolean[] stale, final boolean reset, WorkScheduler scheduler) {
+		final FloatBuffer lineCache = cachedLogProbs[d];
+		final short[] lineArgmaxes = cachedArgmaxes[d];
+		final BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
 			for (int c=0; c<numChars; ++c) {
+				if (!stale[c]) continue;
+				if (reset) {
+					for (int w=padAndTemplateMinWidths[c]; w<=padAndTemplateMaxWidths[c]; ++w) {
+						lineCache.put(cacheIndex(t, c, w), Float.NEGATIVE_INFINITY);
+						lineArgmaxes[cacheIndex(t, c, w)] = 0;
+					}
+				}
 				int[] templateWidths = templateAllowedWidths[c];
 				for (int tw : templateWidths) {
 					double templateWidthLogProb = templates[c].widthLogProb(tw);
 					if (t+tw+padMinWidth <= sequenceLength(d)) {
 						for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
 							float templateLogProb = Float.NEGATIVE_INFINITY;
+							int bestOffset = 0;
 							for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
 								float logProb = (float) templateWidthLogProb + scores[templateIndicesOffsets[tw-minTemplateWidth]*sequenceLength(d) + CudaUtil.flatten(sequenceLength(d), templateNumIndices[tw-minTemplateWidth], t, templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplate.MAX_OFFSET])];
 								if (logProb > templateLogProb) {
 									templateLogProb = logProb;
+									bestOffset = offset;
 								}
 							}
 							for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 								int w = tw + pw;
 								if (t+w <= sequenceLength(d)) {
-									float padLogProb = (float) padWidthLogProb(pw);
-									if (pw > 0) {
-										for (int tt=0; tt<pw; ++tt) {
-											padLogProb += logColumnProbsWhitespace[d][t+tw+tt][e];
-										}
-									}
-									if (templateLogProb + padLogProb > cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]]) {
-										cachedLogProbs[d][t][c][w-padAndTemplateMinWidths[c]] = templateLogProb + padLogProb;
+									float padLogProb = (float) (padWidthLogProb(pw) + whitespacePrefixLogProbs[d][e][t+w] - whitespacePrefixLogProbs[d][e][t+tw]);
+									int cacheIndex = cacheIndex(t, c, w);
+									if (templateLogProb + padLogProb > lineCache.get(cacheIndex)) {
+										lineCache.put(cacheIndex, templateLogProb + padLogProb);
+										lineArgmaxes[cacheIndex] = EmissionCacheBuffers.packArgmax(e, bestOffset, pw);
 									}
 								}
 							}
@@ -328,17 +441,27 @@ public class CachingEmissionModel implements EmissionModel {
 				}
 			}
 		}};
-		BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
-		for (int t=0; t<sequenceLength(d); ++t) threader.addFunctionArgument(t);
-		threader.run();
+		// Columns go to the shared scheduler in chunks, so idle threads can help finish a long line.
+		WorkScheduler.TaskGroup columns = scheduler.newTaskGroup();
+		for (int start=0; start<sequenceLength(d); start+=POPULATE_CHUNK_COLUMNS) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start+POPULATE_CHUNK_COLUMNS, sequenceLength(d));
+			columns.add(chunkEnd-chunkStart, new Runnable() {
+				public void run() {
+					for (int t=chunkStart; t<chunkEnd; ++t) func.call(t, null);
+				}
+			});
+		}
+		columns.run();
 	}
 
 	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
 		if (count > 0.0) {
 			int c = ts.getGlyphChar().templateCharIndex;
 			int w = endCol - startCol;
-			int tw = w - getPadWidth(d, startCol, ts, w);
-			templates[c].incrementCounts(count, observations[d], startCol, tw, getExposure(d, startCol, ts, w), getOffset(d, startCol, ts, w));
+			short argmax = cachedArgmaxes[d][cacheIndex(startCol, c, w)];
+			int tw = w - EmissionCacheBuffers.argmaxPadWidth(argmax);
+			templates[c].incrementCounts(count, observations[d], startCol, tw, EmissionCacheBuffers.argmaxExposure(argmax), EmissionCacheBuffers.argmaxOffset(argmax));
 		}
 	}
 	
@@ -351,20 +474,33 @@ public class CachingEmissionModel implements EmissionModel {
 		}
 	}
 	
-	private double estimateMemoryUsage() {
-		double elementsOfCache = 0.0;
-		for (int i=0; i<cachedLogProbs.length; ++i) {
-			if (cachedLogProbs[i] != null) {
-				for (int j=0; j<cachedLogProbs[i].length; ++j) {
-					if (cachedLogProbs[i][j] != null) {
-						for (int k=0; k<cachedLogProbs[i][j].length; ++k) {
-							if (cachedLogProbs[i][j][k] != null) elementsOfCache += cachedLogProbs[i][j][k].length;
-						}
-					}
-				}
-			}			
+	/**
+	 * Total size of the cache and its argmax table, on and off the heap,
+	 * including object headers.
+	 */
+	public long cacheMemoryBytes() {
+		long bytes = EmissionCacheBuffers.heapBytes(cachedLogProbs) + EmissionCacheBuffers.offHeapBytes(cachedLogProbs) + EmissionCacheBuffers.heapBytes(cachedArgmaxes);
+		if (quantizedLogProbs != null) bytes += quantizedLogProbs.heapBytes() + quantizedLogProbs.offHeapBytes();
+		return bytes;
+	}
+
+	private boolean hasSameLines(PixelType[][][] otherObservations) {
+		if (otherObservations.length != observations.length) return false;
+		for (int d=0; d<observations.length; ++d) {
+			if (otherObservations[d] != observations[d]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The cacheColumnStride that rebuildCache will use for these templates.
+	 */
+	static int cacheColumnStride(CharacterTemplate[] templates, int padMinWidth, int padMaxWidth) {
+		int stride = 0;
+		for (CharacterTemplate template : templates) {
+			stride += ((template.templateMaxWidth() + padMaxWidth) - (template.templateMinWidth() + padMinWidth) + 1);
 		}
-		return 4 * elementsOfCache / 1e9;
+		return stride;
 	}
 	
 	public static class CachingEmissionModelFactory implements EmissionModel.EmissionModelFactory {
@@ -372,14 +508,89 @@ public class CachingEmissionModel implements EmissionModel {
 		int padMinWidth;
 		int padMaxWidth;
 		EmissionCacheInnerLoop innerLoop;
+		boolean offHeapCache;
+		QuantizedEmissionCache.Precision precision;
+		String cacheDir;
+		boolean incrementalRefresh;
+		long maxRetainedBytes;
+		// least recently used first; arrays hash by identity
+		Map<PixelType[][], CachingEmissionModel> retainedModels = new LinkedHashMap<PixelType[][], CachingEmissionModel>(16, 0.75f, true);
 		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, false);
+		}
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, offHeapCache, QuantizedEmissionCache.Precision.FLOAT32);
+		}
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, null);
+		}
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision, String cacheDir) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, cacheDir, false);
+		}
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision, String cacheDir, boolean incrementalRefresh) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, cacheDir, incrementalRefresh, Runtime.getRuntime().maxMemory() / 2);
+		}
+		/**
+		 * If incrementalRefresh is true, the factory keeps the models it
+		 * makes, and when asked again for the same lines (e.g., in the next EM
+		 * iteration) hands back the kept model, whose next rebuildCache only
+		 * recomputes the characters whose templates changed.  The kept models'
+		 * predicted caches take at most maxRetainedBytes in all: the least
+		 * recently used are dropped to make room (and are rebuilt in full if
+		 * their lines come back).
+		 */
+		public CachingEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision, String cacheDir, boolean incrementalRefresh, long maxRetainedBytes) {
 			this.charIndexer = charIndexer;
 			this.padMinWidth = padMinWidth;
 			this.padMaxWidth = padMaxWidth;
 			this.innerLoop = innerLoop;
+			this.offHeapCache = offHeapCache;
+			this.precision = precision;
+			this.cacheDir = cacheDir;
+			this.incrementalRefresh = incrementalRefresh;
+			this.maxRetainedBytes = maxRetainedBytes;
 		}
 		public EmissionModel make(CharacterTemplate[] templates, PixelType[][][] observations) {
-			return new CachingEmissionModel(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop);
+			if (!incrementalRefresh) return new CachingEmissionModel(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, cacheDir);
+			synchronized (retainedModels) {
+				// models are kept by the identity of their first line, which is loaded once per document
+				CachingEmissionModel model = (observations.length == 0) ? null : retainedModels.get(observations[0]);
+				if (model == null || !model.hasSameLines(observations) || model.templates.length != templates.length) {
+					model = new CachingEmissionModel(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision, cacheDir, true);
+					if (observations.length > 0) retainedModels.put(observations[0], model);
+				}
+				model.templates = templates;
+				evictRetainedModels(model);
+				return model;
+			}
+		}
+		/**
+		 * Drop the least recently used kept models, other than the one being
+		 * handed out, until the rest fit in maxRetainedBytes.
+		 */
+		private void evictRetainedModels(CachingEmissionModel current) {
+			long retainedBytes = 0;
+			for (CachingEmissionModel model : retainedModels.values()) retainedBytes += predictCacheMemoryBytes(model);
+			Iterator<CachingEmissionModel> it = retainedModels.values().iterator();
+			while (retainedBytes > maxRetainedBytes && it.hasNext()) {
+				CachingEmissionModel model = it.next();
+				if (model == current) continue;
+				retainedBytes -= predictCacheMemoryBytes(model);
+				it.remove();
+			}
+		}
+		private long predictCacheMemoryBytes(CachingEmissionModel model) {
+			long bytes = 0;
+			for (int d=0; d<model.numSequences(); ++d) bytes += predictLineCacheMemoryBytes(model.templates, model.sequenceLength(d));
+			return bytes;
+		}
+		int numRetainedModels() {
+			synchronized (retainedModels) {
+				return retainedModels.size();
+			}
+		}
+		public long predictLineCacheMemoryBytes(CharacterTemplate[] templates, int sequenceLength) {
+			return EmissionCacheBuffers.lineBytes((long) sequenceLength*cacheColumnStride(templates, padMinWidth, padMaxWidth), offHeapCache, precision);
 		}
 	}
 }
@@ -1,14 +1,20 @@
 package edu.berkeley.cs.nlp.ocular.model.emission;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
 import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
 import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.em.BitPackedEmissionCacheInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.em.EmissionCacheInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.OffsetSharingEmissionCacheInnerLoop;
 import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.WorkScheduler;
 import tberg.murphy.gpu.CudaUtil;
 import tberg.murphy.indexer.Indexer;
 import tberg.murphy.threading.BetterThreader;
@@ -18,25 +24,42 @@ import tberg.murphy.threading.BetterThreader;
  */
 public class CachingEmissionModelExplicitOffset implements EmissionModel {
 	
+	private static final int POPULATE_CHUNK_COLUMNS = 64;
+
 	private EmissionCacheInnerLoop innerLoop;
 	private int numChars;
 	private CharacterTemplate[] templates;
 	private PixelType[][][] observations;
-	private float[][] whiteObservations;
-	private float[][] blackObservations;
+	private BitPackedObservations[] packedObservations;
 	private int[][] templateAllowedWidths;
 	private int[] templateMinWidths;
 	private int[] templateMaxWidths;
 	private int[] padAndTemplateMinWidths;
 	private int[] padAndTemplateMaxWidths;
 	private int[][] padAndTemplateAllowedWidths;
-	private float[][][][][] cachedLogProbs;
+	private int[] cacheCharOffsets;
+	private int cacheColumnStride;
+	private FloatBuffer[] cachedLogProbs;
+	private short[][] cachedArgmaxes;
+	private boolean offHeapCache;
+	private QuantizedEmissionCache.Precision precision;
+	private QuantizedEmissionCache quantizedLogProbs;
 	private int spaceIndex;
 	private int padMinWidth;
 	private int padMaxWidth;
 	
 	public CachingEmissionModelExplicitOffset(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, false);
+	}
+	
+	public CachingEmissionModelExplicitOffset(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache) {
+		this(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, QuantizedEmissionCache.Precision.FLOAT32);
+	}
+	
+	public CachingEmissionModelExplicitOffset(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision) {
 		this.innerLoop = innerLoop;
+		this.offHeapCache = offHeapCache;
+		this.precision = precision;
 		
 		this.numChars = charIndexer.size();
 		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
@@ -44,27 +67,11 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 		this.observations = observations;
 		this.padMinWidth = padMinWidth;
 		this.padMaxWidth = padMaxWidth;
+		EmissionCacheBuffers.checkArgmaxPadWidth(padMaxWidth);
 		
-		this.whiteObservations = new float[observations.length][];
-		this.blackObservations = new float[observations.length][];
+		this.packedObservations = new BitPackedObservations[observations.length];
 		for (int d=0; d<observations.length; ++d) {
-			this.whiteObservations[d] = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
-			this.blackObservations[d] = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-					PixelType observation = observations[d][t][j];
-					if (observation == PixelType.BLACK) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 1.0f;
-					} else if (observation == PixelType.WHITE) {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 1.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-					} else {
-						this.whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-						this.blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)] = 0.0f;
-					} 
-				}
-			}
+			this.packedObservations[d] = new BitPackedObservations(observations[d]);
 		}
 	}
 	
@@ -92,7 +99,7 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 	public float logProb(int d, int t, int c, int w) {
 		float result = Float.NEGATIVE_INFINITY;
 		for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-			result = Math.max(result, cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET][w-padAndTemplateMinWidths[c]]);
+			result = Math.max(result, cachedLogProb(d, cacheIndex(t, c, offset, w)));
 		}
 		return result;
 	}
@@ -100,27 +107,20 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 	public float logProb(int d, int t, TransitionState ts, int w) {
 		int c = ts.getGlyphChar().templateCharIndex;
 		int offset = ts.getOffset();
-		return cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET][w-padAndTemplateMinWidths[c]];
+		return cachedLogProb(d, cacheIndex(t, c, offset, w));
+	}
+	
+	private int cacheIndex(int t, int c, int offset, int w) {
+		int numWidths = padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		return t*cacheColumnStride + cacheCharOffsets[c] + (offset+CharacterTemplate.MAX_OFFSET)*numWidths + (w-padAndTemplateMinWidths[c]);
+	}
+	
+	private float cachedLogProb(int d, int cacheIndex) {
+		return (quantizedLogProbs == null) ? cachedLogProbs[d].get(cacheIndex) : quantizedLogProbs.get(d, cacheIndex);
 	}
 	
 	public int getExposure(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		int offset = ts.getOffset();
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestExposure = -1;
-		for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-				int tw = w-pw;
-				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-					double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-					if (score > bestScore) {
-						bestScore = score;
-						bestExposure = e;
-					}
-				}
-			}
-		}
-		return bestExposure;
+		return EmissionCacheBuffers.argmaxExposure(cachedArgmaxes[d][cacheIndex(t, ts.getGlyphChar().templateCharIndex, ts.getOffset(), w)]);
 	}
 	
 	public int getOffset(int d, int t, TransitionState ts, int w) {
@@ -128,23 +128,7 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 	}
 	
 	public int getPadWidth(int d, int t, TransitionState ts, int w) {
-		int c = ts.getGlyphChar().templateCharIndex;
-		int offset = ts.getOffset();
-		double bestScore = Double.NEGATIVE_INFINITY;
-		int bestPadWith = -1;
-		for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-			for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
-				int tw = w-pw;
-				if (tw >= templateMinWidths[c] &&  tw <= templateMaxWidths[c]) {
-					double score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+tw+pw, e, offset);
-					if (score > bestScore) {
-						bestScore = score;
-						bestPadWith = pw;
-					}
-				}
-			}
-		}
-		return bestPadWith;
+		return EmissionCacheBuffers.argmaxPadWidth(cachedArgmaxes[d][cacheIndex(t, ts.getGlyphChar().templateCharIndex, ts.getOffset(), w)]);
 	}
 	
 	public float padWidthLogProb(int pw) {
@@ -183,39 +167,23 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 			}
 		}
 
-		final float[][][] logColumnProbsWhitespace = new float[observations.length][][];
+		final double[][][] whitespacePrefixLogProbs = new double[observations.length][][];
 		for (int d=0; d<observations.length; ++d) {
-			logColumnProbsWhitespace[d] = new float[sequenceLength(d)][CharacterTemplate.EXP_GAINS.length];
-			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
-				float[] logWhiteProbsWhitespace = templates[spaceIndex].logWhiteProbs(e, 0, 1)[0];
-				float[] logBlackProbsWhitespace = templates[spaceIndex].logBlackProbs(e, 0, 1)[0];
-				for (int t=0; t<sequenceLength(d); ++t) {
-					float logProb = 0.0f;
-					for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-						logProb += logWhiteProbsWhitespace[j] * whiteObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)];
-					}
-					for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
-						logProb += logBlackProbsWhitespace[j] * blackObservations[d][CudaUtil.flatten(sequenceLength(d), CharacterTemplate.LINE_HEIGHT, t, j)];
-					}
-					logColumnProbsWhitespace[d][t][e] = logProb;
-				}
-			}
+			whitespacePrefixLogProbs[d] = packedObservations[d].prefixColumnLogProbs(templates[spaceIndex]);
 		}
 		
-		cachedLogProbs = new float[numSequences()][][][][];
+		cacheCharOffsets = new int[numChars];
+		cacheColumnStride = 0;
+		for (int c=0; c<numChars; ++c) {
+			cacheCharOffsets[c] = cacheColumnStride;
+			cacheColumnStride += (2*CharacterTemplate.MAX_OFFSET+1) * (padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1);
+		}
+		cachedLogProbs = new FloatBuffer[numSequences()];
+		cachedArgmaxes = new short[numSequences()][];
 		for (int d=0; d<numSequences(); ++d) {
-			cachedLogProbs[d] = new float[sequenceLength(d)][][][];
-			for (int t=0; t<sequenceLength(d); ++t) {
-				cachedLogProbs[d][t] = new float[numChars][][];
-				for (int c=0; c<numChars; ++c) {
-					cachedLogProbs[d][t][c] = new float[2*CharacterTemplate.MAX_OFFSET+1][];
-					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-						cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET] = new float[padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1];
-						Arrays.fill(cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET], Float.NEGATIVE_INFINITY);
-					}
-				}
-			}
+			cachedArgmaxes[d] = new short[sequenceLength(d)*cacheColumnStride];
 		}
+		quantizedLogProbs = (precision == QuantizedEmissionCache.Precision.FLOAT32) ? null : new QuantizedEmissionCache(precision, numSequences(), offHeapCache);
 		
 		int maxTemplateWidthTmp = Integer.MIN_VALUE;
 		int minTemplateWidthTmp = Integer.MAX_VALUE;
@@ -234,14 +202,21 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 			blackTemplatesList[tw-minTemplateWidth] = new ArrayList<float[]>();
 		}
 		final int[] templateNumIndices = new int[numTemplateWidths];
+		final boolean shareOffsets = innerLoop instanceof OffsetSharingEmissionCacheInnerLoop;
 		for (int c=0; c<numChars; ++c) {
 			for (int tw : templateAllowedWidths[c]) {
 				for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+					if (shareOffsets) {
+						whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(templates[c].logWhiteProbsAllOffsets(e, tw)));
+						blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(templates[c].logBlackProbsAllOffsets(e, tw)));
+					}
 					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
-						float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
-						float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
-						whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logWhiteProbsTemplate));
-						blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logBlackProbsTemplate));
+						if (!shareOffsets) {
+							float[][] logWhiteProbsTemplate = templates[c].logWhiteProbs(e, offset, tw);
+							float[][] logBlackProbsTemplate = templates[c].logBlackProbs(e, offset, tw);
+							whiteTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logWhiteProbsTemplate));
+							blackTemplatesList[tw-minTemplateWidth].add(CudaUtil.flatten(logBlackProbsTemplate));
+						}
 						templateIndices[tw-minTemplateWidth][c][e][offset+CharacterTemplate.MAX_OFFSET] = templateNumIndices[tw-minTemplateWidth];
 						templateNumIndices[tw-minTemplateWidth]++;
 					}
@@ -265,25 +240,79 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 		int maxSequenceLength = Integer.MIN_VALUE;
 		for (int d=0; d<numSequences(); ++d) maxSequenceLength = Math.max(maxSequenceLength, sequenceLength(d));
 		
-		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
-		float[][] scores = new float[innerLoop.numOuterThreads()][maxSequenceLength*totalTemplateNumIndices];
-		BetterThreader.Function<Integer,float[]> func = new BetterThreader.Function<Integer,float[]>(){public void call(Integer d, float[] scores){
-			Arrays.fill(scores, 0.0f);
-			innerLoop.compute(scores, whiteObservations[d], blackObservations[d], sequenceLength(d));
-			populate(d, scores, minTemplateWidth, logColumnProbsWhitespace, templateIndices, templateNumIndices, templateIndicesOffsets, innerLoop.numPopulateThreads());
-		}};
-		BetterThreader<Integer,float[]> threader = new BetterThreader<Integer,float[]>(func, innerLoop.numOuterThreads());
-		for (int d=0; d<numSequences(); ++d) threader.addFunctionArgument(d);
-		for (int t=0; t<innerLoop.numOuterThreads(); ++t) threader.setThreadArgument(t, scores[t]);
-		threader.run();
+		if (shareOffsets) {
+			((OffsetSharingEmissionCacheInnerLoop) innerLoop).startupSharedOffsets(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
+		} else {
+			innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, minTemplateWidth, maxTemplateWidth, maxSequenceLength, totalTemplateNumIndices);
+		}
+		// One scores buffer per outer thread; the line group runs at most that many lines at once, so taking a buffer never waits.
+		final BlockingQueue<float[]> scoresBuffers = new ArrayBlockingQueue<float[]>(innerLoop.numOuterThreads());
+		for (int i=0; i<innerLoop.numOuterThreads(); ++i) scoresBuffers.add(new float[maxSequenceLength*totalTemplateNumIndices]);
+		final WorkScheduler scheduler = new WorkScheduler(Math.max(innerLoop.numOuterThreads(), innerLoop.numPopulateThreads()));
+		WorkScheduler.TaskGroup lines = scheduler.newTaskGroup();
+		// Lines beyond that are held back rather than queued, so that no thread sits waiting for a buffer while populate chunks are queued.
+		lines.setMaxRunning(innerLoop.numOuterThreads());
+		for (int d=0; d<numSequences(); ++d) {
+			final int line = d;
+			lines.add(sequenceLength(d), new Runnable() {
+				public void run() {
+					float[] scores = takeScoresBuffer(scoresBuffers);
+					try {
+						Arrays.fill(scores, 0.0f);
+						computeScores(scores, line);
+						// A line that will be quantized is populated in a temporary heap buffer.
+						cachedLogProbs[line] = EmissionCacheBuffers.allocate(sequenceLength(line)*cacheColumnStride, offHeapCache && quantizedLogProbs == null);
+						populate(line, scores, minTemplateWidth, whitespacePrefixLogProbs, templateIndices, templateNumIndices, templateIndicesOffsets, scheduler);
+						if (quantizedLogProbs != null) {
+							quantizedLogProbs.store(line, cachedLogProbs[line]);
+							cachedLogProbs[line] = null;
+						}
+					}
+					finally {
+						scoresBuffers.add(scores);
+					}
+				}
+			});
+		}
+		lines.run();
+		scheduler.shutdown();
 		innerLoop.shutdown();
 		
 		System.out.println("Rebuild emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
-		System.out.printf("Estimated emission cache size: %.3fgb\n", estimateMemoryUsage());
+		System.out.printf("Estimated emission cache size: %.3fgb (%.3fgb off-heap, %s)\n", cacheMemoryBytes() / 1e9, (EmissionCacheBuffers.offHeapBytes(cachedLogProbs) + (quantizedLogProbs == null ? 0 : quantizedLogProbs.offHeapBytes())) / 1e9, precision);
+		scheduler.printUtilization("Emission cache threads");
+	}
+	
+	private static float[] takeScoresBuffer(BlockingQueue<float[]> scoresBuffers) {
+		try {
+			return scoresBuffers.take();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Observations are kept bit-packed; inner loops that cannot score the
+	 * masks directly get a dense copy of just this line.
+	 */
+	private void computeScores(float[] scores, int d) {
+		BitPackedObservations packed = packedObservations[d];
+		if (innerLoop instanceof BitPackedEmissionCacheInnerLoop) {
+			((BitPackedEmissionCacheInnerLoop) innerLoop).compute(scores, packed.whiteMasks, packed.blackMasks, sequenceLength(d));
+		} else {
+			float[] whiteObservations = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
+			float[] blackObservations = new float[sequenceLength(d)*CharacterTemplate.LINE_HEIGHT];
+			BitPackedObservations.expand(packed.whiteMasks, whiteObservations);
+			BitPackedObservations.expand(packed.blackMasks, blackObservations);
+			innerLoop.compute(scores, whiteObservations, blackObservations, sequenceLength(d));
+		}
 	}
 	
-	private void populate(final int d, final float[] scores, final int minTemplateWidth, final float[][][] logColumnProbsWhitespace, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, int numThreads) {
-		BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
+	private void populate(final int d, final float[] scores, final int minTemplateWidth, final double[][][] whitespacePrefixLogProbs, final int[][][][] templateIndices, final int[] templateNumIndices, final int[] templateIndicesOffsets, WorkScheduler scheduler) {
+		final FloatBuffer lineCache = cachedLogProbs[d];
+		final short[] lineArgmaxes = cachedArgmaxes[d];
+		final BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer t, Object ignore){
 			for (int c=0; c<numChars; ++c) {
 				int[] templateWidths = templateAllowedWidths[c];
 				for (int tw : templateWidths) {
@@ -297,16 +326,13 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 							for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
 								int w = tw + pw;
 								if (t+w <= sequenceLength(d)) {
-									float padLogProb = (float) padWidthLogProb(pw);
-									if (pw > 0) {
-										for (int tt=0; tt<pw; ++tt) {
-											padLogProb += logColumnProbsWhitespace[d][t+tw+tt][e];
-										}
-									}
+									float padLogProb = (float) (padWidthLogProb(pw) + whitespacePrefixLogProbs[d][e][t+w] - whitespacePrefixLogProbs[d][e][t+tw]);
 									for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
 										float logProb = templateLogProbs[offset+CharacterTemplate.MAX_OFFSET] + padLogProb;
-										if (logProb > cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET][w-padAndTemplateMinWidths[c]]) {
-											cachedLogProbs[d][t][c][offset+CharacterTemplate.MAX_OFFSET][w-padAndTemplateMinWidths[c]] = logProb;
+										int cacheIndex = cacheIndex(t, c, offset, w);
+										if (logProb > lineCache.get(cacheIndex)) {
+											lineCache.put(cacheIndex, logProb);
+											lineArgmaxes[cacheIndex] = EmissionCacheBuffers.packArgmax(e, offset, pw);
 										}
 									}
 								}
@@ -316,9 +342,18 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 				}
 			}
 		}};
-		BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
-		for (int t=0; t<sequenceLength(d); ++t) threader.addFunctionArgument(t);
-		threader.run();
+		// Columns go to the shared scheduler in chunks, so idle threads can help finish a long line.
+		WorkScheduler.TaskGroup columns = scheduler.newTaskGroup();
+		for (int start=0; start<sequenceLength(d); start+=POPULATE_CHUNK_COLUMNS) {
+			final int chunkStart = start;
+			final int chunkEnd = Math.min(start+POPULATE_CHUNK_COLUMNS, sequenceLength(d));
+			columns.add(chunkEnd-chunkStart, new Runnable() {
+				public void run() {
+					for (int t=chunkStart; t<chunkEnd; ++t) func.call(t, null);
+				}
+			});
+		}
+		columns.run();
 	}
 
 	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
@@ -339,24 +374,25 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 		}
 	}
 	
-	private double estimateMemoryUsage() {
-		double elementsOfCache = 0.0;
-		for (int i=0; i<cachedLogProbs.length; ++i) {
-			if (cachedLogProbs[i] != null) {
-				for (int j=0; j<cachedLogProbs[i].length; ++j) {
-					if (cachedLogProbs[i][j] != null) {
-						for (int k=0; k<cachedLogProbs[i][j].length; ++k) {
-							if (cachedLogProbs[i][j][k] != null) {
-								for (int l=0; l<cachedLogProbs[i][j][k].length; ++l) {
-									if (cachedLogProbs[i][j][k][l] != null) elementsOfCache += cachedLogProbs[i][j][k][l].length;
-								}
-							}
-						}
-					}
-				}
-			}			
+	/**
+	 * Total size of the cache and its argmax table, on and off the heap,
+	 * including object headers.
+	 */
+	public long cacheMemoryBytes() {
+		long bytes = EmissionCacheBuffers.heapBytes(cachedLogProbs) + EmissionCacheBuffers.offHeapBytes(cachedLogProbs) + EmissionCacheBuffers.heapBytes(cachedArgmaxes);
+		if (quantizedLogProbs != null) bytes += quantizedLogProbs.heapBytes() + quantizedLogProbs.offHeapBytes();
+		return bytes;
+	}
+
+	/**
+	 * The cacheColumnStride that rebuildCache will use for these templates.
+	 */
+	static int cacheColumnStride(CharacterTemplate[] templates, int padMinWidth, int padMaxWidth) {
+		int stride = 0;
+		for (CharacterTemplate template : templates) {
+			stride += (2*CharacterTemplate.MAX_OFFSET+1) * ((template.templateMaxWidth() + padMaxWidth) - (template.templateMinWidth() + padMinWidth) + 1);
 		}
-		return 4 * elementsOfCache / 1e9;
+		return stride;
 	}
 	
 	public static class CachingEmissionModelExplicitOffsetFactory implements EmissionModel.EmissionModelFactory {
@@ -364,14 +400,27 @@ public class CachingEmissionModelExplicitOffset implements EmissionModel {
 		int padMinWidth;
 		int padMaxWidth;
 		EmissionCacheInnerLoop innerLoop;
+		boolean offHeapCache;
+		QuantizedEmissionCache.Precision precision;
 		public CachingEmissionModelExplicitOffsetFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, false);
+		}
+		public CachingEmissionModelExplicitOffsetFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache) {
+			this(charIndexer, padMinWidth, padMaxWidth, innerLoop, offHeapCache, QuantizedEmissionCache.Precision.FLOAT32);
+		}
+		public CachingEmissionModelExplicitOffsetFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth, EmissionCacheInnerLoop innerLoop, boolean offHeapCache, QuantizedEmissionCache.Precision precision) {
 			this.charIndexer = charIndexer;
 			this.padMinWidth = padMinWidth;
 			this.padMaxWidth = padMaxWidth;
 			this.innerLoop = innerLoop;
+			this.offHeapCache = offHeapCache;
+			this.precision = precision;
 		}
 		public EmissionModel make(CharacterTemplate[] templates, PixelType[][][] observations) {
-			return new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop);
+			return new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, padMinWidth, padMaxWidth, innerLoop, offHeapCache, precision);
+		}
+		public long predictLineCacheMemoryBytes(CharacterTemplate[] templates, int sequenceLength) {
+			return EmissionCacheBuffers.lineBytes((long) sequenceLength*cacheColumnStride(templates, padMinWidth, padMaxWidth), offHeapCache, precision);
 		}
 	}
 }
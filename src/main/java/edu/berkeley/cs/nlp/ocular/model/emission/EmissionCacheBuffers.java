@@ -0,0 +1,127 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * Flat per-line storage for cached emission log-probabilities.  Each line's
+ * cache is a single FloatBuffer that is either backed by a float[] on the
+ * heap or by direct (off-heap) memory.
+ *
+ * Alongside each cache entry, the exposure, vertical offset, and pad width
+ * that achieved it are kept packed into a short: exposure in bits 0-2,
+ * offset+MAX_OFFSET in bits 3-6, pad width in bits 7-14.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class EmissionCacheBuffers {
+
+	public static final int ARRAY_HEADER_BYTES = 16;
+	public static final int REFERENCE_BYTES = 8;
+	public static final int BUFFER_OBJECT_BYTES = 64;
+	public static final int DIRECT_BUFFER_OBJECT_BYTES = 2*BUFFER_OBJECT_BYTES;
+
+	public static final int MAX_ARGMAX_PAD_WIDTH = 0xFF;
+
+	static {
+		if (CharacterTemplate.EXP_GAINS.length > 8) throw new RuntimeException("Too many exposures ("+CharacterTemplate.EXP_GAINS.length+") to pack into the argmax table");
+		if (2*CharacterTemplate.MAX_OFFSET+1 > 16) throw new RuntimeException("MAX_OFFSET ("+CharacterTemplate.MAX_OFFSET+") is too large to pack into the argmax table");
+	}
+
+	/**
+	 * A buffer of `size` floats, all set to negative infinity.
+	 */
+	public static FloatBuffer allocate(int size, boolean offHeap) {
+		if (offHeap) {
+			FloatBuffer buffer = ByteBuffer.allocateDirect(size*4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int i=0; i<size; ++i) buffer.put(i, Float.NEGATIVE_INFINITY);
+			return buffer;
+		} else {
+			float[] array = new float[size];
+			Arrays.fill(array, Float.NEGATIVE_INFINITY);
+			return FloatBuffer.wrap(array);
+		}
+	}
+
+	/**
+	 * Bytes held on the heap by the given line buffers, including object
+	 * headers and the references from the outer array.
+	 */
+	public static long heapBytes(FloatBuffer[] buffers) {
+		long bytes = ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES*buffers.length;
+		for (FloatBuffer buffer : buffers) {
+			if (buffer == null) continue;
+			if (buffer.isDirect()) bytes += DIRECT_BUFFER_OBJECT_BYTES;
+			else bytes += BUFFER_OBJECT_BYTES + ARRAY_HEADER_BYTES + 4L*buffer.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Bytes held in direct memory by the given line buffers.
+	 */
+	public static long offHeapBytes(FloatBuffer[] buffers) {
+		long bytes = 0;
+		for (FloatBuffer buffer : buffers) {
+			if (buffer != null && buffer.isDirect()) bytes += 4L*buffer.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * What heapBytes+offHeapBytes of the line buffers and heapBytes of the
+	 * argmax tables add for one line whose cache holds `size` entries.
+	 */
+	public static long lineBytes(long size, boolean offHeap) {
+		long bytes = 2L*REFERENCE_BYTES;
+		if (offHeap) bytes += DIRECT_BUFFER_OBJECT_BYTES + 4L*size;
+		else bytes += BUFFER_OBJECT_BYTES + ARRAY_HEADER_BYTES + 4L*size;
+		bytes += ARRAY_HEADER_BYTES + 2L*size;
+		return bytes;
+	}
+
+	/**
+	 * lineBytes for a cache stored at the given precision, where a quantized
+	 * line leaves only an empty slot in the line buffer array.
+	 */
+	public static long lineBytes(long size, boolean offHeap, QuantizedEmissionCache.Precision precision) {
+		if (precision == QuantizedEmissionCache.Precision.FLOAT32) return lineBytes(size, offHeap);
+		return 2L*REFERENCE_BYTES + QuantizedEmissionCache.lineBytes(size, offHeap) + ARRAY_HEADER_BYTES + 2L*size;
+	}
+
+	public static short packArgmax(int exposure, int offset, int padWidth) {
+		return (short) (exposure | ((offset+CharacterTemplate.MAX_OFFSET) << 3) | (padWidth << 7));
+	}
+
+	public static int argmaxExposure(short packed) {
+		return packed & 0x7;
+	}
+
+	public static int argmaxOffset(short packed) {
+		return ((packed >> 3) & 0xF) - CharacterTemplate.MAX_OFFSET;
+	}
+
+	public static int argmaxPadWidth(short packed) {
+		return (packed >> 7) & MAX_ARGMAX_PAD_WIDTH;
+	}
+
+	public static void checkArgmaxPadWidth(int padMaxWidth) {
+		if (padMaxWidth > MAX_ARGMAX_PAD_WIDTH) throw new RuntimeException("padMaxWidth ("+padMaxWidth+") is too large to pack into the argmax table (max "+MAX_ARGMAX_PAD_WIDTH+")");
+	}
+
+	/**
+	 * Bytes held on the heap by the given per-line argmax tables.
+	 */
+	public static long heapBytes(short[][] tables) {
+		long bytes = ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES*tables.length;
+		for (short[] table : tables) {
+			if (table != null) bytes += ARRAY_HEADER_BYTES + 2L*table.length;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,302 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * An emission cache kept on disk so that it can be reused by a later run
+ * over the same lines.  The file is named by a hash of the line images, the
+ * pad widths, and the emission engine, so each set of lines has one file;
+ * its header records a hash of the font templates, and a file whose font
+ * hash does not match the current templates is stale and gets rebuilt and
+ * overwritten.
+ *
+ * Each line's cached log-probabilities are memory-mapped straight from the
+ * file; the (much smaller) argmax tables are read onto the heap.  A file is
+ * written to a temporary name and renamed once every line is in it, so an
+ * interrupted run never leaves behind a file that looks complete; a
+ * failed write deletes its temporary file.
+ *
+ * A run saves each file at most once.  While the font is being trained its
+ * hash changes on every EM iteration, and a file saved for one iteration's
+ * font would only be replaced on the next one without ever being read; the
+ * file saved for the first font is kept instead, which is the one a rerun
+ * over the same lines starts from.
+ *
+ * Layout: a big-endian header (magic, version, byte order of the data,
+ * font hash, number of lines, and each line's number of entries), then,
+ * for each line, its floats followed by its argmax shorts, in native byte
+ * order.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class EmissionCacheFile {
+
+	private static final int MAGIC = 0x4F434543;
+	private static final int VERSION = 1;
+	private static final int HASH_BYTES = 20;
+	private static final String SUFFIX = ".emcache";
+	private static final Set<String> savedFiles = Collections.synchronizedSet(new HashSet<String>());
+
+	private final File file;
+	private final byte[] templatesHash;
+	private final int[] lineSizes;
+	private final long[] lineOffsets;
+	private final long fileLength;
+	private RandomAccessFile writer = null;
+
+	public EmissionCacheFile(String cacheDir, byte[] linesHash, byte[] templatesHash, int[] lineSizes) {
+		this.file = new File(cacheDir, toHex(linesHash) + SUFFIX);
+		this.templatesHash = templatesHash;
+		this.lineSizes = lineSizes;
+		this.lineOffsets = new long[lineSizes.length];
+		long offset = headerBytes(lineSizes.length);
+		for (int d=0; d<lineSizes.length; ++d) {
+			lineOffsets[d] = offset;
+			offset += 6L*lineSizes[d];
+		}
+		this.fileLength = offset;
+	}
+
+	public String getPath() {
+		return file.getPath();
+	}
+
+	/**
+	 * Whether the file exists and was written for these templates and line
+	 * sizes.  An existing file that fails the check is reported as stale.
+	 */
+	public boolean isValid() {
+		if (!file.exists()) return false;
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			boolean valid = (in.length() == fileLength) && in.readInt() == MAGIC && in.readInt() == VERSION && in.readInt() == byteOrderCode();
+			if (valid) {
+				byte[] fileTemplatesHash = new byte[HASH_BYTES];
+				in.readFully(fileTemplatesHash);
+				valid = Arrays.equals(templatesHash, fileTemplatesHash) && in.readInt() == lineSizes.length;
+				for (int d=0; valid && d<lineSizes.length; ++d) {
+					valid = (in.readInt() == lineSizes[d]);
+				}
+			}
+			if (!valid) System.out.println("Emission cache file " + file + " is stale (the font or cache layout changed); rebuilding it");
+			return valid;
+		}
+		catch (IOException e) {
+			System.out.println("Could not read emission cache file " + file + " (" + e.getMessage() + "); rebuilding it");
+			return false;
+		}
+		finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Map every line's log-probabilities from the file, and read its argmax
+	 * table into argmaxes[d].
+	 */
+	public FloatBuffer[] map(short[][] argmaxes) {
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			FileChannel channel = in.getChannel();
+			FloatBuffer[] logProbs = new FloatBuffer[lineSizes.length];
+			for (int d=0; d<lineSizes.length; ++d) {
+				logProbs[d] = channel.map(FileChannel.MapMode.READ_ONLY, lineOffsets[d], 4L*lineSizes[d]).order(ByteOrder.nativeOrder()).asFloatBuffer();
+				ByteBuffer argmaxBytes = ByteBuffer.allocate(2*lineSizes[d]).order(ByteOrder.nativeOrder());
+				channel.read(argmaxBytes, lineOffsets[d] + 4L*lineSizes[d]);
+				argmaxBytes.flip();
+				argmaxes[d] = new short[lineSizes[d]];
+				argmaxBytes.asShortBuffer().get(argmaxes[d]);
+			}
+			return logProbs;
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Couldn't map emission cache file " + file, e);
+		}
+		finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Whether this run should write the file: false if it already saved
+	 * the file for another font (see the class comment).
+	 */
+	public boolean claimForWriting() {
+		if (savedFiles.add(file.getAbsolutePath())) return true;
+		System.out.println("Not saving emission cache file " + file + " again: the font has changed since this run saved it");
+		return false;
+	}
+
+	public void startWriting() {
+		try {
+			file.getParentFile().mkdirs();
+			writer = new RandomAccessFile(temporaryFile(), "rw");
+			writer.setLength(fileLength);
+			ByteBuffer header = ByteBuffer.allocate((int) headerBytes(lineSizes.length));
+			header.putInt(MAGIC).putInt(VERSION).putInt(byteOrderCode()).put(templatesHash).putInt(lineSizes.length);
+			for (int lineSize : lineSizes) header.putInt(lineSize);
+			header.flip();
+			writer.getChannel().write(header, 0);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Couldn't write emission cache file " + temporaryFile(), e);
+		}
+	}
+
+	/**
+	 * Write one finished line.  Different lines may be written concurrently.
+	 */
+	public void writeLine(int d, FloatBuffer logProbs, short[] argmaxes) {
+		ByteBuffer bytes = ByteBuffer.allocate(6*lineSizes[d]).order(ByteOrder.nativeOrder());
+		FloatBuffer source = logProbs.duplicate();
+		source.clear();
+		bytes.asFloatBuffer().put(source);
+		bytes.position(4*lineSizes[d]);
+		bytes.asShortBuffer().put(argmaxes);
+		bytes.clear();
+		try {
+			long position = lineOffsets[d];
+			while (bytes.hasRemaining()) position += writer.getChannel().write(bytes, position);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Couldn't write emission cache file " + temporaryFile(), e);
+		}
+	}
+
+	public void finishWriting() {
+		boolean finished = false;
+		try {
+			writer.close();
+			writer = null;
+			if (file.exists() && !file.delete()) throw new IOException("couldn't replace " + file);
+			if (!temporaryFile().renameTo(file)) throw new IOException("couldn't rename " + temporaryFile() + " to " + file);
+			finished = true;
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Couldn't write emission cache file " + file, e);
+		}
+		finally {
+			if (!finished) abortWriting();
+		}
+	}
+
+	/**
+	 * Give up on a write that failed: close and delete the temporary file,
+	 * and let a later rebuild in this run try to save the file again.
+	 */
+	public void abortWriting() {
+		if (writer != null) {
+			try {
+				writer.close();
+			}
+			catch (IOException e) {
+				System.out.println("Couldn't close emission cache file " + temporaryFile() + " (" + e.getMessage() + ")");
+			}
+			writer = null;
+		}
+		temporaryFile().delete();
+		savedFiles.remove(file.getAbsolutePath());
+	}
+
+	/**
+	 * Hash of everything besides the font that determines the cache: the
+	 * line images, the pad widths, and the emission engine.
+	 */
+	public static byte[] hashLines(PixelType[][][] observations, int padMinWidth, int padMaxWidth, String engine) {
+		MessageDigest digest = newDigest();
+		digest.update(engine.getBytes(Charset.forName("UTF-8")));
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(padMinWidth).putInt(padMaxWidth).putInt(observations.length);
+		digest.update(header.array());
+		for (PixelType[][] line : observations) {
+			byte[] pixels = new byte[4 + line.length*CharacterTemplate.LINE_HEIGHT];
+			ByteBuffer.wrap(pixels).putInt(line.length);
+			for (int t=0; t<line.length; ++t) {
+				for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+					pixels[4 + t*CharacterTemplate.LINE_HEIGHT + j] = (byte) line[t][j].ordinal();
+				}
+			}
+			digest.update(pixels);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Hash of the templates' parameters, as seen by the emission cache: the
+	 * width distributions and the pixel log-probabilities at every allowed
+	 * width and exposure (the vertical offsets only shift these).
+	 */
+	public static byte[] hashTemplates(CharacterTemplate[] templates) {
+		MessageDigest digest = newDigest();
+		for (CharacterTemplate template : templates) {
+			digest.update(template.getCharacter().getBytes(Charset.forName("UTF-8")));
+			int[] allowedWidths = template.allowedWidths();
+			for (int tw : allowedWidths) {
+				ByteBuffer values = ByteBuffer.allocate(8 + 2*4*CharacterTemplate.EXP_GAINS.length*tw*CharacterTemplate.LINE_HEIGHT);
+				values.putInt(tw).putFloat(template.widthLogProb(tw));
+				for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+					for (float[] column : template.logWhiteProbs(e, 0, tw)) for (float logProb : column) values.putFloat(logProb);
+					for (float[] column : template.logBlackProbs(e, 0, tw)) for (float logProb : column) values.putFloat(logProb);
+				}
+				digest.update(values.array());
+			}
+		}
+		return digest.digest();
+	}
+
+	private File temporaryFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	private static long headerBytes(int numLines) {
+		return 4*4 + HASH_BYTES + 4L*numLines;
+	}
+
+	private static int byteOrderCode() {
+		return (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) ? 1 : 0;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}
+
+	private static void close(RandomAccessFile file) {
+		if (file == null) return;
+		try {
+			file.close();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
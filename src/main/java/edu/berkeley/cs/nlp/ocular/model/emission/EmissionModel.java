@@ -37,9 +37,19 @@ public interface EmissionModel {
 
 	public abstract void incrementCounts(int d, TransitionState[] transitionStates, int[] widths);
 
+	/**
+	 * Bytes held by the emission cache after rebuildCache, on and off the heap.
+	 */
+	public abstract long cacheMemoryBytes();
+
 	
 	public static interface EmissionModelFactory {
 		public EmissionModel make(CharacterTemplate[] templates, PixelType[][][] observations);
+
+		/**
+		 * Predicted contribution to cacheMemoryBytes of one line of the given length.
+		 */
+		public long predictLineCacheMemoryBytes(CharacterTemplate[] templates, int sequenceLength);
 	}
 	
 }
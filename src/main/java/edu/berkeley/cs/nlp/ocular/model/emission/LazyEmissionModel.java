@@ -0,0 +1,349 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.em.PopcountInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import tberg.murphy.gpu.CudaUtil;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * Same scores as CachingEmissionModel, but instead of filling the whole
+ * cache in rebuildCache, the scores for all widths of a character at a
+ * column are computed the first time any of them is asked for, and then
+ * memoized.  The decoder's coarse backward pass asks for every character at
+ * every column, so this only saves work behind a PrunedEmissionModel, which
+ * never asks for the pruned ones.  It saves no memory: the score and
+ * computed-flag arrays for every line are allocated in full up front.
+ *
+ * An entry is scored as the POPCOUNT engine scores a window: the set bits
+ * of each template-width window are gathered once, and every exposure and
+ * vertical offset of the template is summed over that list.
+ *
+ * Safe for concurrent decoding: a (column, character) entry is computed
+ * into a local buffer, copied into the line cache, and only then marked as
+ * computed, so readers never see a partial entry.  Two threads may race to
+ * compute the same entry, but they write identical values.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class LazyEmissionModel implements EmissionModel {
+
+	private static final int NUM_OFFSETS = 2*CharacterTemplate.MAX_OFFSET+1;
+
+	private int numChars;
+	private CharacterTemplate[] templates;
+	private PixelType[][][] observations;
+	private BitPackedObservations[] packedObservations;
+	private int[][] templateAllowedWidths;
+	private int[] templateMinWidths;
+	private int[] templateMaxWidths;
+	private int[] padAndTemplateMinWidths;
+	private int[] padAndTemplateMaxWidths;
+	private int[][] padAndTemplateAllowedWidths;
+	private int[] cacheCharOffsets;
+	private int cacheColumnStride;
+	private float[][] cachedLogProbs;
+	private short[][] cachedArgmaxes;
+	private AtomicIntegerArray[] computed;
+	private float[][][] fusedTemplates; // [c][tw-min] -> for each i = e*NUM_OFFSETS + offset+MAX_OFFSET, the white then the black window of tw*LINE_HEIGHT
+	private double[][][] whitespacePrefixLogProbs; // [d][e][t]
+	private AtomicLongArray numComputed;
+	private int spaceIndex;
+	private int padMinWidth;
+	private int padMaxWidth;
+
+	public LazyEmissionModel(CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int padMinWidth, int padMaxWidth) {
+		this.numChars = charIndexer.size();
+		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		this.templates = templates;
+		this.observations = observations;
+		this.padMinWidth = padMinWidth;
+		this.padMaxWidth = padMaxWidth;
+		EmissionCacheBuffers.checkArgmaxPadWidth(padMaxWidth);
+
+		for (int c=0; c<numChars; ++c)
+			if (templates[c] == null) throw new RuntimeException("template for template["+c+"] ("+charIndexer.getObject(c)+") is null!");
+
+		this.packedObservations = new BitPackedObservations[observations.length];
+		for (int d=0; d<observations.length; ++d) {
+			this.packedObservations[d] = new BitPackedObservations(observations[d]);
+		}
+	}
+
+	public int numChars() {
+		return numChars;
+	}
+
+	public int numSequences() {
+		return observations.length;
+	}
+
+	public int sequenceLength(int d) {
+		return observations[d].length;
+	}
+
+	public int[] allowedWidths(int c) {
+		return padAndTemplateAllowedWidths[c];
+	}
+
+	public int[] allowedWidths(TransitionState ts) {
+		return allowedWidths(ts.getGlyphChar().templateCharIndex);
+	}
+
+	public float logProb(int d, int t, int c, int w) {
+		if (computed[d].get(t*numChars + c) == 0) {
+			compute(d, t, c);
+		}
+		return cachedLogProbs[d][cacheIndex(t, c, w)];
+	}
+
+	private int cacheIndex(int t, int c, int w) {
+		return t*cacheColumnStride + cacheCharOffsets[c] + (w-padAndTemplateMinWidths[c]);
+	}
+
+	public float logProb(int d, int t, TransitionState ts, int w) {
+		return logProb(d, t, ts.getGlyphChar().templateCharIndex, w);
+	}
+
+	/**
+	 * Fill in the scores of every width of character c starting at column t.
+	 */
+	private void compute(int d, int t, int c) {
+		numComputed.incrementAndGet(d);
+		BitPackedObservations packed = packedObservations[d];
+		float[] entry = new float[padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1];
+		short[] entryArgmaxes = new short[entry.length];
+		int[] activeIndices = new int[2*templateMaxWidths[c]*CharacterTemplate.LINE_HEIGHT];
+		Arrays.fill(entry, Float.NEGATIVE_INFINITY);
+		for (int tw : templateAllowedWidths[c]) {
+			if (t+tw+padMinWidth <= sequenceLength(d)) {
+				float templateWidthLogProb = templates[c].widthLogProb(tw);
+				float[] fused = fusedTemplates[c][tw-templateMinWidths[c]];
+				int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+				int numActive = PopcountInnerLoop.gatherActiveIndices(activeIndices, packed.whiteMasks, packed.blackMasks, t, tw, windowSize);
+				for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+					float templateLogProb = Float.NEGATIVE_INFINITY;
+					int bestOffset = 0;
+					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
+						int templateOffset = (e*NUM_OFFSETS + offset+CharacterTemplate.MAX_OFFSET)*2*windowSize;
+						float logProb = 0.0f;
+						for (int k=0; k<numActive; ++k) {
+							logProb += fused[templateOffset + activeIndices[k]];
+						}
+						logProb += templateWidthLogProb;
+						if (logProb > templateLogProb) {
+							templateLogProb = logProb;
+							bestOffset = offset;
+						}
+					}
+					for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+						int w = tw + pw;
+						if (t+w <= sequenceLength(d)) {
+							float padLogProb = (float) (padWidthLogProb(pw) + whitespacePrefixLogProbs[d][e][t+w] - whitespacePrefixLogProbs[d][e][t+tw]);
+							if (templateLogProb + padLogProb > entry[w-padAndTemplateMinWidths[c]]) {
+								entry[w-padAndTemplateMinWidths[c]] = templateLogProb + padLogProb;
+								entryArgmaxes[w-padAndTemplateMinWidths[c]] = EmissionCacheBuffers.packArgmax(e, bestOffset, pw);
+							}
+						}
+					}
+				}
+			}
+		}
+		System.arraycopy(entry, 0, cachedLogProbs[d], cacheIndex(t, c, padAndTemplateMinWidths[c]), entry.length);
+		System.arraycopy(entryArgmaxes, 0, cachedArgmaxes[d], cacheIndex(t, c, padAndTemplateMinWidths[c]), entry.length);
+		computed[d].set(t*numChars + c, 1);
+	}
+
+	public int getExposure(int d, int t, TransitionState ts, int w) {
+		return EmissionCacheBuffers.argmaxExposure(argmax(d, t, ts.getGlyphChar().templateCharIndex, w));
+	}
+
+	public int getOffset(int d, int t, TransitionState ts, int w) {
+		return EmissionCacheBuffers.argmaxOffset(argmax(d, t, ts.getGlyphChar().templateCharIndex, w));
+	}
+
+	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return EmissionCacheBuffers.argmaxPadWidth(argmax(d, t, ts.getGlyphChar().templateCharIndex, w));
+	}
+
+	private short argmax(int d, int t, int c, int w) {
+		if (computed[d].get(t*numChars + c) == 0) {
+			compute(d, t, c);
+		}
+		return cachedArgmaxes[d][cacheIndex(t, c, w)];
+	}
+
+	public float padWidthLogProb(int pw) {
+		return (float) Math.log(1.0 / ((padMaxWidth - padMinWidth) + 1.0));
+	}
+
+	/**
+	 * Only sets up the (empty) cache and snapshots the template log-probs;
+	 * the scores themselves are computed on demand by logProb.
+	 */
+	public void rebuildCache() {
+		long nanoTime = System.nanoTime();
+
+		templateAllowedWidths = new int[numChars][];
+		templateMinWidths = new int[numChars];
+		templateMaxWidths = new int[numChars];
+		padAndTemplateMinWidths = new int[numChars];
+		padAndTemplateMaxWidths = new int[numChars];
+		padAndTemplateAllowedWidths = new int[numChars][];
+		for (int c=0; c<numChars; ++c) {
+			templateAllowedWidths[c] = templates[c].allowedWidths();
+			templateMinWidths[c] = templates[c].templateMinWidth();
+			templateMaxWidths[c] = templates[c].templateMaxWidth();
+			padAndTemplateMinWidths[c] = templates[c].templateMinWidth() + padMinWidth;
+			padAndTemplateMaxWidths[c] = templates[c].templateMaxWidth() + padMaxWidth;
+			boolean[] padAndTemplateAllowedWidthsBool = new boolean[padAndTemplateMaxWidths[c]+1];
+			Arrays.fill(padAndTemplateAllowedWidthsBool, false);
+			for (int tw : templateAllowedWidths[c]) {
+				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+					padAndTemplateAllowedWidthsBool[tw+pw] = true;
+				}
+			}
+			List<Integer> padAndTemplateAllowedWidthsList = new ArrayList<Integer>();
+			for (int w=0; w<padAndTemplateAllowedWidthsBool.length; ++w) {
+				if (padAndTemplateAllowedWidthsBool[w]) padAndTemplateAllowedWidthsList.add(w);
+			}
+			padAndTemplateAllowedWidths[c] = new int[padAndTemplateAllowedWidthsList.size()];
+			for (int wi=0; wi<padAndTemplateAllowedWidthsList.size(); ++wi) {
+				padAndTemplateAllowedWidths[c][wi] = padAndTemplateAllowedWidthsList.get(wi);
+			}
+		}
+
+		// CharacterTemplate computes its log-probs lazily and is not safe to
+		// share between decoding threads, so take a snapshot up front, fused
+		// as the POPCOUNT engine lays its templates out.
+		fusedTemplates = new float[numChars][][];
+		for (int c=0; c<numChars; ++c) {
+			fusedTemplates[c] = new float[templateMaxWidths[c]-templateMinWidths[c]+1][];
+			for (int tw : templateAllowedWidths[c]) {
+				int windowSize = tw*CharacterTemplate.LINE_HEIGHT;
+				float[] fused = new float[CharacterTemplate.EXP_GAINS.length*NUM_OFFSETS*2*windowSize];
+				for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
+						int templateOffset = (e*NUM_OFFSETS + offset+CharacterTemplate.MAX_OFFSET)*2*windowSize;
+						System.arraycopy(CudaUtil.flatten(templates[c].logWhiteProbs(e, offset, tw)), 0, fused, templateOffset, windowSize);
+						System.arraycopy(CudaUtil.flatten(templates[c].logBlackProbs(e, offset, tw)), 0, fused, templateOffset + windowSize, windowSize);
+					}
+				}
+				fusedTemplates[c][tw-templateMinWidths[c]] = fused;
+			}
+		}
+
+		whitespacePrefixLogProbs = new double[observations.length][][];
+		for (int d=0; d<observations.length; ++d) {
+			whitespacePrefixLogProbs[d] = packedObservations[d].prefixColumnLogProbs(templates[spaceIndex]);
+		}
+
+		cacheCharOffsets = new int[numChars];
+		cacheColumnStride = 0;
+		for (int c=0; c<numChars; ++c) {
+			cacheCharOffsets[c] = cacheColumnStride;
+			cacheColumnStride += padAndTemplateMaxWidths[c]-padAndTemplateMinWidths[c]+1;
+		}
+		cachedLogProbs = new float[numSequences()][];
+		cachedArgmaxes = new short[numSequences()][];
+		computed = new AtomicIntegerArray[numSequences()];
+		for (int d=0; d<numSequences(); ++d) {
+			cachedLogProbs[d] = new float[sequenceLength(d)*cacheColumnStride];
+			Arrays.fill(cachedLogProbs[d], Float.NEGATIVE_INFINITY);
+			cachedArgmaxes[d] = new short[sequenceLength(d)*cacheColumnStride];
+			computed[d] = new AtomicIntegerArray(sequenceLength(d)*numChars);
+		}
+		numComputed = new AtomicLongArray(numSequences());
+
+		System.out.println("Rebuild lazy emission cache: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
+	}
+
+	/**
+	 * Number of (column, character) entries that have been computed,
+	 * counting any that were computed twice by racing threads.
+	 */
+	public long numComputed() {
+		long total = 0;
+		for (int d=0; d<numSequences(); ++d) total += numComputed.get(d);
+		return total;
+	}
+
+	public long numEntries() {
+		long total = 0;
+		for (int d=0; d<numSequences(); ++d) total += (long) sequenceLength(d)*numChars;
+		return total;
+	}
+
+	public void printCacheStatistics() {
+		long computed = numComputed();
+		long entries = numEntries();
+		System.out.printf("Lazy emission cache: computed %d of %d (column, character) entries (%.1f%%)\n", computed, entries, (entries == 0 ? 0.0 : 100.0*computed/entries));
+	}
+
+	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
+		if (count > 0.0) {
+			int c = ts.getGlyphChar().templateCharIndex;
+			int w = endCol - startCol;
+			short argmax = argmax(d, startCol, c, w);
+			int tw = w - EmissionCacheBuffers.argmaxPadWidth(argmax);
+			templates[c].incrementCounts(count, observations[d], startCol, tw, EmissionCacheBuffers.argmaxExposure(argmax), EmissionCacheBuffers.argmaxOffset(argmax));
+		}
+	}
+
+	public void incrementCounts(int d, TransitionState[] ts, int[] widths) {
+		int t=0;
+		for (int i=0; i<ts.length; ++i) {
+			int width = widths[i];
+			incrementCount(d, ts[i], t, t+width, 1.0f);
+			t += width;
+		}
+	}
+
+	/**
+	 * Size of the memo tables, including object headers.  They are allocated
+	 * in full by rebuildCache, so this does not grow as entries are computed.
+	 */
+	public long cacheMemoryBytes() {
+		long bytes = 3L*EmissionCacheBuffers.ARRAY_HEADER_BYTES;
+		for (int d=0; d<numSequences(); ++d) {
+			bytes += lineBytes((long) sequenceLength(d)*cacheColumnStride, (long) sequenceLength(d)*numChars);
+		}
+		return bytes;
+	}
+
+	/**
+	 * One line's log-prob and argmax arrays, and its computed flags (an
+	 * AtomicIntegerArray: an object wrapping an int[]).
+	 */
+	private static long lineBytes(long cacheSize, long numEntries) {
+		return 3L*EmissionCacheBuffers.REFERENCE_BYTES
+				+ EmissionCacheBuffers.ARRAY_HEADER_BYTES + 4L*cacheSize
+				+ EmissionCacheBuffers.ARRAY_HEADER_BYTES + 2L*cacheSize
+				+ 2L*EmissionCacheBuffers.ARRAY_HEADER_BYTES + 4L*numEntries;
+	}
+
+	public static class LazyEmissionModelFactory implements EmissionModel.EmissionModelFactory {
+		Indexer<String> charIndexer;
+		int padMinWidth;
+		int padMaxWidth;
+		public LazyEmissionModelFactory(Indexer<String> charIndexer, int padMinWidth, int padMaxWidth) {
+			this.charIndexer = charIndexer;
+			this.padMinWidth = padMinWidth;
+			this.padMaxWidth = padMaxWidth;
+		}
+		public EmissionModel make(CharacterTemplate[] templates, PixelType[][][] observations) {
+			return new LazyEmissionModel(templates, charIndexer, observations, padMinWidth, padMaxWidth);
+		}
+		public long predictLineCacheMemoryBytes(CharacterTemplate[] templates, int sequenceLength) {
+			return lineBytes((long) sequenceLength*CachingEmissionModel.cacheColumnStride(templates, padMinWidth, padMaxWidth), (long) sequenceLength*charIndexer.size());
+		}
+	}
+}
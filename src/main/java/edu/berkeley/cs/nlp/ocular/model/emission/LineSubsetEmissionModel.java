@@ -0,0 +1,99 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+
+/**
+ * A view of some of another EmissionModel's lines: line d of this model is
+ * line lines[d] of the delegate.  It shares the delegate's cache, so a
+ * subset of an already-decoded batch can be decoded again without scoring
+ * the lines a second time; rebuildCache does nothing.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class LineSubsetEmissionModel implements EmissionModel {
+
+	private EmissionModel delegate;
+	private int[] lines;
+
+	public LineSubsetEmissionModel(EmissionModel delegate, int[] lines) {
+		for (int line : lines) {
+			if (line < 0 || line >= delegate.numSequences()) throw new RuntimeException("Line " + line + " is not one of the " + delegate.numSequences() + " lines of the emission model");
+		}
+		this.delegate = delegate;
+		this.lines = lines;
+	}
+
+	public EmissionModel getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * The delegate's line for line d of this model.
+	 */
+	public int delegateLine(int d) {
+		return lines[d];
+	}
+
+	public int numChars() {
+		return delegate.numChars();
+	}
+
+	public int numSequences() {
+		return lines.length;
+	}
+
+	public int sequenceLength(int d) {
+		return delegate.sequenceLength(lines[d]);
+	}
+
+	public int[] allowedWidths(TransitionState ts) {
+		return delegate.allowedWidths(ts);
+	}
+
+	public int[] allowedWidths(int c) {
+		return delegate.allowedWidths(c);
+	}
+
+	public float logProb(int d, int t, TransitionState ts, int w) {
+		return delegate.logProb(lines[d], t, ts, w);
+	}
+
+	public float logProb(int d, int t, int c, int w) {
+		return delegate.logProb(lines[d], t, c, w);
+	}
+
+	public int getExposure(int d, int t, TransitionState ts, int w) {
+		return delegate.getExposure(lines[d], t, ts, w);
+	}
+
+	public int getOffset(int d, int t, TransitionState ts, int w) {
+		return delegate.getOffset(lines[d], t, ts, w);
+	}
+
+	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return delegate.getPadWidth(lines[d], t, ts, w);
+	}
+
+	public float padWidthLogProb(int pw) {
+		return delegate.padWidthLogProb(pw);
+	}
+
+	public void rebuildCache() {
+	}
+
+	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
+		delegate.incrementCount(lines[d], ts, startCol, endCol, count);
+	}
+
+	public void incrementCounts(int d, TransitionState[] transitionStates, int[] widths) {
+		delegate.incrementCounts(lines[d], transitionStates, widths);
+	}
+
+	/**
+	 * Nothing: the cache belongs to the delegate.
+	 */
+	public long cacheMemoryBytes() {
+		return 0;
+	}
+
+}
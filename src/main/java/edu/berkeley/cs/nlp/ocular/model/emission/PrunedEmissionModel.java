@@ -0,0 +1,250 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import tberg.murphy.gpu.CudaUtil;
+import tberg.murphy.indexer.Indexer;
+import tberg.murphy.threading.BetterThreader;
+
+/**
+ * Coarse-to-fine wrapper around another EmissionModel.  On rebuildCache,
+ * every character is scored at every column with a cheap proxy (its most
+ * likely width, the first exposure, and no vertical offset, normalized per
+ * column), and only the top K characters at each column are kept; logProb
+ * is negative infinity for every other character starting at that column.
+ * The space character is never pruned.
+ *
+ * The full-resolution scores come from the wrapped model, so the pruning
+ * only saves emission work when that model is lazy (LazyEmissionModel);
+ * with an eager cache it only narrows the search.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class PrunedEmissionModel implements EmissionModel {
+
+	private EmissionModel delegate;
+	private int topK;
+	private int numThreads;
+	private int numChars;
+	private int spaceIndex;
+	private CharacterTemplate[] templates;
+	private BitPackedObservations[] packedObservations;
+	private int[][] proxyRanks; // [d][t*numChars+c] -> rank of c among all characters at column t
+
+	public PrunedEmissionModel(EmissionModel delegate, CharacterTemplate[] templates, Indexer<String> charIndexer, PixelType[][][] observations, int topK, int numThreads) {
+		this.delegate = delegate;
+		this.topK = topK;
+		this.numThreads = numThreads;
+		this.numChars = charIndexer.size();
+		this.spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		this.templates = templates;
+		this.packedObservations = new BitPackedObservations[observations.length];
+		for (int d=0; d<observations.length; ++d) {
+			this.packedObservations[d] = new BitPackedObservations(observations[d]);
+		}
+	}
+
+	public EmissionModel getDelegate() {
+		return delegate;
+	}
+
+	public int numChars() {
+		return delegate.numChars();
+	}
+
+	public int numSequences() {
+		return delegate.numSequences();
+	}
+
+	public int sequenceLength(int d) {
+		return delegate.sequenceLength(d);
+	}
+
+	public int[] allowedWidths(TransitionState ts) {
+		return delegate.allowedWidths(ts);
+	}
+
+	public int[] allowedWidths(int c) {
+		return delegate.allowedWidths(c);
+	}
+
+	public boolean isPruned(int d, int t, int c) {
+		return c != spaceIndex && proxyRanks[d][t*numChars + c] >= topK;
+	}
+
+	public float logProb(int d, int t, TransitionState ts, int w) {
+		// the state itself goes to the wrapped model, which may score its vertical offset
+		if (isPruned(d, t, ts.getGlyphChar().templateCharIndex)) return Float.NEGATIVE_INFINITY;
+		return delegate.logProb(d, t, ts, w);
+	}
+
+	public float logProb(int d, int t, int c, int w) {
+		if (isPruned(d, t, c)) return Float.NEGATIVE_INFINITY;
+		return delegate.logProb(d, t, c, w);
+	}
+
+	public int getExposure(int d, int t, TransitionState ts, int w) {
+		return delegate.getExposure(d, t, ts, w);
+	}
+
+	public int getOffset(int d, int t, TransitionState ts, int w) {
+		return delegate.getOffset(d, t, ts, w);
+	}
+
+	public int getPadWidth(int d, int t, TransitionState ts, int w) {
+		return delegate.getPadWidth(d, t, ts, w);
+	}
+
+	public float padWidthLogProb(int pw) {
+		return delegate.padWidthLogProb(pw);
+	}
+
+	public void rebuildCache() {
+		delegate.rebuildCache();
+
+		long nanoTime = System.nanoTime();
+		final int[] proxyWidths = new int[numChars];
+		final float[][] proxyLogWhiteProbs = new float[numChars][];
+		final float[][] proxyLogBlackProbs = new float[numChars][];
+		for (int c=0; c<numChars; ++c) {
+			int bestWidth = -1;
+			for (int tw : templates[c].allowedWidths()) {
+				if (bestWidth < 0 || templates[c].widthProb(tw) > templates[c].widthProb(bestWidth)) bestWidth = tw;
+			}
+			proxyWidths[c] = bestWidth;
+			if (bestWidth > 0) {
+				proxyLogWhiteProbs[c] = CudaUtil.flatten(templates[c].logWhiteProbs(0, 0, bestWidth));
+				proxyLogBlackProbs[c] = CudaUtil.flatten(templates[c].logBlackProbs(0, 0, bestWidth));
+			}
+		}
+
+		proxyRanks = new int[numSequences()][];
+		BetterThreader.Function<Integer,Object> func = new BetterThreader.Function<Integer,Object>(){public void call(Integer d, Object ignore){
+			proxyRanks[d] = rankCharacters(d, proxyWidths, proxyLogWhiteProbs, proxyLogBlackProbs);
+		}};
+		BetterThreader<Integer,Object> threader = new BetterThreader<Integer,Object>(func, numThreads);
+		for (int d=0; d<numSequences(); ++d) threader.addFunctionArgument(d);
+		threader.run();
+
+		long numPruned = 0;
+		long numCells = 0;
+		for (int d=0; d<numSequences(); ++d) {
+			for (int t=0; t<sequenceLength(d); ++t) {
+				for (int c=0; c<numChars; ++c) {
+					if (isPruned(d, t, c)) numPruned++;
+				}
+			}
+			numCells += (long) sequenceLength(d)*numChars;
+		}
+		System.out.println("Emission pruning: " + (System.nanoTime() - nanoTime)/1000000 + "ms");
+		System.out.printf("Emission pruning kept top %d characters per column: pruned %d of %d (column, character) cells (%.1f%%)\n", topK, numPruned, numCells, (numCells == 0 ? 0.0 : 100.0*numPruned/numCells));
+	}
+
+	private int[] rankCharacters(int d, int[] proxyWidths, float[][] proxyLogWhiteProbs, float[][] proxyLogBlackProbs) {
+		BitPackedObservations packed = packedObservations[d];
+		int[] ranks = new int[sequenceLength(d)*numChars];
+		final float[] scores = new float[numChars];
+		Integer[] order = new Integer[numChars];
+		for (int t=0; t<sequenceLength(d); ++t) {
+			for (int c=0; c<numChars; ++c) {
+				int tw = proxyWidths[c];
+				if (tw > 0 && t+tw <= sequenceLength(d)) {
+					float logProb = 0.0f;
+					for (int pos=0; pos<tw; ++pos) {
+						logProb += BitPackedObservations.sumOverSetBits(packed.whiteMasks[t+pos], proxyLogWhiteProbs[c], pos*CharacterTemplate.LINE_HEIGHT) + BitPackedObservations.sumOverSetBits(packed.blackMasks[t+pos], proxyLogBlackProbs[c], pos*CharacterTemplate.LINE_HEIGHT);
+					}
+					scores[c] = logProb / tw;
+				} else {
+					scores[c] = Float.NEGATIVE_INFINITY;
+				}
+				order[c] = c;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer c1, Integer c2) {
+					return Float.compare(scores[c2], scores[c1]);
+				}
+			});
+			for (int rank=0; rank<numChars; ++rank) {
+				ranks[t*numChars + order[rank]] = rank;
+			}
+		}
+		return ranks;
+	}
+
+	/**
+	 * Report how the decoded paths sit relative to the pruning.  Pruned cells
+	 * score negative infinity, so a path only goes through one if no
+	 * unpruned path survived; glyphs whose proxy rank falls in the bottom
+	 * half of the kept K are the sign that K is too tight.
+	 */
+	public void printPruningStatistics(TransitionState[][] decodeStates, int[][] decodeWidths) {
+		long numGlyphs = 0;
+		long numOnPrunedCells = 0;
+		long numNearBoundary = 0;
+		int worstRank = 0;
+		for (int d=0; d<decodeStates.length; ++d) {
+			if (decodeStates[d] == null) continue;
+			int t = 0;
+			for (int i=0; i<decodeStates[d].length; ++i) {
+				int c = decodeStates[d][i].getGlyphChar().templateCharIndex;
+				if (t < sequenceLength(d) && c != spaceIndex) {
+					int rank = proxyRanks[d][t*numChars + c];
+					numGlyphs++;
+					if (rank >= topK) numOnPrunedCells++;
+					else if (rank >= (topK+1)/2) numNearBoundary++;
+					worstRank = Math.max(worstRank, rank);
+				}
+				t += decodeWidths[d][i];
+			}
+		}
+		System.out.printf("Emission pruning on decoded paths: %d non-space glyphs, %d on pruned cells, %d ranked in the bottom half of the top %d, worst rank %d\n", numGlyphs, numOnPrunedCells, numNearBoundary, topK, worstRank+1);
+	}
+
+	/**
+	 * The wrapped model's cache plus the proxy ranks and bit-packed
+	 * observations kept here.
+	 */
+	public long cacheMemoryBytes() {
+		long bytes = delegate.cacheMemoryBytes() + 2L*EmissionCacheBuffers.ARRAY_HEADER_BYTES;
+		for (int d=0; d<numSequences(); ++d) {
+			bytes += lineBytes(sequenceLength(d), numChars);
+		}
+		return bytes;
+	}
+
+	private static long lineBytes(int sequenceLength, int numChars) {
+		return EmissionCacheBuffers.ARRAY_HEADER_BYTES + 4L*sequenceLength*numChars + 2L*EmissionCacheBuffers.REFERENCE_BYTES + 2L*(EmissionCacheBuffers.ARRAY_HEADER_BYTES + 8L*sequenceLength);
+	}
+
+	public void incrementCount(int d, TransitionState ts, int startCol, int endCol, float count) {
+		delegate.incrementCount(d, ts, startCol, endCol, count);
+	}
+
+	public void incrementCounts(int d, TransitionState[] transitionStates, int[] widths) {
+		delegate.incrementCounts(d, transitionStates, widths);
+	}
+
+	public static class PrunedEmissionModelFactory implements EmissionModel.EmissionModelFactory {
+		EmissionModel.EmissionModelFactory delegateFactory;
+		Indexer<String> charIndexer;
+		int topK;
+		int numThreads;
+		public PrunedEmissionModelFactory(EmissionModel.EmissionModelFactory delegateFactory, Indexer<String> charIndexer, int topK, int numThreads) {
+			this.delegateFactory = delegateFactory;
+			this.charIndexer = charIndexer;
+			this.topK = topK;
+			this.numThreads = numThreads;
+		}
+		public EmissionModel make(CharacterTemplate[] templates, PixelType[][][] observations) {
+			return new PrunedEmissionModel(delegateFactory.make(templates, observations), templates, charIndexer, observations, topK, numThreads);
+		}
+		public long predictLineCacheMemoryBytes(CharacterTemplate[] templates, int sequenceLength) {
+			return delegateFactory.predictLineCacheMemoryBytes(templates, sequenceLength) + lineBytes(sequenceLength, charIndexer.size());
+		}
+	}
+}
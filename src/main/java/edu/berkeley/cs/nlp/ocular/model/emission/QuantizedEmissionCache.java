@@ -0,0 +1,175 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Per-line emission cache storage at 16 bits per entry instead of 32.  A
+ * line is populated in full precision and then quantized with store().
+ * Only the scores are quantized: the 16-bit argmax (exposure, offset and
+ * pad width) kept for each entry is unchanged, so an entry goes from 6
+ * bytes to 4, a third less in all.
+ *
+ * FP16 keeps IEEE half floats.  Their relative error is 2^-11, so the
+ * absolute error grows with the magnitude of the log-probability (about
+ * 0.5 at -1000); values below the half float range are clamped to its most
+ * negative finite value.
+ *
+ * INT16 keeps, for each line, the largest finite log-probability and a step
+ * size, and stores each entry as the rounded number of steps below that
+ * maximum.  The absolute error is at most half a step, i.e. 1/131068th of
+ * the line's range of finite log-probabilities.  Negative infinity has its
+ * own code.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class QuantizedEmissionCache {
+
+	public static enum Precision { FLOAT32, FP16, INT16 }
+
+	private static final int INT16_NEGATIVE_INFINITY = 0xFFFF;
+	private static final int INT16_MAX_STEPS = 0xFFFE;
+
+	private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+	static {
+		for (int h=0; h<HALF_TO_FLOAT.length; ++h) HALF_TO_FLOAT[h] = halfToFloat((short) h);
+	}
+
+	private final Precision precision;
+	private final boolean offHeap;
+	private final ShortBuffer[] lines;
+	private final float[] lineMaxes;
+	private final float[] lineSteps;
+
+	public QuantizedEmissionCache(Precision precision, int numLines, boolean offHeap) {
+		if (precision == Precision.FLOAT32) throw new RuntimeException("A FLOAT32 emission cache is not quantized");
+		this.precision = precision;
+		this.offHeap = offHeap;
+		this.lines = new ShortBuffer[numLines];
+		this.lineMaxes = new float[numLines];
+		this.lineSteps = new float[numLines];
+	}
+
+	/**
+	 * Quantize the fully populated cache of line d.  Different lines may be
+	 * stored concurrently.
+	 */
+	public void store(int d, FloatBuffer logProbs) {
+		int size = logProbs.capacity();
+		ShortBuffer line = allocate(size, offHeap);
+		if (precision == Precision.FP16) {
+			for (int i=0; i<size; ++i) line.put(i, floatToHalf(logProbs.get(i)));
+		} else {
+			float max = Float.NEGATIVE_INFINITY;
+			float min = Float.POSITIVE_INFINITY;
+			for (int i=0; i<size; ++i) {
+				float logProb = logProbs.get(i);
+				if (logProb != Float.NEGATIVE_INFINITY) {
+					max = Math.max(max, logProb);
+					min = Math.min(min, logProb);
+				}
+			}
+			float step = (max > min) ? (max - min) / INT16_MAX_STEPS : 0.0f;
+			for (int i=0; i<size; ++i) {
+				float logProb = logProbs.get(i);
+				if (logProb == Float.NEGATIVE_INFINITY) line.put(i, (short) INT16_NEGATIVE_INFINITY);
+				else if (step == 0.0f) line.put(i, (short) 0);
+				else line.put(i, (short) Math.min(INT16_MAX_STEPS, Math.round((max - logProb) / step)));
+			}
+			lineMaxes[d] = max;
+			lineSteps[d] = step;
+		}
+		lines[d] = line;
+	}
+
+	public float get(int d, int i) {
+		int quantized = lines[d].get(i) & 0xFFFF;
+		if (precision == Precision.FP16) return HALF_TO_FLOAT[quantized];
+		if (quantized == INT16_NEGATIVE_INFINITY) return Float.NEGATIVE_INFINITY;
+		return lineMaxes[d] - quantized*lineSteps[d];
+	}
+
+	/**
+	 * Bytes held on the heap, including object headers.
+	 */
+	public long heapBytes() {
+		long bytes = 3L*EmissionCacheBuffers.ARRAY_HEADER_BYTES + (long) (EmissionCacheBuffers.REFERENCE_BYTES + 8)*lines.length;
+		for (ShortBuffer line : lines) {
+			if (line == null) continue;
+			if (line.isDirect()) bytes += EmissionCacheBuffers.DIRECT_BUFFER_OBJECT_BYTES;
+			else bytes += EmissionCacheBuffers.BUFFER_OBJECT_BYTES + EmissionCacheBuffers.ARRAY_HEADER_BYTES + 2L*line.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Bytes held in direct memory.
+	 */
+	public long offHeapBytes() {
+		long bytes = 0;
+		for (ShortBuffer line : lines) {
+			if (line != null && line.isDirect()) bytes += 2L*line.capacity();
+		}
+		return bytes;
+	}
+
+	/**
+	 * What heapBytes+offHeapBytes add for one line of `size` entries.
+	 */
+	public static long lineBytes(long size, boolean offHeap) {
+		long bytes = EmissionCacheBuffers.REFERENCE_BYTES + 8;
+		if (offHeap) bytes += EmissionCacheBuffers.DIRECT_BUFFER_OBJECT_BYTES + 2L*size;
+		else bytes += EmissionCacheBuffers.BUFFER_OBJECT_BYTES + EmissionCacheBuffers.ARRAY_HEADER_BYTES + 2L*size;
+		return bytes;
+	}
+
+	private static ShortBuffer allocate(int size, boolean offHeap) {
+		if (offHeap) return ByteBuffer.allocateDirect(size*2).order(ByteOrder.nativeOrder()).asShortBuffer();
+		else return ShortBuffer.wrap(new short[size]);
+	}
+
+	/**
+	 * Round to the nearest half float (ties to even), clamping finite values
+	 * to the largest finite half float.
+	 */
+	static short floatToHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+		int mantissa = bits & 0x7FFFFF;
+		if (((bits >>> 23) & 0xFF) == 0xFF) return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		if (exponent >= 0x1F) return (short) (sign | 0x7BFF);
+		if (exponent <= 0) {
+			// subnormal half float (or zero)
+			if (exponent < -10) return (short) sign;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+			return (short) (sign | half);
+		}
+		int half = (exponent << 10) | (mantissa >> 13);
+		int remainder = mantissa & 0x1FFF;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+		if (half >= 0x7C00) half = 0x7BFF;
+		return (short) (sign | half);
+	}
+
+	static float halfToFloat(short half) {
+		int bits = half & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+		if (exponent == 0x1F) return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		if (exponent == 0) {
+			float subnormal = mantissa / (float) (1 << 24);
+			return (sign != 0) ? -subnormal : subnormal;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+}
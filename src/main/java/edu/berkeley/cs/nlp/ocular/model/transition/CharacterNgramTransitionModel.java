@@ -5,7 +5,9 @@ import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import tberg.murphy.arrays.a;
 import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
@@ -18,13 +20,19 @@ import edu.berkeley.cs.nlp.ocular.util.Tuple2;
 /**
  * @author Taylor Berg-Kirkpatrick (tberg@eecs.berkeley.edu)
  */
-public class CharacterNgramTransitionModel implements SparseTransitionModel {
+public class CharacterNgramTransitionModel implements CompiledTransitionModel {
 	
 	public class CharacterNgramTransitionState implements SparseTransitionModel.TransitionState {
 		private final int[] context;
 		private final TransitionStateType type;
 
 		private final int lmCharIndex;
+		private final GlyphChar glyphChar;
+		private final int hashCode;
+		
+		// Set when this object becomes the interned instance of its state
+		private int id = -1;
+		private volatile Transitions compiledForwardTransitions = null;
 		
 		public CharacterNgramTransitionState(int[] context, TransitionStateType type) {
 			this.context = context;
@@ -37,6 +45,9 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 			} else {
 				this.lmCharIndex = context[context.length-1];
 			}
+			// Always render the character proposed by the language model
+			this.glyphChar = new GlyphChar(lmCharIndex, GlyphType.NORMAL_CHAR);
+			this.hashCode = 1013 * Arrays.hashCode(context) + 1009 * this.type.ordinal();
 		}
 		
 		public boolean equals(Object other) {
@@ -55,7 +66,7 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 		}
 		
 		public int hashCode() {
-			return 1013 * Arrays.hashCode(context) + 1009 * this.type.ordinal();
+			return hashCode;
 		}
 		
 		public Collection<Tuple2<TransitionState,Double>> nextLineStartStates() {
@@ -122,7 +133,7 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 					}
 				}
 			}
-			return result;
+			return internAll(result);
 		}
 		
 		public double endLogProb() {
@@ -130,6 +141,18 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 		}
 		
 		public Collection<Tuple2<TransitionState,Double>> forwardTransitions() {
+			Transitions transitions = compiledForwardTransitions(this);
+			List<Tuple2<TransitionState,Double>> result = new ArrayList<Tuple2<TransitionState,Double>>(transitions.size());
+			for (int i=0; i<transitions.size(); ++i) {
+				result.add(Tuple2(getState(transitions.nextStateIds[i]), transitions.logProbs[i]));
+			}
+			return result;
+		}
+		
+		/**
+		 * Build this state's forward transitions from the language model.
+		 */
+		private List<Tuple2<TransitionState,Double>> expandForwardTransitions() {
 			int[] context = getContext();
 			TransitionStateType type = getType();
 			List<Tuple2<TransitionState,Double>> result = new ArrayList<Tuple2<TransitionState,Double>>();
@@ -206,8 +229,7 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 		}
 		
 		public GlyphChar getGlyphChar() {
-			// Always render the character proposed by the language model
-			return new GlyphChar(lmCharIndex, GlyphType.NORMAL_CHAR);
+			return glyphChar;
 		}
 		
 		public int getOffset() {
@@ -238,6 +260,12 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 	private int spaceCharIndex;
 	private int hyphenCharIndex;
 	private boolean[] isPunc;
+	
+	// Interned states.  statesById is only ever replaced by a larger copy,
+	// and a state is stored in it before its id is handed out.
+	private final Map<CharacterNgramTransitionState,CharacterNgramTransitionState> internedStates = new HashMap<CharacterNgramTransitionState,CharacterNgramTransitionState>();
+	private volatile CharacterNgramTransitionState[] statesById = new CharacterNgramTransitionState[1024];
+	private int numStates = 0;
 
 	public CharacterNgramTransitionModel(SingleLanguageModel lm) {
 		this.lm = lm;
@@ -257,7 +285,62 @@ public class CharacterNgramTransitionModel implements SparseTransitionModel {
 		for (int c=0; c<lm.getCharacterIndexer().size(); ++c) {
 			result.add(Tuple2((TransitionState) new CharacterNgramTransitionState(new int[] {c}, TransitionStateType.TMPL), Math.log((1.0 - LINE_MRGN_PROB)) + Math.log(lm.getCharNgramProb(new int[0], c))));
 		}
-		return result;
+		return internAll(result);
+	}
+	
+	public Transitions compiledForwardTransitions(TransitionState ts) {
+		CharacterNgramTransitionState state = intern((CharacterNgramTransitionState) ts);
+		Transitions transitions = state.compiledForwardTransitions;
+		if (transitions == null) {
+			// Two threads may both compile the same state; they get the same result.
+			List<Tuple2<TransitionState,Double>> expanded = state.expandForwardTransitions();
+			int[] nextStateIds = new int[expanded.size()];
+			double[] logProbs = new double[expanded.size()];
+			for (int i=0; i<expanded.size(); ++i) {
+				nextStateIds[i] = intern((CharacterNgramTransitionState) expanded.get(i)._1).id;
+				logProbs[i] = expanded.get(i)._2;
+			}
+			transitions = new Transitions(nextStateIds, logProbs);
+			state.compiledForwardTransitions = transitions;
+		}
+		return transitions;
+	}
+	
+	public TransitionState getState(int id) {
+		return statesById[id];
+	}
+	
+	public synchronized int numStates() {
+		return numStates;
+	}
+	
+	/**
+	 * The interned instance of the given state.
+	 */
+	private CharacterNgramTransitionState intern(CharacterNgramTransitionState state) {
+		// An interned instance was published with its id already set.
+		if (state.id >= 0) return state;
+		synchronized (this) {
+			CharacterNgramTransitionState interned = internedStates.get(state);
+			if (interned == null) {
+				interned = state;
+				CharacterNgramTransitionState[] states = statesById;
+				if (numStates == states.length) states = Arrays.copyOf(states, 2*states.length);
+				states[numStates] = interned;
+				interned.id = numStates++;
+				statesById = states;
+				internedStates.put(interned, interned);
+			}
+			return interned;
+		}
+	}
+	
+	private List<Tuple2<TransitionState,Double>> internAll(List<Tuple2<TransitionState,Double>> transitions) {
+		for (int i=0; i<transitions.size(); ++i) {
+			Tuple2<TransitionState,Double> transition = transitions.get(i);
+			transitions.set(i, Tuple2((TransitionState) intern((CharacterNgramTransitionState) transition._1), transition._2));
+		}
+		return transitions;
 	}
 	
 	private int[] shrinkContext(int[] context) {
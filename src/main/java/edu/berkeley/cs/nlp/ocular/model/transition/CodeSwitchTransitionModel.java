@@ -13,7 +13,9 @@ import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,7 +35,7 @@ import tberg.murphy.indexer.Indexer;
 /**
  * @author Dan Garrette (dhgarrette@gmail.com)
  */
-public class CodeSwitchTransitionModel implements SparseTransitionModel {
+public class CodeSwitchTransitionModel implements CompiledTransitionModel {
 
 	public class CodeSwitchTransitionState implements TransitionState {
 		private final int[] context;
@@ -52,6 +54,11 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 
 		public final int lmCharIndex;
 		public final GlyphChar glyphChar;
+		private final int hashCode;
+		
+		// Set when this object becomes the interned instance of its state, in the given generation of the interned tables
+		private int id = -1;
+		private int generation = -1;
 
 		public CodeSwitchTransitionState(int[] context, TransitionStateType type, int langIndex, GlyphChar glyphChar) {
 			if (context == null) throw new IllegalArgumentException("context is null");
@@ -62,15 +69,16 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 			this.langIndex = langIndex;
 			this.lmCharIndex = makeLmCharIndex(context, type);
 			this.glyphChar = glyphChar;
+			this.hashCode = 1013 * Arrays.hashCode(context) + 1009 * type.ordinal() + 1007 * langIndex + 1017 * glyphChar.hashCode();
 		}
 
 		public boolean equals(Object other) {
 			if (other instanceof CodeSwitchTransitionState) {
 				CodeSwitchTransitionState that = (CodeSwitchTransitionState) other;
-				if (this.type != that.type || this.langIndex != that.langIndex) {
+				if (this.hashCode != that.hashCode || this.type != that.type || this.langIndex != that.langIndex) {
 					return false;
 				}
-				else if (!Arrays.equals(this.context, that.context)) {
+				else if (this.context != that.context && !Arrays.equals(this.context, that.context)) {
 					return false;
 				}
 				else if (!this.glyphChar.equals(that.glyphChar)) {
@@ -86,11 +94,7 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 		}
 
 		public int hashCode() {
-			int ctxHash = Arrays.hashCode(context);
-			int typeHash = this.type.ordinal();
-			int langHash = this.langIndex;
-			int glyphHash = this.glyphChar.hashCode();
-			return 1013 * ctxHash + 1009 * typeHash + 1007 * langHash + 1017 * glyphHash;
+			return hashCode;
 		}
 
 		private void addNoSubGlyphStates(List<Tuple2<TransitionState, Double>> result, int[] nextContext, TransitionStateType nextType, int nextLanguage, double transitionScore) {
@@ -433,7 +437,7 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 
 				addTransitionsToTmpl(result, context, 0.0, true);
 			}
-			return result;
+			return internAll(result);
 		}
 
 		public double endLogProb() {
@@ -443,10 +447,19 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 				return 0.0;
 		}
 
+		public Collection<Tuple2<TransitionState, Double>> forwardTransitions() {
+			Transitions transitions = compiledForwardTransitions(this);
+			List<Tuple2<TransitionState, Double>> result = new ArrayList<Tuple2<TransitionState, Double>>(transitions.size());
+			for (int i = 0; i < transitions.size(); ++i) {
+				result.add(Tuple2(getState(transitions.nextStateIds[i]), transitions.logProbs[i]));
+			}
+			return result;
+		}
+
 		/**
 		 * Calculate forward transitions
 		 */
-		public Collection<Tuple2<TransitionState, Double>> forwardTransitions() {
+		private List<Tuple2<TransitionState, Double>> expandForwardTransitions() {
 			SingleLanguageModel thisLM = lm.get(this.langIndex);
 			List<Tuple2<TransitionState, Double>> result = new ArrayList<Tuple2<TransitionState, Double>>();
 
@@ -571,6 +584,11 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 
 	public static final double LINE_MRGN_PROB = 0.5;
 	public static final double LINE_END_HYPHEN_PROB = 1e-8;
+	
+	public static final int DEFAULT_TRANSITION_CACHE_SIZE = 10000;
+	public static final int MAX_INTERNED_STATES = 1000000;
+	private static final int MAX_TRANSITION_CACHE_SEGMENTS = 16;
+	private static final int MIN_TRANSITION_CACHE_SEGMENT_SIZE = 256;
 
 	private Indexer<String> charIndexer;
 	private Indexer<String> langIndexer;
@@ -597,6 +615,27 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 
 	private Set<TransitionStateType> alwaysSpaceTransitionTypes;
 	
+	/*
+	 * Transition cache.  States are interned to dense ids, by (context, type,
+	 * language, glyph), with their contexts interned too so that interned states
+	 * share context arrays.  statesById is only ever replaced by a larger copy,
+	 * and a state is stored in it before its id is handed out.  The tables are
+	 * cleared by trimInternedStates, which starts a new generation: a state
+	 * interned in an earlier one is interned again when next seen.
+	 * 
+	 * The forward transitions of the most recently expanded states are kept in
+	 * at most transitionCacheSize entries, split by state id over segments that
+	 * each have their own lock and least-recently-used order, so that decoder
+	 * threads don't all wait on one lock for cache hits.
+	 */
+	private final Map<CodeSwitchTransitionState, CodeSwitchTransitionState> internedStates = new HashMap<CodeSwitchTransitionState, CodeSwitchTransitionState>();
+	private final Map<Context, int[]> internedContexts = new HashMap<Context, int[]>();
+	private volatile CodeSwitchTransitionState[] statesById = new CodeSwitchTransitionState[1024];
+	private int numStates = 0;
+	private volatile int generation = 0;
+	private final int transitionCacheSize;
+	private final TransitionCacheSegment[] transitionCache;
+	
 	/**
 	 * character index is the last letter of the context.
 	 * 
@@ -618,6 +657,22 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 	}
 
 	public CodeSwitchTransitionModel(CodeSwitchLanguageModel lm, boolean allowLanguageSwitchOnPunct, GlyphSubstitutionModel gsm, boolean allowGlyphSubstitution, double noCharSubPrior, boolean elideAnything) {
+		this(lm, allowLanguageSwitchOnPunct, gsm, allowGlyphSubstitution, noCharSubPrior, elideAnything, DEFAULT_TRANSITION_CACHE_SIZE);
+	}
+
+	/**
+	 * Keep the forward transitions of at most transitionCacheSize states,
+	 * evicting the least recently used first (within each segment of the
+	 * cache; a small cache has just one).  0 turns the cache off.
+	 */
+	public CodeSwitchTransitionModel(CodeSwitchLanguageModel lm, boolean allowLanguageSwitchOnPunct, GlyphSubstitutionModel gsm, boolean allowGlyphSubstitution, double noCharSubPrior, boolean elideAnything, int transitionCacheSize) {
+		this.transitionCacheSize = transitionCacheSize;
+		int numSegments = Math.max(1, Math.min(MAX_TRANSITION_CACHE_SEGMENTS, transitionCacheSize / MIN_TRANSITION_CACHE_SEGMENT_SIZE));
+		this.transitionCache = new TransitionCacheSegment[numSegments];
+		for (int i = 0; i < numSegments; ++i) {
+			// the first (transitionCacheSize % numSegments) segments take one more entry
+			this.transitionCache[i] = new TransitionCacheSegment(transitionCacheSize / numSegments + (i < transitionCacheSize % numSegments ? 1 : 0));
+		}
 		this.lm = lm;
 		this.gsm = gsm;
 		this.allowLanguageSwitchOnPunct = allowLanguageSwitchOnPunct;
@@ -773,7 +828,168 @@ public class CodeSwitchTransitionModel implements SparseTransitionModel {
 			double score = Math.log(1.0 - LINE_MRGN_PROB) + Math.log(totalSpaceProb) /*+ Math.log(1.0)*/;
 			addNoSubGlyphStartState(result, new int[] { spaceCharIndex }, TransitionStateType.TMPL, -1, score);
 		}
-		return result;
+		return internAll(result);
+	}
+
+	public Transitions compiledForwardTransitions(TransitionState ts) {
+		CodeSwitchTransitionState state = intern((CodeSwitchTransitionState) ts);
+		TransitionCacheSegment segment = transitionCache[state.id % transitionCache.length];
+		Transitions transitions = segment.get(state.id);
+		if (transitions == null) {
+			// Two threads may both expand the same state; they get the same result.
+			List<Tuple2<TransitionState, Double>> expanded = state.expandForwardTransitions();
+			int[] nextStateIds = new int[expanded.size()];
+			double[] logProbs = new double[expanded.size()];
+			for (int i = 0; i < expanded.size(); ++i) {
+				nextStateIds[i] = intern((CodeSwitchTransitionState) expanded.get(i)._1).id;
+				logProbs[i] = expanded.get(i)._2;
+			}
+			transitions = new Transitions(nextStateIds, logProbs);
+			if (transitionCacheSize > 0) segment.put(state.id, transitions);
+		}
+		return transitions;
+	}
+
+	public TransitionState getState(int id) {
+		return statesById[id];
+	}
+
+	public synchronized int numStates() {
+		return numStates;
+	}
+
+	public void printCacheStatistics() {
+		long size = 0, hits = 0, misses = 0, evictions = 0;
+		for (TransitionCacheSegment segment : transitionCache) {
+			synchronized (segment) {
+				size += segment.size();
+				hits += segment.hits;
+				misses += segment.misses;
+				evictions += segment.evictions;
+			}
+		}
+		long lookups = hits + misses;
+		System.out.println(String.format("Transition cache: %d states interned, forward transitions kept for %d of at most %d in %d segments, hit rate %.1f%% (%d hits, %d misses, %d evictions)", numStates(), size, transitionCacheSize, transitionCache.length, (lookups > 0 ? 100.0 * hits / lookups : 0.0), hits, misses, evictions));
+	}
+
+	/**
+	 * If more than maxStates states are interned, forget all of them, along
+	 * with the cached transitions, so that the tables don't grow without
+	 * bound over a long run.  Only call this when no decode is using the
+	 * model: the ids handed out so far stop being valid.
+	 */
+	public void trimInternedStates(int maxStates) {
+		synchronized (this) {
+			if (numStates <= maxStates) return;
+			System.out.println("Transition cache: forgetting " + numStates + " interned states");
+			internedStates.clear();
+			internedContexts.clear();
+			statesById = new CodeSwitchTransitionState[1024];
+			numStates = 0;
+			generation++;
+		}
+		for (TransitionCacheSegment segment : transitionCache) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * The interned instance of the given state.
+	 */
+	private CodeSwitchTransitionState intern(CodeSwitchTransitionState state) {
+		// An interned instance was published with its id already set.
+		if (state.id >= 0 && state.generation == generation) return state;
+		synchronized (this) {
+			CodeSwitchTransitionState interned = internedStates.get(state);
+			if (interned == null) {
+				Context contextKey = new Context(state.context);
+				int[] context = internedContexts.get(contextKey);
+				if (context == null) {
+					context = state.context;
+					internedContexts.put(contextKey, context);
+				}
+				// a state interned in an earlier generation keeps its old id, so it is replaced by a copy
+				interned = (context == state.context && state.id < 0) ? state : new CodeSwitchTransitionState(context, state.type, state.langIndex, state.glyphChar);
+				CodeSwitchTransitionState[] states = statesById;
+				if (numStates == states.length) states = Arrays.copyOf(states, 2 * states.length);
+				states[numStates] = interned;
+				interned.generation = generation;
+				interned.id = numStates++;
+				statesById = states;
+				internedStates.put(interned, interned);
+			}
+			return interned;
+		}
+	}
+
+	private List<Tuple2<TransitionState, Double>> internAll(List<Tuple2<TransitionState, Double>> transitions) {
+		for (int i = 0; i < transitions.size(); ++i) {
+			Tuple2<TransitionState, Double> transition = transitions.get(i);
+			transitions.set(i, Tuple2((TransitionState) intern((CodeSwitchTransitionState) transition._1), transition._2));
+		}
+		return transitions;
+	}
+
+	/**
+	 * One segment of the transition cache: an access-ordered map of at most
+	 * capacity entries, guarded by the segment's own lock.
+	 */
+	@SuppressWarnings("serial")
+	private static class TransitionCacheSegment {
+		private final Map<Integer, Transitions> transitions;
+		long hits = 0;
+		long misses = 0;
+		long evictions = 0;
+
+		public TransitionCacheSegment(final int capacity) {
+			this.transitions = new LinkedHashMap<Integer, Transitions>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Integer, Transitions> eldest) {
+					if (size() <= capacity) return false;
+					evictions++;
+					return true;
+				}
+			};
+		}
+
+		public synchronized Transitions get(int id) {
+			Transitions result = transitions.get(id);
+			if (result != null) hits++;
+			else misses++;
+			return result;
+		}
+
+		public synchronized void put(int id, Transitions t) {
+			transitions.put(id, t);
+		}
+
+		public synchronized int size() {
+			return transitions.size();
+		}
+
+		public synchronized void clear() {
+			transitions.clear();
+		}
+	}
+
+	/**
+	 * An LM context, as a hash key.
+	 */
+	private static class Context {
+		private final int[] chars;
+		private final int hashCode;
+
+		public Context(int[] chars) {
+			this.chars = chars;
+			this.hashCode = Arrays.hashCode(chars);
+		}
+
+		public boolean equals(Object other) {
+			return (other instanceof Context) && Arrays.equals(chars, ((Context) other).chars);
+		}
+
+		public int hashCode() {
+			return hashCode;
+		}
 	}
 
 	private double getNgramProb(SingleLanguageModel slm, int[] context, int c) {
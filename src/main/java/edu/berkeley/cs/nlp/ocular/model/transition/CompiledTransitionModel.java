@@ -0,0 +1,50 @@
+package edu.berkeley.cs.nlp.ocular.model.transition;
+
+/**
+ * A transition model that interns the states it reaches to dense int ids
+ * and memoizes each state's forward transitions as parallel arrays, so
+ * that the decoder can expand a state by iterating primitives instead of
+ * building a fresh collection of new states for every expansion.
+ *
+ * The interned states and memoized transitions are shared by all callers,
+ * and may be used from several threads at once.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public interface CompiledTransitionModel extends SparseTransitionModel {
+
+	/**
+	 * A state's forward transitions: to state nextStateIds[i] with log
+	 * probability logProbs[i].
+	 */
+	public static class Transitions {
+		public final int[] nextStateIds;
+		public final double[] logProbs;
+
+		public Transitions(int[] nextStateIds, double[] logProbs) {
+			this.nextStateIds = nextStateIds;
+			this.logProbs = logProbs;
+		}
+
+		public int size() {
+			return nextStateIds.length;
+		}
+	}
+
+	/**
+	 * The forward transitions of a state of this model, computed the first
+	 * time they are asked for.
+	 */
+	public Transitions compiledForwardTransitions(SparseTransitionModel.TransitionState ts);
+
+	/**
+	 * The interned state with the given id.
+	 */
+	public SparseTransitionModel.TransitionState getState(int id);
+
+	/**
+	 * The number of states interned so far.
+	 */
+	public int numStates();
+
+}
@@ -307,7 +307,10 @@ public class FontTrainer {
 		long nanoTime = System.nanoTime();
 		BetterThreader.Function<Integer, Object> func = new BetterThreader.Function<Integer, Object>() {
 			public void call(Integer c, Object ignore) {
-				if (templates[c] != null) templates[c].updateParameters();
+				if (templates[c] != null) {
+					templates[c].updateParameters();
+					templates[c].precompute();
+				}
 			}
 		};
 		BetterThreader<Integer, Object> threader = new BetterThreader<Integer, Object>(func, numMstepThreads);
@@ -0,0 +1,81 @@
+package edu.berkeley.cs.nlp.ocular.util;
+
+/**
+ * In-place iterative radix-2 complex FFT of a fixed power-of-two size, with
+ * the twiddle factors and bit-reversal permutation computed once.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class Fft {
+
+	public final int size;
+	private final int[] bitReversal;
+	private final double[] cos;
+	private final double[] sin;
+
+	public Fft(int size) {
+		if (size < 1 || Integer.bitCount(size) != 1) throw new RuntimeException("FFT size must be a power of two: " + size);
+		this.size = size;
+		int logSize = Integer.numberOfTrailingZeros(size);
+		this.bitReversal = new int[size];
+		for (int i=0; i<size; ++i) {
+			bitReversal[i] = (logSize == 0) ? 0 : Integer.reverse(i) >>> (Integer.SIZE - logSize);
+		}
+		this.cos = new double[size/2];
+		this.sin = new double[size/2];
+		for (int k=0; k<size/2; ++k) {
+			cos[k] = Math.cos(2.0*Math.PI*k/size);
+			sin[k] = Math.sin(2.0*Math.PI*k/size);
+		}
+	}
+
+	public static int nextPowerOfTwo(int n) {
+		return (n <= 1) ? 1 : Integer.highestOneBit(n-1) << 1;
+	}
+
+	public static int log2(int powerOfTwo) {
+		return Integer.numberOfTrailingZeros(powerOfTwo);
+	}
+
+	/**
+	 * X[k] = sum_n x[n] exp(-2 pi i k n / size)
+	 */
+	public void forward(double[] re, double[] im) {
+		transform(re, im, -1.0);
+	}
+
+	/**
+	 * Unnormalized: inverse(forward(x)) == size * x.
+	 */
+	public void inverse(double[] re, double[] im) {
+		transform(re, im, 1.0);
+	}
+
+	private void transform(double[] re, double[] im, double sign) {
+		for (int i=0; i<size; ++i) {
+			int j = bitReversal[i];
+			if (j > i) {
+				double tmp = re[i]; re[i] = re[j]; re[j] = tmp;
+				tmp = im[i]; im[i] = im[j]; im[j] = tmp;
+			}
+		}
+		for (int half=1; half<size; half <<= 1) {
+			int twiddleStride = size / (2*half);
+			for (int start=0; start<size; start += 2*half) {
+				for (int k=0; k<half; ++k) {
+					double wRe = cos[k*twiddleStride];
+					double wIm = sign * sin[k*twiddleStride];
+					int a = start + k;
+					int b = a + half;
+					double bRe = re[b]*wRe - im[b]*wIm;
+					double bIm = re[b]*wIm + im[b]*wRe;
+					re[b] = re[a] - bRe;
+					im[b] = im[a] - bIm;
+					re[a] += bRe;
+					im[a] += bIm;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,255 @@
+package edu.berkeley.cs.nlp.ocular.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A fixed pool of threads shared by groups of tasks, where each task comes
+ * with a size (e.g., a sequence length) and the largest waiting task is
+ * always run first, so that the long tasks start early instead of becoming
+ * stragglers at the end.
+ *
+ * Tasks may themselves create and run task groups on the same scheduler
+ * (nested parallelism).  A thread waiting for a group helps by running
+ * that group's own waiting tasks, so nested groups never deadlock, and
+ * idle pool threads pick up whatever the largest waiting task is from any
+ * group.
+ *
+ * A group can limit how many of its tasks run at once (for example, to
+ * the number of buffers they share); its other tasks are only submitted,
+ * largest first, as running ones finish, so they never hold a thread
+ * while waiting for one of those resources.
+ *
+ * The thread that creates the scheduler counts as one of its threads: it
+ * runs tasks while it waits in TaskGroup.run, so only numThreads-1 pool
+ * threads are started.  Keeps per-thread statistics on how much of the
+ * scheduler's lifetime each thread spent idle.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class WorkScheduler {
+
+	private static final Comparator<Job> LARGEST_FIRST = new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			if (a.size != b.size) return (a.size > b.size) ? -1 : 1;
+			return (a.sequence < b.sequence) ? -1 : ((a.sequence > b.sequence) ? 1 : 0);
+		}
+	};
+
+	private static class Job {
+		final long size;
+		final long sequence;
+		final Runnable task;
+		final TaskGroup group;
+		boolean claimed = false;
+		Job(long size, long sequence, Runnable task, TaskGroup group) {
+			this.size = size;
+			this.sequence = sequence;
+			this.task = task;
+			this.group = group;
+		}
+	}
+
+	public class TaskGroup {
+		private final List<Job> jobs = new ArrayList<Job>();
+		private final PriorityQueue<Job> waitingJobs = new PriorityQueue<Job>(11, LARGEST_FIRST);
+		private final PriorityQueue<Job> heldJobs = new PriorityQueue<Job>(11, LARGEST_FIRST);
+		private int maxSubmitted = Integer.MAX_VALUE;
+		private int numSubmitted = 0;
+		private int numUnfinished = 0;
+		private Throwable error = null;
+
+		public void add(long size, Runnable task) {
+			synchronized (lock) {
+				jobs.add(new Job(size, nextSequence++, task, this));
+			}
+		}
+
+		/**
+		 * Run at most maxRunning of this group's tasks at once.
+		 */
+		public void setMaxRunning(int maxRunning) {
+			if (maxRunning < 1) throw new RuntimeException("maxRunning must be positive, was " + maxRunning);
+			this.maxSubmitted = maxRunning;
+		}
+
+		/**
+		 * Submit all added tasks (up to the limit set by setMaxRunning) and
+		 * wait for them to finish, running this group's own tasks on the
+		 * calling thread while waiting.
+		 */
+		public void run() {
+			synchronized (lock) {
+				heldJobs.addAll(jobs);
+				numUnfinished += jobs.size();
+				jobs.clear();
+				submitHeldJobs();
+				lock.notifyAll();
+			}
+			while (true) {
+				Job job;
+				synchronized (lock) {
+					job = poll(waitingJobs);
+					while (job == null && numUnfinished > 0) {
+						waitIdle();
+						job = poll(waitingJobs);
+					}
+					if (job == null) break;
+				}
+				execute(job);
+			}
+			if (error != null) throw new RuntimeException(error);
+		}
+
+		/**
+		 * The caller must hold the lock.
+		 */
+		private void submitHeldJobs() {
+			while (numSubmitted < maxSubmitted && !heldJobs.isEmpty()) {
+				Job job = heldJobs.poll();
+				waitingJobs.add(job);
+				queue.add(job);
+				numSubmitted++;
+			}
+		}
+	}
+
+	private final Object lock = new Object();
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>(11, LARGEST_FIRST);
+	private final Thread[] workers;
+	private final long[] workerIdleNanos;
+	private final int[] workerNumTasks;
+	private final ThreadLocal<Integer> workerIndex = new ThreadLocal<Integer>();
+	private final long startNanoTime;
+	private long endNanoTime = -1;
+	private long nextSequence = 0;
+	private boolean shutdown = false;
+
+	public WorkScheduler(int numThreads) {
+		if (numThreads < 1) throw new RuntimeException("WorkScheduler needs at least one thread");
+		this.workers = new Thread[numThreads-1];
+		this.workerIdleNanos = new long[numThreads];
+		this.workerNumTasks = new int[numThreads];
+		this.startNanoTime = System.nanoTime();
+		workerIndex.set(numThreads-1);
+		for (int i=0; i<numThreads-1; ++i) {
+			final int index = i;
+			workers[i] = new Thread() {
+				public void run() {
+					workerIndex.set(index);
+					while (true) {
+						Job job;
+						synchronized (lock) {
+							job = poll(queue);
+							while (job == null && !shutdown) {
+								waitIdle();
+								job = poll(queue);
+							}
+							if (job == null) return;
+						}
+						execute(job);
+					}
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public TaskGroup newTaskGroup() {
+		return new TaskGroup();
+	}
+
+	/**
+	 * Stop the pool threads once they are idle.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			shutdown = true;
+			lock.notifyAll();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		endNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * Print, for each thread, the fraction of the scheduler's lifetime
+	 * (until shutdown, or now) that it spent running tasks.
+	 */
+	public void printUtilization(String label) {
+		long wallNanos = ((endNanoTime < 0) ? System.nanoTime() : endNanoTime) - startNanoTime;
+		StringBuilder perThread = new StringBuilder();
+		double total = 0.0;
+		double min = 1.0;
+		int numThreads = workerIdleNanos.length;
+		synchronized (lock) {
+			for (int i=0; i<numThreads; ++i) {
+				double utilization = (wallNanos == 0) ? 1.0 : Math.max(0.0, 1.0 - workerIdleNanos[i] / (double) wallNanos);
+				total += utilization;
+				min = Math.min(min, utilization);
+				perThread.append(String.format(" %.0f%%/%d", 100.0*utilization, workerNumTasks[i]));
+			}
+		}
+		System.out.printf("%s: %d threads over %dms, mean utilization %.1f%%, min %.1f%% (per thread, utilization/tasks:%s)\n", label, numThreads, wallNanos/1000000, 100.0*total/numThreads, 100.0*min, perThread);
+	}
+
+	/**
+	 * Next unclaimed job, claiming it; the caller must hold the lock.  A job
+	 * sits in both the scheduler's queue and its group's queue, and is
+	 * skipped in whichever is polled second.
+	 */
+	private static Job poll(PriorityQueue<Job> jobs) {
+		while (!jobs.isEmpty()) {
+			Job job = jobs.poll();
+			if (!job.claimed) {
+				job.claimed = true;
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The caller must hold the lock.
+	 */
+	private void waitIdle() {
+		long nanoTime = System.nanoTime();
+		try {
+			lock.wait();
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		Integer index = workerIndex.get();
+		if (index != null) workerIdleNanos[index] += System.nanoTime() - nanoTime;
+	}
+
+	private void execute(Job job) {
+		try {
+			job.task.run();
+		}
+		catch (Throwable e) {
+			synchronized (lock) {
+				if (job.group.error == null) job.group.error = e;
+			}
+		}
+		synchronized (lock) {
+			job.group.numUnfinished--;
+			job.group.numSubmitted--;
+			job.group.submitHeldJobs();
+			Integer index = workerIndex.get();
+			if (index != null) workerNumTasks[index]++;
+			lock.notifyAll();
+		}
+	}
+
+}
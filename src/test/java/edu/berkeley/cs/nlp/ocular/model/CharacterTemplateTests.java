@@ -0,0 +1,98 @@
+package edu.berkeley.cs.nlp.ocular.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class CharacterTemplateTests {
+
+	private static PixelType[][] randomLine(Random rand, int length) {
+		PixelType[][] line = new PixelType[length][CharacterTemplate.LINE_HEIGHT];
+		for (int t=0; t<length; ++t) {
+			for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+				line[t][j] = rand.nextBoolean() ? PixelType.BLACK : PixelType.WHITE;
+			}
+		}
+		return line;
+	}
+
+	private static void train(CharacterTemplate template, PixelType[][] line) {
+		template.clearCounts();
+		template.incrementCounts(1.0f, line, 0, template.templateMaxWidth(), 0, 0);
+		template.updateParameters();
+	}
+
+	private static void assertSameLogProbs(CharacterTemplate expected, CharacterTemplate actual) {
+		for (int width : expected.allowedWidths()) {
+			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+				for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
+					float[][] expectedBlack = expected.logBlackProbs(e, offset, width);
+					float[][] actualBlack = actual.logBlackProbs(e, offset, width);
+					float[][] expectedWhite = expected.logWhiteProbs(e, offset, width);
+					float[][] actualWhite = actual.logWhiteProbs(e, offset, width);
+					for (int pos=0; pos<width; ++pos) {
+						assertArrayEquals(expectedBlack[pos], actualBlack[pos], 0.0f);
+						assertArrayEquals(expectedWhite[pos], actualWhite[pos], 0.0f);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_precompute() {
+		Random rand = new Random(0);
+		CharacterTemplate lazy = new CharacterTemplate("a", 1.0f, 0.0f);
+		CharacterTemplate precomputed = new CharacterTemplate("a", 1.0f, 0.0f);
+		PixelType[][] line = randomLine(rand, lazy.templateMaxWidth());
+		train(lazy, line);
+		train(precomputed, line);
+		precomputed.precompute();
+		assertSameLogProbs(lazy, precomputed);
+
+		// new parameters must drop the snapshot instead of serving stale values
+		float[][] before = precomputed.logBlackProbs(0, 0, precomputed.templateMaxWidth());
+		line = randomLine(rand, lazy.templateMaxWidth());
+		train(lazy, line);
+		train(precomputed, line);
+		assertFalse(Arrays.deepEquals(before, precomputed.logBlackProbs(0, 0, precomputed.templateMaxWidth())));
+		assertSameLogProbs(lazy, precomputed);
+		precomputed.precompute();
+		assertSameLogProbs(lazy, precomputed);
+
+		// the space template has no pixel tables
+		new CharacterTemplate(" ", 0.5f, 0.0f).precompute();
+	}
+
+	@Test
+	public void test_serialization() throws Exception {
+		CharacterTemplate template = new CharacterTemplate("a", 1.0f, 0.0f);
+		train(template, randomLine(new Random(0), template.templateMaxWidth()));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(template);
+		out.close();
+		CharacterTemplate copy = (CharacterTemplate) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertSameLogProbs(template, copy);
+
+		// the rebuilt interpolation weights must also support further training
+		PixelType[][] line = randomLine(new Random(1), template.templateMaxWidth());
+		train(template, line);
+		train(copy, line);
+		assertSameLogProbs(template, copy);
+	}
+
+}
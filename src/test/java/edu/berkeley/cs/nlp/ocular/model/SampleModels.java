@@ -0,0 +1,95 @@
+package edu.berkeley.cs.nlp.ocular.model;
+
+import java.util.Random;
+
+import edu.berkeley.cs.nlp.ocular.data.LazyRawImageLoader;
+import edu.berkeley.cs.nlp.ocular.data.textreader.BasicTextReader;
+import edu.berkeley.cs.nlp.ocular.data.textreader.CharIndexer;
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.lm.CorpusCounter;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel.LMType;
+import edu.berkeley.cs.nlp.ocular.model.em.DefaultInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.emission.CachingEmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * Models over the sample document in src/test/resources, shared by the
+ * tests that decode it or walk its transition models.
+ *
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class SampleModels {
+
+	public static final int PAD_MIN_WIDTH = 1;
+	public static final int PAD_MAX_WIDTH = 5;
+
+	/**
+	 * An indexer that already holds the hyphen, which the transition models
+	 * need for line-end hyphenation.  Not locked.
+	 */
+	public static Indexer<String> sampleCharIndexer() {
+		Indexer<String> charIndexer = new CharIndexer();
+		charIndexer.getIndex(Charset.HYPHEN);
+		return charIndexer;
+	}
+
+	/**
+	 * Counts of the sample text, with the space added to the active
+	 * characters.  Adds the characters it sees to charIndexer.
+	 */
+	public static CorpusCounter sampleCorpusCounter(int order, Indexer<String> charIndexer) {
+		CorpusCounter counter = new CorpusCounter(order);
+		counter.countRecursive("src/test/resources/doc.txt", Integer.MAX_VALUE, charIndexer, new BasicTextReader());
+		counter.getActiveCharacters().add(charIndexer.getIndex(Charset.SPACE));
+		return counter;
+	}
+
+	public static NgramLanguageModel sampleLanguageModel() {
+		Indexer<String> charIndexer = sampleCharIndexer();
+		CorpusCounter counter = sampleCorpusCounter(4, charIndexer);
+		charIndexer.lock();
+		return new NgramLanguageModel(charIndexer, counter.getCounts(), counter.getActiveCharacters(), LMType.KNESER_NEY, 4.0);
+	}
+
+	public static PixelType[][][] sampleObservations() {
+		return LazyRawImageLoader.loadDocuments("src/test/resources/doc.jpg", "src/test/resources/extracted_lines", -1, 0).get(0).loadLineImages();
+	}
+
+	/**
+	 * Templates whose glyphs take their shapes from windows of the
+	 * document itself.
+	 */
+	public static CharacterTemplate[] sampleTemplates(Indexer<String> charIndexer, PixelType[][][] observations) {
+		Random rand = new Random(0);
+		CharacterTemplate[] templates = new CharacterTemplate[charIndexer.size()];
+		for (int c=0; c<charIndexer.size(); ++c) {
+			String character = charIndexer.getObject(c);
+			templates[c] = new CharacterTemplate(character, (character.equals(Charset.SPACE) ? 0.5f : 1.0f), 0.0f);
+			if (!character.equals(Charset.SPACE)) {
+				for (int i=0; i<4; ++i) {
+					PixelType[][] line = observations[rand.nextInt(observations.length)];
+					int width = templates[c].templateMinWidth() + rand.nextInt(Math.max(1, templates[c].templateMaxWidth()/2-templates[c].templateMinWidth()+1));
+					int start = rand.nextInt(line.length - width);
+					templates[c].incrementCounts(1.0f, line, start, width, 0, 0);
+				}
+				templates[c].updateParameters();
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * An emission model for the sample document, with its cache built, over
+	 * the sampleTemplates.
+	 */
+	public static EmissionModel sampleEmissionModel(Indexer<String> charIndexer) {
+		PixelType[][][] observations = sampleObservations();
+		EmissionModel emissionModel = new CachingEmissionModel(sampleTemplates(charIndexer, observations), charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(4));
+		emissionModel.rebuildCache();
+		return emissionModel;
+	}
+
+}
@@ -0,0 +1,401 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import static edu.berkeley.cs.nlp.ocular.model.SampleModels.sampleEmissionModel;
+import static edu.berkeley.cs.nlp.ocular.model.SampleModels.sampleLanguageModel;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphChar;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel;
+import edu.berkeley.cs.nlp.ocular.model.TransitionStateType;
+import edu.berkeley.cs.nlp.ocular.model.emission.EmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.emission.LineSubsetEmissionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class BeamingSemiMarkovDPTests {
+
+	static String transcription(TransitionState[][] decodeStates, Indexer<String> charIndexer) {
+		StringBuilder text = new StringBuilder();
+		for (TransitionState[] line : decodeStates) {
+			for (TransitionState ts : line) text.append(charIndexer.getObject(ts.getLmCharIndex()));
+			text.append("\n");
+		}
+		return text.toString();
+	}
+
+	private static void assertSameDecode(Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected, Tuple2<Tuple2<TransitionState[][],int[][]>,Double> actual, Indexer<String> charIndexer) {
+		assertEquals(transcription(expected._1._1, charIndexer), transcription(actual._1._1, charIndexer));
+		assertEquals(expected._1._2.length, actual._1._2.length);
+		for (int d=0; d<expected._1._2.length; ++d) assertArrayEquals(expected._1._2[d], actual._1._2[d]);
+		assertEquals(expected._2, actual._2, 1e-6);
+	}
+
+	@Test
+	public void test_primitiveBeam() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		for (int beamSize : new int[] { 1, 3, 10 }) {
+			for (int numThreads : new int[] { 1, 2 }) {
+				Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel).decode(beamSize, numThreads);
+				BeamingSemiMarkovDP primitive = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, true);
+				assertSameDecode(expected, primitive.decode(beamSize, numThreads), charIndexer);
+				// the beam arrays are reused by a second decode
+				assertSameDecode(expected, primitive.decode(beamSize, numThreads), charIndexer);
+			}
+		}
+	}
+
+	/**
+	 * Decoding through the compiled transitions must match decoding through
+	 * the forwardTransitions() collections.
+	 */
+	@Test
+	public void test_compiledTransitions() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		final CharacterNgramTransitionModel compiled = new CharacterNgramTransitionModel(lm);
+		SparseTransitionModel uncompiled = new SparseTransitionModel() {
+			public Collection<Tuple2<TransitionState,Double>> startStates() {
+				return compiled.startStates();
+			}
+		};
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = new BeamingSemiMarkovDP(emissionModel, uncompiled, backwardTransitionModel, primitiveBeam).decode(10, 2);
+			assertSameDecode(expected, new BeamingSemiMarkovDP(emissionModel, compiled, backwardTransitionModel, primitiveBeam).decode(10, 2), charIndexer);
+		}
+		assertTrue(compiled.numStates() > 0);
+	}
+
+	@Test
+	public void test_speculativeDecode() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam).decode(10, 1);
+			for (int numThreads : new int[] { 2, 3, emissionModel.numSequences() }) {
+				BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+				assertSameDecode(expected, dp.decode(10, numThreads, true), charIndexer);
+			}
+		}
+	}
+
+	/**
+	 * The lines whose speculative beams are kept must still report the
+	 * serial decode's line log probabilities.  The sample's lines are
+	 * repeated so that the blocks are long enough to keep some lines.
+	 */
+	@Test
+	public void test_speculativeDecode_lineLogProbs() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel sampleEmissionModel = sampleEmissionModel(charIndexer);
+		int[] lines = new int[12];
+		for (int d=0; d<lines.length; ++d) lines[d] = d % sampleEmissionModel.numSequences();
+		EmissionModel emissionModel = new LineSubsetEmissionModel(sampleEmissionModel, lines);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			BeamingSemiMarkovDP serial = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+			Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = serial.decode(10, 1);
+			for (int numThreads : new int[] { 2, 3 }) {
+				BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+				assertSameDecode(expected, dp.decode(10, numThreads, true), charIndexer);
+				assertArrayEquals(serial.lineLogProbs(), dp.lineLogProbs(), 1e-6);
+				assertArrayEquals(serial.lineScoreMargins(), dp.lineScoreMargins(), 1e-6);
+			}
+		}
+	}
+
+	private static BeamingSemiMarkovDP.BeamState startBeamState(TransitionState ts, double score, TransitionState previousEndTs) {
+		BeamingSemiMarkovDP.BeamState beamState = new BeamingSemiMarkovDP.BeamState(ts);
+		beamState.score = score;
+		beamState.backPointer = Tuple2.Tuple2(-1, previousEndTs);
+		return beamState;
+	}
+
+	/**
+	 * Start states with the same scores, up to a constant, must still not be
+	 * joined if a tie let one of them be reached from a different end state of
+	 * the previous line.
+	 */
+	@Test
+	public void test_speculativeScoreOffset_ties() {
+		CharacterNgramTransitionModel transitionModel = new CharacterNgramTransitionModel(sampleLanguageModel());
+		List<TransitionState> states = new ArrayList<TransitionState>();
+		for (Tuple2<TransitionState,Double> start : transitionModel.startStates()) states.add(start._1);
+		TransitionState a = states.get(0), b = states.get(1), endA = states.get(2), endB = states.get(3);
+		List<BeamingSemiMarkovDP.BeamState> speculative = new ArrayList<BeamingSemiMarkovDP.BeamState>();
+		speculative.add(startBeamState(a, -10.0, endA));
+		speculative.add(startBeamState(b, -12.0, endA));
+		List<BeamingSemiMarkovDP.BeamState> actual = new ArrayList<BeamingSemiMarkovDP.BeamState>();
+		actual.add(startBeamState(a, -15.0, endA));
+		actual.add(startBeamState(b, -17.0, endA));
+		assertEquals(-5.0, BeamingSemiMarkovDP.scoreOffset(speculative, actual), 1e-9);
+
+		// b's best score is tied between endA and endB, and the actual line picked endB
+		actual.set(1, startBeamState(b, -17.0, endB));
+		assertTrue(Double.isNaN(BeamingSemiMarkovDP.scoreOffset(speculative, actual)));
+		actual.set(1, startBeamState(b, -17.5, endA));
+		assertTrue(Double.isNaN(BeamingSemiMarkovDP.scoreOffset(speculative, actual)));
+	}
+
+	@Test
+	public void test_adaptiveBeam() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel).decode(10, 1);
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			// a margin that nothing falls outside of changes nothing
+			BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+			assertSameDecode(expected, dp.decode(10, 3, 1e9, 2, 1, false), charIndexer);
+		}
+		// a narrow margin shrinks the beams
+		BeamingSemiMarkovDP pruned = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel);
+		BeamingSemiMarkovDP primitivePruned = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, true);
+		assertSameDecode(pruned.decode(10, 2, 5.0, 2, 1, false), primitivePruned.decode(10, 2, 5.0, 2, 1, false), charIndexer);
+		for (int d=0; d<emissionModel.numSequences(); ++d) {
+			assertTrue(pruned.meanBeamSizes[d] < 5.0);
+			assertTrue(primitivePruned.meanBeamSizes[d] < 5.0);
+		}
+	}
+
+	/**
+	 * Wraps a transition model so that each start state and transition also
+	 * offers, with a large bonus, a dead end state for the same character.
+	 * There is one dead end per character, so a beam no larger than the
+	 * number of characters fills up with dead ends and empties.
+	 */
+	private static class DeadEndTransitionModel implements SparseTransitionModel {
+		private final SparseTransitionModel model;
+
+		public DeadEndTransitionModel(SparseTransitionModel model) {
+			this.model = model;
+		}
+
+		public Collection<Tuple2<TransitionState,Double>> startStates() {
+			return withDeadEnds(model.startStates());
+		}
+
+		private static Collection<Tuple2<TransitionState,Double>> withDeadEnds(Collection<Tuple2<TransitionState,Double>> transitions) {
+			List<Tuple2<TransitionState,Double>> result = new ArrayList<Tuple2<TransitionState,Double>>();
+			for (Tuple2<TransitionState,Double> transition : transitions) {
+				result.add(Tuple2.Tuple2((TransitionState) new DeadEndState(transition._1, false), transition._2));
+				result.add(Tuple2.Tuple2((TransitionState) new DeadEndState(transition._1, true), transition._2 + 100.0));
+			}
+			return result;
+		}
+
+		private static class DeadEndState implements TransitionState {
+			private final TransitionState ts;
+			private final boolean deadEnd;
+
+			public DeadEndState(TransitionState ts, boolean deadEnd) {
+				this.ts = ts;
+				this.deadEnd = deadEnd;
+			}
+
+			public int getLanguageIndex() { return ts.getLanguageIndex(); }
+			public int getLmCharIndex() { return ts.getLmCharIndex(); }
+			public GlyphChar getGlyphChar() { return ts.getGlyphChar(); }
+			public TransitionStateType getType() { return ts.getType(); }
+			public int getOffset() { return ts.getOffset(); }
+			public int getExposure() { return ts.getExposure(); }
+
+			public Collection<Tuple2<TransitionState,Double>> forwardTransitions() {
+				if (deadEnd) return new ArrayList<Tuple2<TransitionState,Double>>();
+				return withDeadEnds(ts.forwardTransitions());
+			}
+
+			public Collection<Tuple2<TransitionState,Double>> nextLineStartStates() {
+				if (deadEnd) return new ArrayList<Tuple2<TransitionState,Double>>();
+				return withDeadEnds(ts.nextLineStartStates());
+			}
+
+			public double endLogProb() {
+				return deadEnd ? Double.NEGATIVE_INFINITY : ts.endLogProb();
+			}
+
+			public int hashCode() {
+				return deadEnd ? ts.getGlyphChar().hashCode() : ts.hashCode();
+			}
+
+			public boolean equals(Object other) {
+				if (!(other instanceof DeadEndState)) return false;
+				DeadEndState that = (DeadEndState) other;
+				if (this.deadEnd != that.deadEnd) return false;
+				return deadEnd ? ts.getGlyphChar().equals(that.ts.getGlyphChar()) : ts.equals(that.ts);
+			}
+		}
+	}
+
+	@Test
+	public void test_adaptiveBeam_retry() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		// doubling from 1, enough retries to get past the number of dead ends
+		int beamRetries = 1;
+		while ((1 << beamRetries) <= charIndexer.size()) ++beamRetries;
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			BeamingSemiMarkovDP lost = new BeamingSemiMarkovDP(emissionModel, new DeadEndTransitionModel(new CharacterNgramTransitionModel(lm)), backwardTransitionModel, primitiveBeam);
+			Tuple2<Tuple2<TransitionState[][],int[][]>,Double> lostDecode = lost.decode(1, 1, 0.0, 0, 1, false);
+			assertEquals(Double.NEGATIVE_INFINITY, lostDecode._2, 0.0);
+
+			BeamingSemiMarkovDP retried = new BeamingSemiMarkovDP(emissionModel, new DeadEndTransitionModel(new CharacterNgramTransitionModel(lm)), backwardTransitionModel, primitiveBeam);
+			Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode = retried.decode(1, 1, 0.0, beamRetries, 1, false);
+			assertTrue(decode._2 > Double.NEGATIVE_INFINITY);
+			for (int d=0; d<emissionModel.numSequences(); ++d) {
+				assertTrue(decode._1._1[d].length > 0);
+				for (TransitionState ts : decode._1._1[d]) assertTrue(ts.endLogProb() > Double.NEGATIVE_INFINITY || ts.forwardTransitions().size() > 0);
+				assertTrue(retried.lineBeamSizes[d] > 1);
+			}
+		}
+	}
+
+	@Test
+	public void test_lineLogProbs() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		int[] allLines = new int[emissionModel.numSequences()];
+		for (int d=0; d<allLines.length; ++d) allLines[d] = d;
+		for (boolean primitiveBeam : new boolean[] { false, true }) {
+			for (int beamSize : new int[] { 1, 3 }) {
+				BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+				Tuple2<Tuple2<TransitionState[][],int[][]>,Double> decode = dp.decode(beamSize, 1);
+				// the lines' log probabilities add up to the document's
+				double totalLogProb = 0.0;
+				for (double lineLogProb : dp.lineLogProbs()) totalLogProb += lineLogProb;
+				assertEquals(decode._2, totalLogProb, 1e-6);
+				for (double margin : dp.lineScoreMargins()) assertTrue(margin >= 0.0);
+
+				// a view of all the lines, in order, decodes the same
+				BeamingSemiMarkovDP subset = new BeamingSemiMarkovDP(new LineSubsetEmissionModel(emissionModel, allLines), new CharacterNgramTransitionModel(lm), backwardTransitionModel, primitiveBeam);
+				assertSameDecode(decode, subset.decode(beamSize, 1), charIndexer);
+				assertArrayEquals(dp.lineLogProbs(), subset.lineLogProbs(), 1e-6);
+			}
+		}
+	}
+
+	/**
+	 * Keeping every successor must reproduce the dense pass, and keeping fewer
+	 * must never score below it.
+	 */
+	@Test
+	public void test_sparseCoarseBackwardPass() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		EmissionModel emissionModel = sampleEmissionModel(charIndexer);
+		DenseBigramTransitionModel backwardTransitionModel = new DenseBigramTransitionModel(lm);
+		BeamingSemiMarkovDP dense = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, true);
+		Tuple2<Tuple2<TransitionState[][],int[][]>,Double> expected = dense.decode(10, 1);
+		BeamingSemiMarkovDP all = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, true, charIndexer.size());
+		assertSameDecode(expected, all.decode(10, 1), charIndexer);
+		for (int topK : new int[] { 1, 5 }) {
+			BeamingSemiMarkovDP sparse = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), backwardTransitionModel, true, topK);
+			assertTrue(sparse.decode(10, 1)._2 > Double.NEGATIVE_INFINITY);
+			for (int d=0; d<dense.betas.length; ++d) {
+				for (int t=0; t<dense.betas[d].length; ++t) {
+					for (int c=0; c<dense.betas[d][t].length; ++c) {
+						assertTrue(sparse.betas[d][t][c] >= dense.betas[d][t][c] - 1e-9);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_primitiveBeam_eviction() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		TransitionState[] states = startStates(lm);
+		assertTrue(states.length >= 4);
+		PrimitiveBeam beam = new PrimitiveBeam(3, 2);
+		beam.add(1, states[0], -5.0, 0.0, 0, 0);
+		beam.add(1, states[1], -3.0, 0.0, 0, 1);
+		beam.add(1, states[2], -4.0, 0.0, 0, 2);
+		assertEquals(3, beam.size(1));
+		assertEquals(0, beam.size(0));
+		// beats the worst state, which is evicted
+		beam.add(1, states[3], -1.0, 0.0, 0, 3);
+		assertEquals(3, beam.size(1));
+		assertEquals(-1, beam.find(1, states[0]));
+		// no better than the worst state, so ignored
+		beam.add(1, states[0], -4.0, 0.0, 0, 0);
+		assertEquals(-1, beam.find(1, states[0]));
+		// a better score for a state in the beam replaces its backpointer
+		beam.add(1, states[2], -2.0, 0.0, 0, 7);
+		int slot = beam.find(1, states[2]);
+		assertEquals(-2.0, beam.score(1, slot), 0.0);
+		assertEquals(7, beam.backSlot(1, slot));
+		// the worst state is now states[1]
+		beam.add(1, states[0], -2.5, 0.0, 0, 0);
+		assertEquals(-1, beam.find(1, states[1]));
+		assertTrue(beam.find(1, states[0]) >= 0);
+		beam.clear(3, 2);
+		assertEquals(0, beam.size(1));
+	}
+
+	@Test
+	public void test_primitiveBeam_prune() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		TransitionState[] states = startStates(lm);
+		assertTrue(states.length >= 7);
+		PrimitiveBeam beam = new PrimitiveBeam(5, 1);
+		double[] scores = new double[] { -1.0, -9.0, -2.0, -8.0, -3.0 };
+		// a state is only added if it beats the worst one, so add the worst first
+		for (int i : new int[] { 1, 3, 4, 2, 0 }) beam.add(0, states[i], scores[i], 0.0, 0, i);
+		// only states within 2.5 of the best survive, but at least 4 are kept
+		beam.prune(0, 2.5, 4);
+		assertEquals(4, beam.size(0));
+		assertEquals(-1, beam.find(0, states[1]));
+		beam.prune(0, 2.5, 1);
+		assertEquals(3, beam.size(0));
+		assertEquals(-1, beam.find(0, states[3]));
+		for (int i : new int[] { 0, 2, 4 }) {
+			int slot = beam.find(0, states[i]);
+			assertEquals(scores[i], beam.score(0, slot), 0.0);
+			assertEquals(i, beam.backSlot(0, slot));
+		}
+		// the heap still evicts the worst state once the beam fills up again
+		beam.add(0, states[1], -1.5, 0.0, 0, 1);
+		beam.add(0, states[3], -2.5, 0.0, 0, 3);
+		assertEquals(5, beam.size(0));
+		beam.add(0, states[5], -0.5, 0.0, 0, 5);
+		assertEquals(-1, beam.find(0, states[4]));
+		beam.add(0, states[6], 0.0, 0.0, 0, 6);
+		assertEquals(-1, beam.find(0, states[3]));
+		assertEquals(5, beam.size(0));
+	}
+
+	private static TransitionState[] startStates(NgramLanguageModel lm) {
+		List<TransitionState> states = new ArrayList<TransitionState>();
+		for (Tuple2<TransitionState,Double> startState : new CharacterNgramTransitionModel(lm).startStates()) {
+			states.add(startState._1);
+		}
+		return states.toArray(new TransitionState[0]);
+	}
+
+}
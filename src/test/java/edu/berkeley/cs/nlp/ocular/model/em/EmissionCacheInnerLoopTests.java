@@ -0,0 +1,174 @@
+package edu.berkeley.cs.nlp.ocular.model.em;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class EmissionCacheInnerLoopTests {
+
+	private static final int MIN_TEMPLATE_WIDTH = 3;
+	private static final int MAX_TEMPLATE_WIDTH = 7;
+	private static final int[] SEQUENCE_LENGTHS = new int[] { 42, 5, 61 };
+
+	private final Random rand = new Random(0);
+	private float[][] whiteTemplates;
+	private float[][] blackTemplates;
+	private int[] templateNumIndices;
+	private int[] templateIndicesOffsets;
+	private int totalTemplateNumIndices;
+	private int maxSequenceLength;
+	private float[][] whiteObservations;
+	private float[][] blackObservations;
+
+	public EmissionCacheInnerLoopTests() {
+		int numTemplateWidths = MAX_TEMPLATE_WIDTH - MIN_TEMPLATE_WIDTH + 1;
+		whiteTemplates = new float[numTemplateWidths][];
+		blackTemplates = new float[numTemplateWidths][];
+		templateNumIndices = new int[numTemplateWidths];
+		templateIndicesOffsets = new int[numTemplateWidths];
+		for (int tw=MIN_TEMPLATE_WIDTH; tw<=MAX_TEMPLATE_WIDTH; ++tw) {
+			int numIndices = 2*tw + 1; // deliberately not a multiple of any block size
+			templateNumIndices[tw-MIN_TEMPLATE_WIDTH] = numIndices;
+			templateIndicesOffsets[tw-MIN_TEMPLATE_WIDTH] = totalTemplateNumIndices;
+			totalTemplateNumIndices += numIndices;
+			whiteTemplates[tw-MIN_TEMPLATE_WIDTH] = new float[numIndices*tw*CharacterTemplate.LINE_HEIGHT];
+			blackTemplates[tw-MIN_TEMPLATE_WIDTH] = new float[numIndices*tw*CharacterTemplate.LINE_HEIGHT];
+			for (int k=0; k<whiteTemplates[tw-MIN_TEMPLATE_WIDTH].length; ++k) {
+				float blackProb = 0.01f + 0.98f*rand.nextFloat();
+				whiteTemplates[tw-MIN_TEMPLATE_WIDTH][k] = (float) Math.log(1.0 - blackProb);
+				blackTemplates[tw-MIN_TEMPLATE_WIDTH][k] = (float) Math.log(blackProb);
+			}
+		}
+
+		whiteObservations = new float[SEQUENCE_LENGTHS.length][];
+		blackObservations = new float[SEQUENCE_LENGTHS.length][];
+		for (int d=0; d<SEQUENCE_LENGTHS.length; ++d) {
+			maxSequenceLength = Math.max(maxSequenceLength, SEQUENCE_LENGTHS[d]);
+			whiteObservations[d] = new float[SEQUENCE_LENGTHS[d]*CharacterTemplate.LINE_HEIGHT];
+			blackObservations[d] = new float[SEQUENCE_LENGTHS[d]*CharacterTemplate.LINE_HEIGHT];
+			for (int k=0; k<whiteObservations[d].length; ++k) {
+				int pixel = rand.nextInt(10);
+				if (pixel < 4) blackObservations[d][k] = 1.0f;
+				else if (pixel < 9) whiteObservations[d][k] = 1.0f;
+			}
+		}
+	}
+
+	private float[][] computeAll(EmissionCacheInnerLoop innerLoop) {
+		innerLoop.startup(whiteTemplates, blackTemplates, templateNumIndices, templateIndicesOffsets, MIN_TEMPLATE_WIDTH, MAX_TEMPLATE_WIDTH, maxSequenceLength, totalTemplateNumIndices);
+		float[][] scores = new float[SEQUENCE_LENGTHS.length][maxSequenceLength*totalTemplateNumIndices];
+		for (int d=0; d<SEQUENCE_LENGTHS.length; ++d) {
+			innerLoop.compute(scores[d], whiteObservations[d], blackObservations[d], SEQUENCE_LENGTHS[d]);
+		}
+		innerLoop.shutdown();
+		return scores;
+	}
+
+	private void assertSameScores(EmissionCacheInnerLoop innerLoop) {
+		float[][] expected = computeAll(new DefaultInnerLoop(1));
+		float[][] actual = computeAll(innerLoop);
+		for (int d=0; d<SEQUENCE_LENGTHS.length; ++d) {
+			for (int k=0; k<expected[d].length; ++k) {
+				assertEquals("d="+d+", k="+k, expected[d][k], actual[d][k], 1e-5 * Math.max(1.0, Math.abs(expected[d][k])));
+			}
+		}
+	}
+
+	@Test
+	public void test_VectorizedInnerLoop() {
+		assertSameScores(new VectorizedInnerLoop(1));
+	}
+
+	@Test
+	public void test_GemmInnerLoop() {
+		assertSameScores(new GemmInnerLoop(1));
+	}
+
+	@Test
+	public void test_PopcountInnerLoop() {
+		assertSameScores(new PopcountInnerLoop(1));
+	}
+
+	@Test
+	public void test_FftInnerLoop() {
+		assertSameScores(new FftInnerLoop(1));
+		assertSameScores(new FftInnerLoop(1, true));
+	}
+
+	@Test
+	public void test_OffsetSharingInnerLoop() {
+		int numTemplateWidths = MAX_TEMPLATE_WIDTH - MIN_TEMPLATE_WIDTH + 1;
+		int paddedHeight = OffsetSharingInnerLoop.PADDED_HEIGHT;
+		int numOffsets = OffsetSharingInnerLoop.NUM_OFFSETS;
+		float[][] paddedWhiteTemplates = new float[numTemplateWidths][];
+		float[][] paddedBlackTemplates = new float[numTemplateWidths][];
+		float[][] shiftedWhiteTemplates = new float[numTemplateWidths][];
+		float[][] shiftedBlackTemplates = new float[numTemplateWidths][];
+		int[] sharedNumIndices = new int[numTemplateWidths];
+		int[] sharedIndicesOffsets = new int[numTemplateWidths];
+		int sharedTotalNumIndices = 0;
+		for (int tw=MIN_TEMPLATE_WIDTH; tw<=MAX_TEMPLATE_WIDTH; ++tw) {
+			int numTemplates = tw - 1;
+			sharedNumIndices[tw-MIN_TEMPLATE_WIDTH] = numTemplates*numOffsets;
+			sharedIndicesOffsets[tw-MIN_TEMPLATE_WIDTH] = sharedTotalNumIndices;
+			sharedTotalNumIndices += numTemplates*numOffsets;
+			float[] paddedWhite = new float[numTemplates*tw*paddedHeight];
+			float[] paddedBlack = new float[numTemplates*tw*paddedHeight];
+			for (int k=0; k<paddedWhite.length; ++k) {
+				float blackProb = 0.01f + 0.98f*rand.nextFloat();
+				paddedWhite[k] = (float) Math.log(1.0 - blackProb);
+				paddedBlack[k] = (float) Math.log(blackProb);
+			}
+			// template b at offset index o is rows [o, o+LINE_HEIGHT) of padded template b
+			float[] shiftedWhite = new float[numTemplates*numOffsets*tw*CharacterTemplate.LINE_HEIGHT];
+			float[] shiftedBlack = new float[numTemplates*numOffsets*tw*CharacterTemplate.LINE_HEIGHT];
+			for (int b=0; b<numTemplates; ++b) {
+				for (int o=0; o<numOffsets; ++o) {
+					for (int pos=0; pos<tw; ++pos) {
+						for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+							int shiftedIndex = ((b*numOffsets + o)*tw + pos)*CharacterTemplate.LINE_HEIGHT + j;
+							int paddedIndex = (b*tw + pos)*paddedHeight + j + o;
+							shiftedWhite[shiftedIndex] = paddedWhite[paddedIndex];
+							shiftedBlack[shiftedIndex] = paddedBlack[paddedIndex];
+						}
+					}
+				}
+			}
+			paddedWhiteTemplates[tw-MIN_TEMPLATE_WIDTH] = paddedWhite;
+			paddedBlackTemplates[tw-MIN_TEMPLATE_WIDTH] = paddedBlack;
+			shiftedWhiteTemplates[tw-MIN_TEMPLATE_WIDTH] = shiftedWhite;
+			shiftedBlackTemplates[tw-MIN_TEMPLATE_WIDTH] = shiftedBlack;
+		}
+
+		EmissionCacheInnerLoop expectedLoop = new DefaultInnerLoop(1);
+		expectedLoop.startup(shiftedWhiteTemplates, shiftedBlackTemplates, sharedNumIndices, sharedIndicesOffsets, MIN_TEMPLATE_WIDTH, MAX_TEMPLATE_WIDTH, maxSequenceLength, sharedTotalNumIndices);
+		OffsetSharingInnerLoop actualLoop = new OffsetSharingInnerLoop(1);
+		actualLoop.startupSharedOffsets(paddedWhiteTemplates, paddedBlackTemplates, sharedNumIndices, sharedIndicesOffsets, MIN_TEMPLATE_WIDTH, MAX_TEMPLATE_WIDTH, maxSequenceLength, sharedTotalNumIndices);
+		// the plain startup has to rebuild the padded templates from the shifted ones
+		EmissionCacheInnerLoop unpaddedLoop = new OffsetSharingInnerLoop(1);
+		unpaddedLoop.startup(shiftedWhiteTemplates, shiftedBlackTemplates, sharedNumIndices, sharedIndicesOffsets, MIN_TEMPLATE_WIDTH, MAX_TEMPLATE_WIDTH, maxSequenceLength, sharedTotalNumIndices);
+		for (int d=0; d<SEQUENCE_LENGTHS.length; ++d) {
+			float[] expected = new float[maxSequenceLength*sharedTotalNumIndices];
+			float[] actual = new float[maxSequenceLength*sharedTotalNumIndices];
+			float[] unpaddedActual = new float[maxSequenceLength*sharedTotalNumIndices];
+			expectedLoop.compute(expected, whiteObservations[d], blackObservations[d], SEQUENCE_LENGTHS[d]);
+			actualLoop.compute(actual, whiteObservations[d], blackObservations[d], SEQUENCE_LENGTHS[d]);
+			unpaddedLoop.compute(unpaddedActual, whiteObservations[d], blackObservations[d], SEQUENCE_LENGTHS[d]);
+			for (int k=0; k<expected.length; ++k) {
+				assertEquals("d="+d+", k="+k, expected[k], actual[k], 1e-5 * Math.max(1.0, Math.abs(expected[k])));
+				assertEquals("d="+d+", k="+k, expected[k], unpaddedActual[k], 1e-5 * Math.max(1.0, Math.abs(expected[k])));
+			}
+		}
+		expectedLoop.shutdown();
+		actualLoop.shutdown();
+		unpaddedLoop.shutdown();
+	}
+
+}
@@ -0,0 +1,378 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphChar;
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphChar.GlyphType;
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.TransitionStateType;
+import edu.berkeley.cs.nlp.ocular.model.em.DefaultInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.OffsetSharingInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.PopcountInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import tberg.murphy.indexer.HashMapIndexer;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class CachingEmissionModelTests {
+
+	private static final int PAD_MIN_WIDTH = 1;
+	private static final int PAD_MAX_WIDTH = 3;
+
+	private final Indexer<String> charIndexer;
+	private final CharacterTemplate[] templates;
+	private final PixelType[][][] observations;
+
+	class GlyphState implements TransitionState {
+		private GlyphChar glyphChar;
+		private int offset;
+		public GlyphState(int c) { this(c, 0); }
+		public GlyphState(int c, int offset) { this.glyphChar = new GlyphChar(c, GlyphType.NORMAL_CHAR); this.offset = offset; }
+		@Override public GlyphChar getGlyphChar() { return glyphChar; }
+
+		@Override public int getLanguageIndex() { return -1; }
+		@Override public int getLmCharIndex() { return glyphChar.templateCharIndex; }
+		@Override public TransitionStateType getType() { return TransitionStateType.TMPL; }
+		@Override public int getOffset() { return offset; }
+		@Override public int getExposure() { return -1; }
+		@Override public Collection<Tuple2<TransitionState, Double>> forwardTransitions() { return null; }
+		@Override public Collection<Tuple2<TransitionState, Double>> nextLineStartStates() { return null; }
+		@Override public double endLogProb() { return -1; }
+	}
+
+	public CachingEmissionModelTests() {
+		Random rand = new Random(0);
+		charIndexer = new HashMapIndexer<String>();
+		charIndexer.index(new String[] { Charset.SPACE, "a", "b" });
+		charIndexer.lock();
+
+		observations = new PixelType[][][] { randomLine(rand, 24), randomLine(rand, 9) };
+
+		templates = new CharacterTemplate[charIndexer.size()];
+		for (int c=0; c<charIndexer.size(); ++c) {
+			String character = charIndexer.getObject(c);
+			templates[c] = new CharacterTemplate(character, 0.2f, 0.1f);
+			if (!character.equals(Charset.SPACE)) {
+				// give each glyph some non-uniform shape
+				for (int i=0; i<4; ++i) {
+					PixelType[][] glyph = randomLine(rand, templates[c].templateMinWidth() + rand.nextInt(templates[c].templateMaxWidth()-templates[c].templateMinWidth()+1));
+					templates[c].incrementCounts(1.0f, glyph, 0, glyph.length, 0, 0);
+				}
+				templates[c].updateParameters();
+			}
+		}
+	}
+
+	private static PixelType[][] randomLine(Random rand, int length) {
+		PixelType[][] line = new PixelType[length][CharacterTemplate.LINE_HEIGHT];
+		for (int t=0; t<length; ++t) {
+			for (int j=0; j<CharacterTemplate.LINE_HEIGHT; ++j) {
+				int pixel = rand.nextInt(10);
+				line[t][j] = (pixel < 4 ? PixelType.BLACK : (pixel < 9 ? PixelType.WHITE : PixelType.OBSCURED));
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * The cache entry as defined directly by the templates: the best
+	 * exposure, offset, and padding for a glyph of total width w at column t.
+	 */
+	private float bruteForceLogProb(EmissionModel model, int d, int t, int c, int w, int padMinWidth, int padMaxWidth) {
+		int spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		float best = Float.NEGATIVE_INFINITY;
+		for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
+			for (int e=0; e<CharacterTemplate.EXP_GAINS.length; ++e) {
+				for (int pw=padMinWidth; pw<=padMaxWidth; ++pw) {
+					int tw = w-pw;
+					if (tw >= templates[c].templateMinWidth() && tw <= templates[c].templateMaxWidth() && templates[c].widthProb(tw) > 0.0f && t+w <= observations[d].length) {
+						float score = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + model.padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+w, e, offset);
+						best = Math.max(best, score);
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The recorded exposure, offset, and pad width must reproduce the cached
+	 * score (ties may be broken either way, so the score is what is checked).
+	 */
+	private void assertArgmaxesReproduceScores(EmissionModel model) {
+		int spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		model.rebuildCache();
+		for (int d=0; d<model.numSequences(); ++d) {
+			for (int t=0; t<model.sequenceLength(d); ++t) {
+				for (int c=0; c<model.numChars(); ++c) {
+					TransitionState ts = new GlyphState(c);
+					for (int w : model.allowedWidths(c)) {
+						float expected = model.logProb(d, t, c, w);
+						if (expected == Float.NEGATIVE_INFINITY) continue;
+						int e = model.getExposure(d, t, ts, w);
+						int offset = model.getOffset(d, t, ts, w);
+						int pw = model.getPadWidth(d, t, ts, w);
+						int tw = w-pw;
+						float actual = templates[c].widthLogProb(tw) + templates[c].emissionLogProb(observations[d], t, t+tw, e, offset) + model.padWidthLogProb(pw) + templates[spaceIndex].emissionLogProb(observations[d], t+tw, t+w, e, offset);
+						assertEquals("d="+d+", t="+t+", c="+c+", w="+w, expected, actual, 1e-3 * Math.max(1.0, Math.abs(expected)));
+					}
+				}
+			}
+		}
+	}
+
+	private void assertMatchesBruteForce(EmissionModel model) {
+		assertMatchesBruteForce(model, PAD_MIN_WIDTH, PAD_MAX_WIDTH);
+	}
+
+	private void assertMatchesBruteForce(EmissionModel model, int padMinWidth, int padMaxWidth) {
+		model.rebuildCache();
+		for (int d=0; d<model.numSequences(); ++d) {
+			for (int t=0; t<model.sequenceLength(d); ++t) {
+				for (int c=0; c<model.numChars(); ++c) {
+					for (int w : model.allowedWidths(c)) {
+						float expected = bruteForceLogProb(model, d, t, c, w, padMinWidth, padMaxWidth);
+						float actual = model.logProb(d, t, c, w);
+						String message = "d="+d+", t="+t+", c="+c+", w="+w;
+						if (expected == Float.NEGATIVE_INFINITY) assertEquals(message, expected, actual, 0.0);
+						else assertEquals(message, expected, actual, 1e-3 * Math.max(1.0, Math.abs(expected)));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_logProb() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1)));
+	}
+
+	@Test
+	public void test_logProb_widePadding() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, 0, 8, new DefaultInnerLoop(1)), 0, 8);
+		assertMatchesBruteForce(new LazyEmissionModel(templates, charIndexer, observations, 0, 8), 0, 8);
+	}
+
+	@Test
+	public void test_logProb_multithreaded() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(3)));
+		assertMatchesBruteForce(new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(3)));
+	}
+
+	@Test
+	public void test_logProb_offHeap() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), true));
+	}
+
+	@Test
+	public void test_logProb_quantized() {
+		for (QuantizedEmissionCache.Precision precision : new QuantizedEmissionCache.Precision[] { QuantizedEmissionCache.Precision.FP16, QuantizedEmissionCache.Precision.INT16 }) {
+			assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, precision));
+			assertMatchesBruteForce(new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), true, precision));
+		}
+	}
+
+	@Test
+	public void test_cacheFile() throws IOException {
+		File cacheDir = File.createTempFile("emission-cache", "");
+		cacheDir.delete();
+		cacheDir.mkdir();
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FLOAT32, cacheDir.getPath()));
+		File[] files = cacheDir.listFiles();
+		assertEquals(1, files.length);
+
+		// a matching file is mapped rather than rebuilt: overwrite the first entry and see it come back
+		long dataBytes = 0;
+		for (PixelType[][] line : observations) dataBytes += 6L*line.length*CachingEmissionModel.cacheColumnStride(templates, PAD_MIN_WIDTH, PAD_MAX_WIDTH);
+		RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+		file.getChannel().write(ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putFloat(0, 123.0f), file.length() - dataBytes);
+		file.close();
+		EmissionModel mapped = new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FP16, cacheDir.getPath());
+		mapped.rebuildCache();
+		assertEquals(123.0f, mapped.logProb(0, 0, 0, templates[0].templateMinWidth()+PAD_MIN_WIDTH), 0.0);
+
+		// changing the font makes the file stale, so the cache is rebuilt; this run already saved the file, so it is not rewritten
+		templates[1].incrementCounts(1.0f, observations[0], 0, templates[1].templateMinWidth(), 0, 0);
+		templates[1].updateParameters();
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FLOAT32, cacheDir.getPath()));
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FLOAT32, cacheDir.getPath()));
+		assertEquals(1, cacheDir.listFiles().length);
+		file = new RandomAccessFile(files[0], "r");
+		ByteBuffer first = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+		file.getChannel().read(first, file.length() - dataBytes);
+		file.close();
+		assertEquals(123.0f, first.getFloat(0), 0.0);
+
+		for (File f : cacheDir.listFiles()) f.delete();
+		cacheDir.delete();
+	}
+
+	@Test
+	public void test_cacheFile_abort() throws IOException {
+		File cacheDir = File.createTempFile("emission-cache", "");
+		cacheDir.delete();
+		cacheDir.mkdir();
+		EmissionCacheFile cacheFile = new EmissionCacheFile(cacheDir.getPath(), new byte[20], new byte[20], new int[] { 10 });
+		assertTrue(cacheFile.claimForWriting());
+		assertFalse(cacheFile.claimForWriting());
+		cacheFile.startWriting();
+		assertEquals(1, cacheDir.listFiles().length);
+		cacheFile.abortWriting();
+		assertEquals(0, cacheDir.listFiles().length);
+		assertFalse(cacheFile.isValid());
+		// an aborted write can be retried
+		assertTrue(cacheFile.claimForWriting());
+		cacheDir.delete();
+	}
+
+	@Test
+	public void test_incrementalRefresh() {
+		CachingEmissionModel.CachingEmissionModelFactory factory = new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FLOAT32, null, true);
+		EmissionModel model = factory.make(templates, observations);
+		assertMatchesBruteForce(model);
+
+		long[] versions = new long[templates.length];
+		for (int c=0; c<templates.length; ++c) versions[c] = templates[c].version();
+		templates[1].incrementCounts(1.0f, observations[0], 0, templates[1].templateMinWidth(), 0, 0);
+		templates[1].updateParameters();
+		assertTrue(templates[1].version() != versions[1]);
+		assertEquals(versions[2], templates[2].version());
+
+		// the same lines get the same model back, which refreshes only what changed
+		assertTrue(model == factory.make(templates, new PixelType[][][] { observations[0], observations[1] }));
+		assertMatchesBruteForce(model);
+		assertMatchesBruteForce(model);
+		assertFalse(model == factory.make(templates, new PixelType[][][] { observations[0] }));
+	}
+
+	@Test
+	public void test_incrementalRefresh_evicts() {
+		CachingEmissionModel.CachingEmissionModelFactory sizer = new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1));
+		long maxBytes = Math.max(sizer.predictLineCacheMemoryBytes(templates, observations[0].length), sizer.predictLineCacheMemoryBytes(templates, observations[1].length));
+		CachingEmissionModel.CachingEmissionModelFactory factory = new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FLOAT32, null, true, maxBytes);
+		EmissionModel first = factory.make(templates, new PixelType[][][] { observations[0] });
+		assertTrue(first == factory.make(templates, new PixelType[][][] { observations[0] }));
+		// only one line's cache fits, so keeping the second batch drops the first
+		EmissionModel second = factory.make(templates, new PixelType[][][] { observations[1] });
+		assertEquals(1, factory.numRetainedModels());
+		assertFalse(first == factory.make(templates, new PixelType[][][] { observations[0] }));
+		assertFalse(second == factory.make(templates, new PixelType[][][] { observations[1] }));
+	}
+
+	@Test
+	public void test_logProb_bitPacked() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new PopcountInnerLoop(1)));
+	}
+
+	@Test
+	public void test_logProb_offsetSharing() {
+		assertMatchesBruteForce(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new OffsetSharingInnerLoop(1)));
+	}
+
+	@Test
+	public void test_logProb_lazy() {
+		LazyEmissionModel model = new LazyEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH);
+		model.rebuildCache();
+		assertEquals(0, model.numComputed());
+		model.logProb(0, 3, 1, model.allowedWidths(1)[0]);
+		model.logProb(0, 3, 1, model.allowedWidths(1)[1]);
+		assertEquals(1, model.numComputed());
+		assertMatchesBruteForce(model);
+	}
+
+	@Test
+	public void test_argmaxes() {
+		assertArgmaxesReproduceScores(new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1)));
+		assertArgmaxesReproduceScores(new LazyEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH));
+	}
+
+	private void assertPredictedCacheMemory(EmissionModel.EmissionModelFactory factory) {
+		EmissionModel model = factory.make(templates, observations);
+		model.rebuildCache();
+		long predicted = 0;
+		for (PixelType[][] line : observations) predicted += factory.predictLineCacheMemoryBytes(templates, line.length);
+		// the prediction leaves out the few outer arrays that don't scale with the batch
+		assertEquals(model.getClass().getSimpleName(), (double) model.cacheMemoryBytes(), (double) predicted, 8.0*EmissionCacheBuffers.ARRAY_HEADER_BYTES);
+	}
+
+	@Test
+	public void test_predictLineCacheMemoryBytes() {
+		assertPredictedCacheMemory(new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1)));
+		assertPredictedCacheMemory(new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), true));
+		assertPredictedCacheMemory(new CachingEmissionModelExplicitOffset.CachingEmissionModelExplicitOffsetFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1)));
+		assertPredictedCacheMemory(new CachingEmissionModel.CachingEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), false, QuantizedEmissionCache.Precision.FP16));
+		assertPredictedCacheMemory(new CachingEmissionModelExplicitOffset.CachingEmissionModelExplicitOffsetFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1), true, QuantizedEmissionCache.Precision.INT16));
+		LazyEmissionModel.LazyEmissionModelFactory lazyFactory = new LazyEmissionModel.LazyEmissionModelFactory(charIndexer, PAD_MIN_WIDTH, PAD_MAX_WIDTH);
+		assertPredictedCacheMemory(lazyFactory);
+		assertPredictedCacheMemory(new PrunedEmissionModel.PrunedEmissionModelFactory(lazyFactory, charIndexer, 1, 1));
+	}
+
+	@Test
+	public void test_pruning() {
+		int spaceIndex = charIndexer.getIndex(Charset.SPACE);
+		EmissionModel full = new CachingEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1));
+		full.rebuildCache();
+		LazyEmissionModel lazy = new LazyEmissionModel(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH);
+		PrunedEmissionModel pruned = new PrunedEmissionModel(lazy, templates, charIndexer, observations, 1, 1);
+		pruned.rebuildCache();
+		long numKeptCells = 0;
+		for (int d=0; d<pruned.numSequences(); ++d) {
+			for (int t=0; t<pruned.sequenceLength(d); ++t) {
+				int numKept = 0;
+				for (int c=0; c<pruned.numChars(); ++c) {
+					if (!pruned.isPruned(d, t, c)) numKept++;
+					for (int w : pruned.allowedWidths(c)) {
+						if (pruned.isPruned(d, t, c)) assertEquals(Float.NEGATIVE_INFINITY, pruned.logProb(d, t, c, w), 0.0);
+						else assertEquals(full.logProb(d, t, c, w), pruned.logProb(d, t, c, w), 1e-3 * Math.max(1.0, Math.abs(full.logProb(d, t, c, w))));
+					}
+				}
+				assertFalse(pruned.isPruned(d, t, spaceIndex));
+				assertTrue("top-1 plus space", numKept == 1 || numKept == 2);
+				numKeptCells += numKept;
+			}
+		}
+		// asking for every cell only computed the ones that were kept
+		assertEquals(numKeptCells, lazy.numComputed());
+	}
+
+
+	@Test
+	public void test_pruning_offsets() {
+		EmissionModel full = new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1));
+		full.rebuildCache();
+		PrunedEmissionModel pruned = new PrunedEmissionModel(new CachingEmissionModelExplicitOffset(templates, charIndexer, observations, PAD_MIN_WIDTH, PAD_MAX_WIDTH, new DefaultInnerLoop(1)), templates, charIndexer, observations, 2, 1);
+		pruned.rebuildCache();
+		for (int d=0; d<pruned.numSequences(); ++d) {
+			for (int t=0; t<pruned.sequenceLength(d); ++t) {
+				for (int c=0; c<pruned.numChars(); ++c) {
+					for (int offset=-CharacterTemplate.MAX_OFFSET; offset<=CharacterTemplate.MAX_OFFSET; ++offset) {
+						TransitionState ts = new GlyphState(c, offset);
+						for (int w : pruned.allowedWidths(c)) {
+							// each offset keeps its own score, not the best over offsets
+							float expected = pruned.isPruned(d, t, c) ? Float.NEGATIVE_INFINITY : full.logProb(d, t, ts, w);
+							assertEquals(expected, pruned.logProb(d, t, ts, w), 0.0);
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
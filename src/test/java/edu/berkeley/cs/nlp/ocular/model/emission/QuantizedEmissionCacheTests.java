@@ -0,0 +1,111 @@
+package edu.berkeley.cs.nlp.ocular.model.emission;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.image.ImageUtils.PixelType;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel;
+import edu.berkeley.cs.nlp.ocular.model.CharacterTemplate;
+import edu.berkeley.cs.nlp.ocular.model.SampleModels;
+import edu.berkeley.cs.nlp.ocular.model.em.BeamingSemiMarkovDP;
+import edu.berkeley.cs.nlp.ocular.model.em.DefaultInnerLoop;
+import edu.berkeley.cs.nlp.ocular.model.em.DenseBigramTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.emission.QuantizedEmissionCache.Precision;
+import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class QuantizedEmissionCacheTests {
+
+	private static final int BEAM_SIZE = 10;
+	private static final int NUM_THREADS = 4;
+
+	@Test
+	public void test_halfFloat() {
+		assertEquals(0.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(0.0f)), 0.0);
+		assertEquals(-1.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-1.0f)), 0.0);
+		assertEquals(-0.5f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-0.5f)), 0.0);
+		assertEquals(-65504.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-65504.0f)), 0.0);
+		assertEquals(-65504.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-1e9f)), 0.0);
+		assertEquals(Float.NEGATIVE_INFINITY, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(Float.NEGATIVE_INFINITY)), 0.0);
+		assertEquals((float) Math.pow(2, -24), QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf((float) Math.pow(2, -24))), 0.0);
+		// 2049 is halfway between 2048 and 2050; ties go to the even mantissa
+		assertEquals(-2048.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-2049.0f)), 0.0);
+		assertEquals(-2052.0f, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(-2051.0f)), 0.0);
+		Random rand = new Random(0);
+		for (int i=0; i<10000; ++i) {
+			float value = -rand.nextFloat() * 5000.0f;
+			assertEquals(value, QuantizedEmissionCache.halfToFloat(QuantizedEmissionCache.floatToHalf(value)), Math.abs(value) / 2048.0);
+		}
+	}
+
+	@Test
+	public void test_int16() {
+		float[] logProbs = new float[] { -3.0f, Float.NEGATIVE_INFINITY, -1003.0f, -3.5f, -250.25f };
+		QuantizedEmissionCache cache = new QuantizedEmissionCache(Precision.INT16, 2, false);
+		cache.store(1, FloatBuffer.wrap(logProbs));
+		float halfStep = 1000.0f / 0xFFFE / 2.0f;
+		assertEquals(-3.0f, cache.get(1, 0), 0.0);
+		assertEquals(Float.NEGATIVE_INFINITY, cache.get(1, 1), 0.0);
+		assertEquals(-1003.0f, cache.get(1, 2), 1e-3);
+		assertEquals(-3.5f, cache.get(1, 3), halfStep);
+		assertEquals(-250.25f, cache.get(1, 4), halfStep);
+	}
+
+	private void assertCloseToFloat32(EmissionModel exact, EmissionModel quantized) {
+		for (int d=0; d<exact.numSequences(); ++d) {
+			for (int t=0; t<exact.sequenceLength(d); ++t) {
+				for (int c=0; c<exact.numChars(); ++c) {
+					for (int w : exact.allowedWidths(c)) {
+						float expected = exact.logProb(d, t, c, w);
+						if (expected == Float.NEGATIVE_INFINITY) assertEquals(expected, quantized.logProb(d, t, c, w), 0.0);
+						else assertEquals(expected, quantized.logProb(d, t, c, w), Math.max(0.1, Math.abs(expected) / 2048.0));
+					}
+				}
+			}
+		}
+	}
+
+	private static String decode(EmissionModel emissionModel, NgramLanguageModel lm) {
+		emissionModel.rebuildCache();
+		BeamingSemiMarkovDP dp = new BeamingSemiMarkovDP(emissionModel, new CharacterNgramTransitionModel(lm), new DenseBigramTransitionModel(lm));
+		Tuple2<Tuple2<TransitionState[][],int[][]>,Double> result = dp.decode(BEAM_SIZE, 1);
+		StringBuilder text = new StringBuilder();
+		for (TransitionState[] line : result._1._1) {
+			for (TransitionState ts : line) text.append(lm.getCharacterIndexer().getObject(ts.getLmCharIndex()));
+			text.append("\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Viterbi transcriptions of the sample document from the quantized
+	 * caches must match the one from the float32 cache.
+	 */
+	@Test
+	public void test_viterbi_sampleDocument() {
+		NgramLanguageModel lm = SampleModels.sampleLanguageModel();
+		Indexer<String> charIndexer = lm.getCharacterIndexer();
+		PixelType[][][] observations = SampleModels.sampleObservations();
+		CharacterTemplate[] templates = SampleModels.sampleTemplates(charIndexer, observations);
+
+		EmissionModel exact = new CachingEmissionModel(templates, charIndexer, observations, SampleModels.PAD_MIN_WIDTH, SampleModels.PAD_MAX_WIDTH, new DefaultInnerLoop(NUM_THREADS));
+		String expected = decode(exact, lm);
+		assertTrue(expected.trim().length() > 0);
+		for (Precision precision : new Precision[] { Precision.FP16, Precision.INT16 }) {
+			EmissionModel quantized = new CachingEmissionModel(templates, charIndexer, observations, SampleModels.PAD_MIN_WIDTH, SampleModels.PAD_MAX_WIDTH, new DefaultInnerLoop(NUM_THREADS), precision == Precision.INT16, precision);
+			assertEquals(precision.toString(), expected, decode(quantized, lm));
+			assertCloseToFloat32(exact, quantized);
+		}
+	}
+
+}
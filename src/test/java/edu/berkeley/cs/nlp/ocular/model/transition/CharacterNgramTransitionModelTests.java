@@ -0,0 +1,57 @@
+package edu.berkeley.cs.nlp.ocular.model.transition;
+
+import static edu.berkeley.cs.nlp.ocular.model.SampleModels.sampleLanguageModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel;
+import edu.berkeley.cs.nlp.ocular.model.TransitionStateType;
+import edu.berkeley.cs.nlp.ocular.model.transition.CharacterNgramTransitionModel.CharacterNgramTransitionState;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class CharacterNgramTransitionModelTests {
+
+	@Test
+	public void test_compiledForwardTransitions() {
+		NgramLanguageModel lm = sampleLanguageModel();
+		CharacterNgramTransitionModel model = new CharacterNgramTransitionModel(lm);
+
+		// walk a few steps out from the start states
+		List<TransitionState> frontier = new ArrayList<TransitionState>();
+		for (Tuple2<TransitionState,Double> start : model.startStates()) frontier.add(start._1);
+		for (int step=0; step<3; ++step) {
+			List<TransitionState> next = new ArrayList<TransitionState>();
+			for (TransitionState ts : frontier) {
+				CompiledTransitionModel.Transitions compiled = model.compiledForwardTransitions(ts);
+				assertSame(compiled, model.compiledForwardTransitions(ts));
+				List<Tuple2<TransitionState,Double>> expanded = new ArrayList<Tuple2<TransitionState,Double>>(ts.forwardTransitions());
+				assertEquals(expanded.size(), compiled.size());
+				for (int i=0; i<compiled.size(); ++i) {
+					TransitionState nextTs = model.getState(compiled.nextStateIds[i]);
+					assertSame(expanded.get(i)._1, nextTs);
+					assertEquals(expanded.get(i)._2, compiled.logProbs[i], 0.0);
+					if (i % 7 == 0) next.add(nextTs);
+				}
+			}
+			frontier = next;
+		}
+
+		// an equal state built from scratch compiles to the interned state's transitions
+		int numStates = model.numStates();
+		CharacterNgramTransitionState fresh = model.new CharacterNgramTransitionState(new int[0], TransitionStateType.LMRGN);
+		CompiledTransitionModel.Transitions transitions = model.compiledForwardTransitions(fresh);
+		assertTrue(transitions.size() > 0);
+		assertEquals(numStates, model.numStates());
+	}
+
+}
@@ -0,0 +1,154 @@
+package edu.berkeley.cs.nlp.ocular.model.transition;
+
+import static edu.berkeley.cs.nlp.ocular.model.SampleModels.sampleCharIndexer;
+import static edu.berkeley.cs.nlp.ocular.model.SampleModels.sampleCorpusCounter;
+import static edu.berkeley.cs.nlp.ocular.util.Tuple2.Tuple2;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.berkeley.cs.nlp.ocular.data.textreader.Charset;
+import edu.berkeley.cs.nlp.ocular.gsm.BasicGlyphSubstitutionModel.BasicGlyphSubstitutionModelFactory;
+import edu.berkeley.cs.nlp.ocular.gsm.GlyphSubstitutionModel;
+import edu.berkeley.cs.nlp.ocular.lm.BasicCodeSwitchLanguageModel;
+import edu.berkeley.cs.nlp.ocular.lm.CodeSwitchLanguageModel;
+import edu.berkeley.cs.nlp.ocular.lm.CorpusCounter;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel;
+import edu.berkeley.cs.nlp.ocular.lm.NgramLanguageModel.LMType;
+import edu.berkeley.cs.nlp.ocular.lm.SingleLanguageModel;
+import edu.berkeley.cs.nlp.ocular.model.transition.SparseTransitionModel.TransitionState;
+import edu.berkeley.cs.nlp.ocular.util.Tuple2;
+import tberg.murphy.indexer.HashMapIndexer;
+import tberg.murphy.indexer.Indexer;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class CodeSwitchTransitionModelTests {
+
+	/**
+	 * Three languages over the sample document, with models of different
+	 * orders, and a uniform glyph substitution model for them.
+	 */
+	private static Tuple2<CodeSwitchLanguageModel, GlyphSubstitutionModel> sampleModels() {
+		Indexer<String> charIndexer = sampleCharIndexer();
+		Indexer<String> langIndexer = new HashMapIndexer<String>();
+		List<CorpusCounter> counters = new ArrayList<CorpusCounter>();
+		@SuppressWarnings("unchecked")
+		Set<Integer>[] activeCharacterSets = new Set[3];
+		for (int order = 2; order <= 4; ++order) {
+			langIndexer.getIndex("lang" + order);
+			CorpusCounter counter = sampleCorpusCounter(order, charIndexer);
+			counters.add(counter);
+			activeCharacterSets[order-2] = counter.getActiveCharacters();
+		}
+		langIndexer.lock();
+		for (String c : new ArrayList<String>(charIndexer.getObjects())) {
+			if (Charset.CHARS_THAT_CAN_BE_DECORATED_WITH_AN_ELISION_TILDE.contains(c)) charIndexer.getIndex(Charset.addTilde(c));
+		}
+		// the factory adds the remaining substitution characters it needs to the indexer
+		BasicGlyphSubstitutionModelFactory gsmFactory = new BasicGlyphSubstitutionModelFactory(0.1, 500.0, langIndexer, charIndexer, activeCharacterSets, 2.0, 2, "");
+		charIndexer.lock();
+		List<Tuple2<SingleLanguageModel, Double>> subModelsAndPriors = new ArrayList<Tuple2<SingleLanguageModel, Double>>();
+		for (CorpusCounter counter : counters) {
+			subModelsAndPriors.add(Tuple2((SingleLanguageModel) new NgramLanguageModel(charIndexer, counter.getCounts(), counter.getActiveCharacters(), LMType.KNESER_NEY, 4.0), 1.0));
+		}
+		return Tuple2((CodeSwitchLanguageModel) new BasicCodeSwitchLanguageModel(subModelsAndPriors, charIndexer, langIndexer, 0.9), gsmFactory.uniform());
+	}
+
+	private static CodeSwitchTransitionModel transitionModel(Tuple2<CodeSwitchLanguageModel, GlyphSubstitutionModel> models, int transitionCacheSize) {
+		return new CodeSwitchTransitionModel(models._1, false, models._2, true, 0.9, false, transitionCacheSize);
+	}
+
+	@Test
+	public void test_compiledForwardTransitions() {
+		Tuple2<CodeSwitchLanguageModel, GlyphSubstitutionModel> models = sampleModels();
+		CodeSwitchTransitionModel uncached = transitionModel(models, 0);
+		for (int transitionCacheSize : new int[] { 1, 20, 1000, 100000 }) {
+			CodeSwitchTransitionModel model = transitionModel(models, transitionCacheSize);
+
+			// walk a few steps out from the start states, comparing against a model that keeps nothing
+			List<TransitionState> frontier = new ArrayList<TransitionState>();
+			for (Tuple2<TransitionState, Double> start : model.startStates()) frontier.add(start._1);
+			Set<TransitionState> seen = new HashSet<TransitionState>();
+			for (int step = 0; step < 3; ++step) {
+				List<TransitionState> next = new ArrayList<TransitionState>();
+				for (TransitionState ts : frontier) {
+					CompiledTransitionModel.Transitions compiled = model.compiledForwardTransitions(ts);
+					CompiledTransitionModel.Transitions expected = uncached.compiledForwardTransitions(ts);
+					assertEquals(expected.size(), compiled.size());
+					for (int i = 0; i < compiled.size(); ++i) {
+						TransitionState nextTs = model.getState(compiled.nextStateIds[i]);
+						assertEquals(uncached.getState(expected.nextStateIds[i]), nextTs);
+						assertEquals(expected.logProbs[i], compiled.logProbs[i], 0.0);
+						if (i % 13 == 0 && seen.add(nextTs)) next.add(nextTs);
+					}
+				}
+				frontier = next;
+			}
+			assertTrue(model.numStates() > 100);
+		}
+	}
+
+	@Test
+	public void test_eviction() {
+		CodeSwitchTransitionModel model = transitionModel(sampleModels(), 2);
+		List<TransitionState> startStates = new ArrayList<TransitionState>();
+		for (Tuple2<TransitionState, Double> start : model.startStates()) startStates.add(start._1);
+		assertTrue(startStates.size() >= 3);
+
+		CompiledTransitionModel.Transitions first = model.compiledForwardTransitions(startStates.get(0));
+		assertSame(first, model.compiledForwardTransitions(startStates.get(0)));
+		model.compiledForwardTransitions(startStates.get(1));
+		assertSame(first, model.compiledForwardTransitions(startStates.get(0)));
+		// startStates[0] was used more recently, so this evicts startStates[1]
+		model.compiledForwardTransitions(startStates.get(2));
+		assertSame(first, model.compiledForwardTransitions(startStates.get(0)));
+		// this evicts startStates[0], which is then expanded again: equal, but not the same
+		model.compiledForwardTransitions(startStates.get(2));
+		model.compiledForwardTransitions(startStates.get(1));
+		CompiledTransitionModel.Transitions again = model.compiledForwardTransitions(startStates.get(0));
+		assertNotSame(first, again);
+		assertEquals(first.size(), again.size());
+		for (int i = 0; i < first.size(); ++i) {
+			assertEquals(first.nextStateIds[i], again.nextStateIds[i]);
+			assertEquals(first.logProbs[i], again.logProbs[i], 0.0);
+		}
+	}
+
+	@Test
+	public void test_trimInternedStates() {
+		Tuple2<CodeSwitchLanguageModel, GlyphSubstitutionModel> models = sampleModels();
+		CodeSwitchTransitionModel model = transitionModel(models, 100);
+		CodeSwitchTransitionModel uncached = transitionModel(models, 0);
+		TransitionState start = model.startStates().iterator().next()._1;
+		CompiledTransitionModel.Transitions before = model.compiledForwardTransitions(start);
+		int numStates = model.numStates();
+		model.trimInternedStates(numStates);
+		assertEquals(numStates, model.numStates());
+
+		model.trimInternedStates(numStates - 1);
+		assertEquals(0, model.numStates());
+		// states from before the trim are interned again, under new ids
+		CompiledTransitionModel.Transitions after = model.compiledForwardTransitions(start);
+		CompiledTransitionModel.Transitions expected = uncached.compiledForwardTransitions(start);
+		assertNotSame(before, after);
+		assertEquals(expected.size(), after.size());
+		for (int i = 0; i < after.size(); ++i) {
+			assertEquals(uncached.getState(expected.nextStateIds[i]), model.getState(after.nextStateIds[i]));
+			assertEquals(expected.logProbs[i], after.logProbs[i], 0.0);
+		}
+		TransitionState next = model.getState(after.nextStateIds[0]);
+		model.trimInternedStates(0);
+		assertEquals(uncached.compiledForwardTransitions(next).size(), model.compiledForwardTransitions(next).size());
+	}
+
+}
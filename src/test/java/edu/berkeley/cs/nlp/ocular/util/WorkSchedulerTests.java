@@ -0,0 +1,124 @@
+package edu.berkeley.cs.nlp.ocular.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Dan Garrette (dhgarrette@gmail.com)
+ */
+public class WorkSchedulerTests {
+
+	@Test
+	public void test_largestFirst() {
+		WorkScheduler scheduler = new WorkScheduler(1);
+		final List<Integer> order = new ArrayList<Integer>();
+		WorkScheduler.TaskGroup group = scheduler.newTaskGroup();
+		for (final int size : new int[] { 3, 10, 1, 7, 10 }) {
+			group.add(size, new Runnable() {
+				public void run() {
+					order.add(size);
+				}
+			});
+		}
+		group.run();
+		scheduler.shutdown();
+		assertEquals(Arrays.asList(10, 10, 7, 3, 1), order);
+	}
+
+	@Test
+	public void test_nested() {
+		final WorkScheduler scheduler = new WorkScheduler(3);
+		final AtomicInteger count = new AtomicInteger(0);
+		WorkScheduler.TaskGroup outer = scheduler.newTaskGroup();
+		for (int i=0; i<10; ++i) {
+			outer.add(100+i, new Runnable() {
+				public void run() {
+					WorkScheduler.TaskGroup inner = scheduler.newTaskGroup();
+					for (int j=0; j<20; ++j) {
+						inner.add(j, new Runnable() {
+							public void run() {
+								count.incrementAndGet();
+							}
+						});
+					}
+					inner.run();
+					count.incrementAndGet();
+				}
+			});
+		}
+		outer.run();
+		scheduler.shutdown();
+		assertEquals(10*20 + 10, count.get());
+	}
+
+	/**
+	 * At most one outer task runs at a time, and while it runs the other
+	 * threads are free to run its nested tasks.
+	 */
+	@Test
+	public void test_maxRunning() {
+		final WorkScheduler scheduler = new WorkScheduler(4);
+		final AtomicInteger running = new AtomicInteger(0);
+		final AtomicInteger maxRunning = new AtomicInteger(0);
+		final AtomicInteger runningInner = new AtomicInteger(0);
+		final AtomicInteger maxRunningInner = new AtomicInteger(0);
+		WorkScheduler.TaskGroup outer = scheduler.newTaskGroup();
+		outer.setMaxRunning(1);
+		for (int i=0; i<3; ++i) {
+			outer.add(100+i, new Runnable() {
+				public void run() {
+					maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+					WorkScheduler.TaskGroup inner = scheduler.newTaskGroup();
+					for (int j=0; j<8; ++j) {
+						inner.add(j, new Runnable() {
+							public void run() {
+								synchronized (maxRunningInner) {
+									maxRunningInner.set(Math.max(maxRunningInner.get(), runningInner.incrementAndGet()));
+								}
+								try {
+									Thread.sleep(20);
+								}
+								catch (InterruptedException e) {
+									throw new RuntimeException(e);
+								}
+								runningInner.decrementAndGet();
+							}
+						});
+					}
+					inner.run();
+					running.decrementAndGet();
+				}
+			});
+		}
+		outer.run();
+		scheduler.shutdown();
+		assertEquals(1, maxRunning.get());
+		assertTrue(maxRunningInner.get() > 1);
+	}
+
+	@Test
+	public void test_exception() {
+		WorkScheduler scheduler = new WorkScheduler(2);
+		WorkScheduler.TaskGroup group = scheduler.newTaskGroup();
+		group.add(1, new Runnable() {
+			public void run() {
+				throw new IllegalStateException("boom");
+			}
+		});
+		try {
+			group.run();
+			fail("expected the task's exception");
+		}
+		catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		scheduler.shutdown();
+	}
+
+}